@@ -1,6 +1,7 @@
 package com.evgeniysharafan.takephoto.ui.fragment;
 
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -13,11 +14,15 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 
 import com.evgeniysharafan.takephoto.R;
 import com.evgeniysharafan.takephoto.util.AppUtils;
+import com.evgeniysharafan.takephoto.util.JobMetrics;
+import com.evgeniysharafan.takephoto.util.PhotoJob;
 import com.evgeniysharafan.takephoto.util.TakePhoto;
-import com.evgeniysharafan.takephoto.util.TakePhoto.OnPhotoTakenListener;
+import com.evgeniysharafan.takephoto.util.TakePhoto.OnPhotoPreviewListener;
+import com.evgeniysharafan.takephoto.util.TakePhoto.OnPhotoProgressListener;
 import com.evgeniysharafan.utils.OnBackPressedListener;
 import com.evgeniysharafan.utils.Toasts;
 import com.squareup.picasso.Request;
@@ -40,12 +45,15 @@ import static com.evgeniysharafan.takephoto.util.PermissionUtil.shouldShowRation
 import static com.evgeniysharafan.takephoto.util.PermissionUtil.showSnackbar;
 import static com.evgeniysharafan.takephoto.util.PermissionUtil.showSnackbarWithOpenDetails;
 
-public class TakePhotoFragment extends Fragment implements OnPhotoTakenListener, OnBackPressedListener {
+public class TakePhotoFragment extends Fragment implements OnPhotoProgressListener, OnPhotoPreviewListener,
+        OnBackPressedListener {
 
     private static final String STATE_PHOTO = "state_photo";
 
     @Bind(R.id.add_image)
     ImageButton addImage;
+    @Bind(R.id.progress)
+    ProgressBar progress;
     @Bind(R.id.image)
     ImageView image;
     @Bind(R.id.snackbar_container)
@@ -170,9 +178,26 @@ public class TakePhotoFragment extends Fragment implements OnPhotoTakenListener,
         if (TakePhoto.getInstance().isPhotoRequestOk(requestCode, resultCode)) {
             setPhotoButtonEnabled(false);
             TakePhoto.getInstance().onActivityResult(requestCode, resultCode, data, this);
+        } else {
+            TakePhoto.getInstance().discardJob(requestCode);
         }
     }
 
+    @Override
+    public void onPhotoProgress(PhotoJob job, JobMetrics.Stage stage, long bytes, long totalBytes) {
+        progress.setVisibility(View.VISIBLE);
+        // processing takes the last tenth of the bar.
+        boolean isCopying = stage == JobMetrics.Stage.COPY;
+        progress.setIndeterminate(isCopying && totalBytes <= 0);
+        progress.setMax(100);
+        progress.setProgress(isCopying && totalBytes > 0 ? (int) Math.min(90, bytes * 90 / totalBytes) : 90);
+    }
+
+    @Override
+    public void onPreviewAvailable(PhotoJob job, Bitmap preview) {
+        image.setImageBitmap(preview);
+    }
+
     @Override
     public void onPhotoTaken(File photo) {
         AppUtils.loadImage(photo, image);
@@ -188,6 +213,9 @@ public class TakePhotoFragment extends Fragment implements OnPhotoTakenListener,
 
     private void setPhotoButtonEnabled(boolean enabled) {
         addImage.setEnabled(enabled);
+        if (enabled) {
+            progress.setVisibility(View.GONE);
+        }
     }
 
     // Use one of these methods to clear the dir with photos
@@ -0,0 +1,130 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import com.evgeniysharafan.utils.L;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies a {@link RetentionPolicy} to the album index in small batches on its own background thread.
+ * <p>Batches are spread in time by the deletion rate limit and are postponed while TakePhoto is processing
+ * a photo, so cleanup doesn't compete with the camera and the decoder for the storage.</p>
+ */
+final class AlbumCleaner {
+
+    interface PauseCondition {
+        boolean shouldPause();
+    }
+
+    private static final long PAUSE_DELAY_MILLIS = 500;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final String THREAD_NAME = "TakePhoto-Cleanup";
+
+    private final AlbumIndex index;
+    private final PauseCondition pauseCondition;
+    private final ScheduledThreadPoolExecutor executor;
+    private Cleanup current;
+
+    AlbumCleaner(AlbumIndex index, PauseCondition pauseCondition) {
+        this.index = index;
+        this.pauseCondition = pauseCondition;
+        executor = new ScheduledThreadPoolExecutor(1, new CleanupThreadFactory());
+        executor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Replaces the cleanup in progress, if any.
+     */
+    synchronized void schedule(RetentionPolicy policy) {
+        cancel();
+        current = new Cleanup(policy);
+        current.scheduleNext(0);
+    }
+
+    synchronized void cancel() {
+        if (current != null) {
+            current.isCancelled = true;
+            current = null;
+        }
+    }
+
+    private class Cleanup implements Runnable {
+
+        private final RetentionPolicy policy;
+        private volatile boolean isCancelled;
+        private int deletedCount;
+
+        Cleanup(RetentionPolicy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled) {
+                return;
+            }
+
+            if (pauseCondition.shouldPause()) {
+                scheduleNext(PAUSE_DELAY_MILLIS);
+                return;
+            }
+
+            int deleted = deleteBatch();
+            deletedCount += deleted;
+            if (deleted < policy.batchSize) {
+                // the policy is met (or the rest can't be deleted).
+                L.d("Album cleanup has deleted " + deletedCount + " photos, " + policy);
+                return;
+            }
+
+            scheduleNext(deleted * 1000L / policy.deletionsPerSecond);
+        }
+
+        private int deleteBatch() {
+            int remaining = policy.batchSize;
+            if (policy.remainDays > 0) {
+                long time = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(policy.remainDays);
+                remaining -= index.evictCreatedBefore(time, remaining);
+            }
+
+            if (policy.remainCount > 0 && remaining > 0) {
+                remaining -= index.evictToCount(policy.remainCount, remaining);
+            }
+
+            if (policy.maxBytes > 0 && remaining > 0) {
+                remaining -= index.evictToBytes(policy.maxBytes, null, remaining);
+            }
+
+            return policy.batchSize - remaining;
+        }
+
+        void scheduleNext(long delayMillis) {
+            if (!isCancelled) {
+                executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static final class CleanupThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, THREAD_NAME);
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,602 @@
+package com.evgeniysharafan.takephoto.util;
+
+import com.evgeniysharafan.utils.L;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Photos of the album (name, size, creation and last access time) kept in an append-only log in the album directory.
+ * <p>The log is read once, later changes are appended to it, so cleanup doesn't list and stat the directory.
+ * Eviction walks the entries from the oldest one and stops as soon as the limit is met, so its cost depends on
+ * the number of deleted files only. The log is rewritten when most of its lines are obsolete.</p>
+ * <p>If there is no log yet (the first run or after the album has been cleared), the directory is listed once,
+ * so photos taken before the index existed are included. Later every file written into the album must be put.</p>
+ * <p>Entries are also sorted by the creation time in memory, so photos of a time range are found without
+ * listing the directory or parsing file names.</p>
+ * <p>A file which the camera will write is reserved: it gets its creation time, but it is not a photo of the album
+ * until it is put. Reservations left by a killed process become photos on the next load if their files
+ * have been written, the others are dropped.</p>
+ * <p>Photos of a job which is still running are pinned, eviction skips them. Pins are kept in memory only.</p>
+ */
+final class AlbumIndex {
+
+    static final String FILE_NAME = ".album_index";
+    // partial outputs of TakePhoto (rotation, tiled encode) and of the log compaction, they are not photos.
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private static final char OP_PUT = '+';
+    private static final char OP_REMOVE = '-';
+    private static final char OP_RESERVE = '?';
+    private static final char SEPARATOR = '\t';
+    private static final int MIN_COMPACTION_LINES = 256;
+
+    private static final Comparator<Entry> CREATION_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.creationTime != rhs.creationTime) {
+                return lhs.creationTime < rhs.creationTime ? -1 : 1;
+            }
+
+            return lhs.name.compareTo(rhs.name);
+        }
+    };
+
+    private final File dir;
+    private final File logFile;
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final NavigableSet<Entry> byCreation = new TreeSet<>(CREATION_ORDER);
+    private final Map<String, Entry> byAccess = new LinkedHashMap<>(16, 0.75f, true);
+    // name -> creation time of files which are not written yet.
+    private final Map<String, Long> reservations = new HashMap<>();
+    private final Set<String> pinned = new HashSet<>();
+    private long totalBytes;
+    private int logLines;
+    private boolean isLoaded;
+    private Writer writer;
+
+    AlbumIndex(File dir) {
+        this.dir = dir;
+        logFile = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * Adds a photo or updates its size and access time. Files outside the album are ignored.
+     */
+    synchronized void put(File file) {
+        put(file, System.currentTimeMillis());
+    }
+
+    /**
+     * @param creationTime It is used only if the photo is new and not reserved.
+     */
+    synchronized void put(File file, long creationTime) {
+        if (!isInAlbum(file)) {
+            return;
+        }
+
+        load();
+        long now = System.currentTimeMillis();
+        Entry entry = byName.get(file.getName());
+        if (entry == null) {
+            Long reservedTime = reservations.remove(file.getName());
+            entry = new Entry(file.getName(), reservedTime != null ? reservedTime : creationTime);
+            byName.put(entry.name, entry);
+            byCreation.add(entry);
+        } else {
+            totalBytes -= entry.size;
+        }
+
+        entry.size = file.length();
+        entry.accessTime = now;
+        totalBytes += entry.size;
+        byAccess.put(entry.name, entry);
+        append(entry.toLine());
+    }
+
+    /**
+     * Keeps the creation time of a file which will be written later, e.g. by the camera. It is not returned
+     * or evicted until it is put.
+     */
+    synchronized void reserve(File file, long creationTime) {
+        if (!isInAlbum(file)) {
+            return;
+        }
+
+        load();
+        if (!byName.containsKey(file.getName())) {
+            reservations.put(file.getName(), creationTime);
+            append(OP_RESERVE + file.getName() + SEPARATOR + creationTime);
+        }
+    }
+
+    /**
+     * Drops the reservation of a file which won't be written, e.g. the camera has been closed without a photo.
+     * A photo which has been put is not changed.
+     */
+    synchronized void release(File file) {
+        if (!isInAlbum(file)) {
+            return;
+        }
+
+        load();
+        if (reservations.remove(file.getName()) != null) {
+            append(OP_REMOVE + file.getName());
+        }
+    }
+
+    /**
+     * Protects a photo from eviction until it is unpinned, e.g. a photo of a batch which is not delivered yet.
+     */
+    synchronized void pin(File file) {
+        if (isInAlbum(file)) {
+            pinned.add(file.getName());
+        }
+    }
+
+    synchronized void unpin(File file) {
+        pinned.remove(file.getName());
+    }
+
+    synchronized void remove(File file) {
+        if (!isInAlbum(file)) {
+            return;
+        }
+
+        load();
+        Entry entry = byName.remove(file.getName());
+        if (entry != null) {
+            byCreation.remove(entry);
+            byAccess.remove(entry.name);
+            totalBytes -= entry.size;
+            append(OP_REMOVE + entry.name);
+        } else if (reservations.remove(file.getName()) != null) {
+            append(OP_REMOVE + file.getName());
+        }
+    }
+
+    synchronized long getTotalBytes() {
+        load();
+        return totalBytes;
+    }
+
+    synchronized int size() {
+        load();
+        return byName.size();
+    }
+
+    /**
+     * @return Creation time of the photo or -1 if it is not in the index.
+     */
+    synchronized long getCreationTime(File file) {
+        load();
+        Entry entry = dir.equals(file.getParentFile()) ? byName.get(file.getName()) : null;
+        return entry != null ? entry.creationTime : -1;
+    }
+
+    /**
+     * @return Photos created in [fromTime, toTime), from old to new. Photos deleted outside the index are skipped.
+     */
+    synchronized List<File> getCreatedBetween(long fromTime, long toTime) {
+        load();
+        List<File> files = new ArrayList<>();
+        if (fromTime >= toTime) {
+            return files;
+        }
+
+        // names are compared after the time, so the bounds are the first entries of the times.
+        for (Entry entry : byCreation.subSet(new Entry("", fromTime), true, new Entry("", toTime), false)) {
+            File file = new File(dir, entry.name);
+            if (file.exists()) {
+                files.add(file);
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * @return The latest count photos, from new to old. Photos deleted outside the index are skipped.
+     */
+    synchronized List<File> getLatest(int count) {
+        load();
+        List<File> files = new ArrayList<>(Math.min(count, byName.size()));
+        Iterator<Entry> iterator = byCreation.descendingIterator();
+        while (files.size() < count && iterator.hasNext()) {
+            File file = new File(dir, iterator.next().name);
+            if (file.exists()) {
+                files.add(file);
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Deletes the least recently used photos until the album is not bigger than maxBytes.
+     *
+     * @param keep  Photos which are never deleted, e.g. the ones which have just been taken. Can be null.
+     * @param limit The most photos to delete in this call.
+     * @return Number of deleted photos.
+     */
+    synchronized int evictToBytes(long maxBytes, Collection<File> keep, int limit) {
+        load();
+        Set<String> keptNames = new HashSet<>();
+        if (keep != null) {
+            for (File file : keep) {
+                keptNames.add(file.getName());
+            }
+        }
+
+        int count = 0;
+        Iterator<Entry> iterator = byAccess.values().iterator();
+        while (totalBytes > maxBytes && count < limit && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (keptNames.contains(entry.name) || pinned.contains(entry.name)) {
+                continue;
+            }
+
+            if (delete(entry)) {
+                iterator.remove();
+                byName.remove(entry.name);
+                byCreation.remove(entry);
+                count++;
+            }
+        }
+
+        compactIfNeeded();
+        return count;
+    }
+
+    /**
+     * Deletes the oldest photos, so only the latest count of them remain. Entries of photos deleted outside
+     * the index don't take the places of existing photos, they are dropped.
+     *
+     * @param limit The most photos to delete in this call.
+     * @return Number of deleted photos.
+     */
+    synchronized int evictToCount(int count, int limit) {
+        load();
+        int deleted = 0;
+        int kept = 0;
+        Iterator<Entry> iterator = byCreation.descendingIterator();
+        while (deleted < limit && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (kept < count && new File(dir, entry.name).exists()) {
+                kept++;
+                continue;
+            }
+
+            if (pinned.contains(entry.name)) {
+                continue;
+            }
+
+            if (delete(entry)) {
+                iterator.remove();
+                byName.remove(entry.name);
+                byAccess.remove(entry.name);
+                deleted++;
+            }
+        }
+
+        compactIfNeeded();
+        return deleted;
+    }
+
+    /**
+     * Deletes photos created before the time.
+     *
+     * @param limit The most photos to delete in this call.
+     * @return Number of deleted photos.
+     */
+    synchronized int evictCreatedBefore(long time, int limit) {
+        load();
+        int deleted = 0;
+        Iterator<Entry> iterator = byCreation.iterator();
+        while (deleted < limit && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.creationTime >= time) {
+                break;
+            }
+
+            if (pinned.contains(entry.name)) {
+                continue;
+            }
+
+            if (delete(entry)) {
+                iterator.remove();
+                byName.remove(entry.name);
+                byAccess.remove(entry.name);
+                deleted++;
+            }
+        }
+
+        compactIfNeeded();
+        return deleted;
+    }
+
+    /**
+     * Forgets all entries, call it after the album directory has been cleared.
+     */
+    synchronized void reset() {
+        closeWriter();
+        byName.clear();
+        byCreation.clear();
+        byAccess.clear();
+        reservations.clear();
+        pinned.clear();
+        totalBytes = 0;
+        logLines = 0;
+        isLoaded = false;
+        logFile.delete();
+    }
+
+    private boolean isInAlbum(File file) {
+        return dir.equals(file.getParentFile()) && isPhotoName(file.getName());
+    }
+
+    private static boolean isPhotoName(String name) {
+        return !FILE_NAME.equals(name) && !name.endsWith(TEMP_SUFFIX);
+    }
+
+    // false if the file exists but can't be deleted.
+    private boolean delete(Entry entry) {
+        File file = new File(dir, entry.name);
+        if (!file.delete() && file.exists()) {
+            L.w("Can't delete " + file);
+            return false;
+        }
+
+        totalBytes -= entry.size;
+        append(OP_REMOVE + entry.name);
+        return true;
+    }
+
+    private void load() {
+        if (isLoaded) {
+            return;
+        }
+
+        isLoaded = true;
+        if (logFile.isFile()) {
+            replay();
+            resolveReservations();
+        } else {
+            scan();
+        }
+
+        byCreation.addAll(byName.values());
+        List<Entry> entries = new ArrayList<>(byName.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.accessTime < rhs.accessTime ? -1 : (lhs.accessTime == rhs.accessTime ? 0 : 1);
+            }
+        });
+
+        for (Entry entry : entries) {
+            byAccess.put(entry.name, entry);
+            totalBytes += entry.size;
+        }
+
+        if (!logFile.isFile()) {
+            compact();
+        }
+    }
+
+    private void replay() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                logLines++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                if (line.charAt(0) == OP_REMOVE) {
+                    byName.remove(line.substring(1));
+                    reservations.remove(line.substring(1));
+                } else if (line.charAt(0) == OP_RESERVE) {
+                    String[] fields = line.substring(1).split(String.valueOf(SEPARATOR));
+                    try {
+                        if (fields.length == 2 && !byName.containsKey(fields[0])) {
+                            reservations.put(fields[0], Long.parseLong(fields[1]));
+                        }
+                    } catch (NumberFormatException e) {
+                        // a torn last line
+                    }
+                } else if (line.charAt(0) == OP_PUT) {
+                    Entry entry = Entry.fromLine(line);
+                    // logs of older versions could have temporary files.
+                    if (entry == null || !isPhotoName(entry.name)) {
+                        continue;
+                    }
+
+                    reservations.remove(entry.name);
+
+                    Entry previous = byName.get(entry.name);
+                    if (previous != null) {
+                        previous.size = entry.size;
+                        previous.accessTime = entry.accessTime;
+                    } else {
+                        byName.put(entry.name, entry);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // a torn last line is skipped by fromLine(), the rest of the log is still valid.
+            L.e(e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    // the process has been killed after the reservation: the file is a photo if the camera has written it.
+    private void resolveReservations() {
+        for (Map.Entry<String, Long> reservation : reservations.entrySet()) {
+            File file = new File(dir, reservation.getKey());
+            if (file.isFile()) {
+                Entry entry = new Entry(reservation.getKey(), reservation.getValue());
+                entry.size = file.length();
+                byName.put(entry.name, entry);
+                append(entry.toLine());
+            } else {
+                append(OP_REMOVE + reservation.getKey());
+            }
+        }
+
+        reservations.clear();
+    }
+
+    private void scan() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isFile() && isPhotoName(file.getName())) {
+                Entry entry = new Entry(file.getName(), file.lastModified());
+                entry.size = file.length();
+                byName.put(entry.name, entry);
+            }
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (logLines > MIN_COMPACTION_LINES && logLines > 2 * (byName.size() + reservations.size())) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        if (!dir.isDirectory()) {
+            return;
+        }
+
+        closeWriter();
+        File tempFile = new File(dir, FILE_NAME + TEMP_SUFFIX);
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            for (Entry entry : byCreation) {
+                out.write(entry.toLine());
+                out.write('\n');
+            }
+
+            for (Map.Entry<String, Long> reservation : reservations.entrySet()) {
+                out.write(OP_RESERVE + reservation.getKey() + SEPARATOR + reservation.getValue());
+                out.write('\n');
+            }
+
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(logFile)) {
+                throw new IOException("Can't rename " + tempFile);
+            }
+
+            logLines = byName.size() + reservations.size();
+        } catch (IOException e) {
+            L.e(e);
+            tempFile.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    // errors are only logged, the log is rebuilt by scan() if it is lost.
+    private void append(String line) {
+        try {
+            if (writer == null) {
+                if (!dir.isDirectory()) {
+                    return;
+                }
+
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8"));
+            }
+
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+            logLines++;
+        } catch (IOException e) {
+            L.e(e);
+            closeWriter();
+        }
+    }
+
+    private void closeWriter() {
+        close(writer);
+        writer = null;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        final String name;
+        final long creationTime;
+        long size;
+        long accessTime;
+
+        Entry(String name, long creationTime) {
+            this.name = name;
+            this.creationTime = creationTime;
+            accessTime = creationTime;
+        }
+
+        String toLine() {
+            return String.valueOf(OP_PUT) + name + SEPARATOR + size + SEPARATOR + creationTime + SEPARATOR
+                    + accessTime;
+        }
+
+        // null if the line is damaged.
+        static Entry fromLine(String line) {
+            String[] fields = line.substring(1).split(String.valueOf(SEPARATOR));
+            if (fields.length != 4) {
+                return null;
+            }
+
+            try {
+                Entry entry = new Entry(fields[0], Long.parseLong(fields[2]));
+                entry.size = Long.parseLong(fields[1]);
+                entry.accessTime = Long.parseLong(fields[3]);
+                return entry;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.evgeniysharafan.takephoto.util;
+
+/**
+ * Cooperative cancellation of a job. Long loops (the copy, strips of a tiled encode) check it between chunks
+ * and stop with {@link CancelledException}, a running native decode is stopped by the cancel action.
+ * <p>Pure Java, it doesn't depend on the Android SDK.</p>
+ */
+interface CancellationToken {
+
+    CancellationToken NONE = new CancellationToken() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void setCancelAction(Runnable action) {
+        }
+    };
+
+    boolean isCancelled();
+
+    /**
+     * @param action Runs on the thread which cancels, right away if the token has been cancelled already.
+     *               Pass null when the work it stops has finished.
+     */
+    void setCancelAction(Runnable action);
+
+}
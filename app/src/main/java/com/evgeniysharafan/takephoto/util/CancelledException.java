@@ -0,0 +1,23 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown by the I/O and processing code when its {@link CancellationToken} is cancelled.
+ * It is an IOException, so callers clean up partial files the same way as after a failed copy.
+ */
+final class CancelledException extends InterruptedIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    CancelledException() {
+        super("Cancelled");
+    }
+
+    static void throwIfCancelled(CancellationToken token) throws CancelledException {
+        if (token.isCancelled()) {
+            throw new CancelledException();
+        }
+    }
+
+}
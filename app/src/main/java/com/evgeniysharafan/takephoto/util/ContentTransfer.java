@@ -0,0 +1,96 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.evgeniysharafan.utils.L;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Opens content Uris for {@link FileTransfer}: a file descriptor if the provider has one, a stream otherwise.
+ */
+final class ContentTransfer {
+
+    private ContentTransfer() {
+    }
+
+    /**
+     * @return null if the provider can't open the uri.
+     */
+    static FileTransfer.Stats copy(ContentResolver resolver, Uri uri, File destination) throws IOException {
+        return copy(resolver, uri, destination, CancellationToken.NONE, null, null);
+    }
+
+    /**
+     * @param listener Null if the progress is not needed.
+     * @param tee      Gets the bytes if the provider gives a stream, see {@link FileTransfer}. Null if the bytes
+     *                 are not needed.
+     * @return null if the provider can't open the uri.
+     */
+    static FileTransfer.Stats copy(ContentResolver resolver, Uri uri, File destination, CancellationToken token,
+                                   FileTransfer.ProgressListener listener, TeeBuffer tee) throws IOException {
+        long start = System.nanoTime();
+
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = resolver.openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            L.w("Can't open a file descriptor for " + uri + ", copy the stream: " + e.getMessage());
+        }
+
+        if (descriptor != null) {
+            FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+            try {
+                // getStatSize() is -1 for pipes and sockets, transferTo() can't seek in them.
+                return copy(in, in.getChannel(), descriptor.getStatSize() >= 0, destination, start, token,
+                        listener, tee);
+            } finally {
+                FileTransfer.close(in);
+                descriptor.close();
+            }
+        }
+
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            return null;
+        }
+
+        try {
+            return copy(in, Channels.newChannel(in), false, destination, start, token, listener, tee);
+        } finally {
+            FileTransfer.close(in);
+        }
+    }
+
+    // the source is closed on cancel, it unblocks a read which waits for the provider (e.g. for a download).
+    private static FileTransfer.Stats copy(final Closeable source, ReadableByteChannel channel, boolean seekable,
+                                           File destination, long start, CancellationToken token,
+                                           FileTransfer.ProgressListener listener, TeeBuffer tee)
+            throws IOException {
+        token.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                FileTransfer.close(source);
+            }
+        });
+
+        try {
+            return FileTransfer.copy(channel, seekable, destination, start, token, listener, tee);
+        } catch (IOException e) {
+            CancelledException.throwIfCancelled(token);
+            throw e;
+        } finally {
+            token.setCancelAction(null);
+        }
+    }
+
+}
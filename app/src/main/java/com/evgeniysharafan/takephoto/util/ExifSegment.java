@@ -0,0 +1,352 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.util.Arrays;
+
+/**
+ * In-place editor of the TIFF structure inside an APP1 "Exif" segment.
+ * <p>It only changes values of existing SHORT or LONG tags and the link to the thumbnail, so nothing is moved
+ * and the segment can be copied into a new JPEG stream as is. Pure Java, it doesn't depend on the Android SDK.</p>
+ */
+final class ExifSegment {
+
+    static final int ORIENTATION_NORMAL = 1;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private static final int TAG_IMAGE_WIDTH = 0x0100;
+    private static final int TAG_IMAGE_LENGTH = 0x0101;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    private static final int TAG_GPS_IFD_POINTER = 0x8825;
+    private static final int TAG_INTEROPERABILITY_IFD_POINTER = 0xA005;
+    private static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+    private static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+    // IFD1, the embedded thumbnail
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    // bytes per value of the TIFF types 1-12
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    private final byte[] data;
+    // offset of the TIFF header, all IFD offsets are relative to it.
+    private final int tiffStart;
+    private final int end;
+    private final boolean littleEndian;
+
+    private ExifSegment(byte[] data, int tiffStart, int end, boolean littleEndian) {
+        this.data = data;
+        this.tiffStart = tiffStart;
+        this.end = end;
+        this.littleEndian = littleEndian;
+    }
+
+    /**
+     * @param data   Buffer with the APP1 payload (without the marker and the length).
+     * @param offset Start of the payload in the buffer.
+     * @param length Length of the payload.
+     * @return null if the payload is not an Exif segment.
+     */
+    static ExifSegment parse(byte[] data, int offset, int length) {
+        if (!isExif(data, offset, length) || length < EXIF_HEADER.length + 8) {
+            return null;
+        }
+
+        int tiffStart = offset + EXIF_HEADER.length;
+        boolean littleEndian;
+        if (data[tiffStart] == 'I' && data[tiffStart + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[tiffStart] == 'M' && data[tiffStart + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return null;
+        }
+
+        return new ExifSegment(data, tiffStart, offset + length, littleEndian);
+    }
+
+    /**
+     * Copies the payload into a complete APP1 segment (with the marker and the length) for a photo which
+     * has been rotated and resized: the orientation is normal and the size tags are updated.
+     * The thumbnail is dropped, it shows the source as it was, e.g. sideways or uncropped.
+     *
+     * @return null if the payload is not an Exif segment or it is too big.
+     */
+    static byte[] createNormalizedSegment(byte[] payload, int width, int height) {
+        if (payload.length + 2 > 0xFFFF) {
+            return null;
+        }
+
+        byte[] segment = new byte[payload.length + 4];
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) Jpeg.MARKER_APP1;
+        segment[2] = (byte) ((payload.length + 2) >> 8);
+        segment[3] = (byte) (payload.length + 2);
+        System.arraycopy(payload, 0, segment, 4, payload.length);
+
+        ExifSegment exif = parse(segment, 4, payload.length);
+        if (exif == null) {
+            return null;
+        }
+
+        exif.setOrientation(ORIENTATION_NORMAL);
+        exif.setImageSize(width, height);
+        int length = exif.removeThumbnail();
+        if (length < segment.length) {
+            segment = Arrays.copyOf(segment, length);
+            segment[2] = (byte) ((length - 2) >> 8);
+            segment[3] = (byte) (length - 2);
+        }
+
+        return segment;
+    }
+
+    static boolean isExif(byte[] data, int offset, int length) {
+        if (length < EXIF_HEADER.length) {
+            return false;
+        }
+
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (data[offset + i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return Orientation tag value (1-8) or 0 if the tag doesn't exist.
+     */
+    int getOrientation() {
+        int entry = findEntry(getIfd0(), TAG_ORIENTATION);
+        return entry >= 0 ? readEntryValue(entry) : 0;
+    }
+
+    boolean setOrientation(int orientation) {
+        return writeEntryValue(findEntry(getIfd0(), TAG_ORIENTATION), orientation);
+    }
+
+    /**
+     * Updates ImageWidth/ImageLength in IFD0 and PixelXDimension/PixelYDimension in the Exif IFD if they exist.
+     */
+    void setImageSize(int width, int height) {
+        int ifd0 = getIfd0();
+        writeEntryValue(findEntry(ifd0, TAG_IMAGE_WIDTH), width);
+        writeEntryValue(findEntry(ifd0, TAG_IMAGE_LENGTH), height);
+
+        int exifIfdEntry = findEntry(ifd0, TAG_EXIF_IFD_POINTER);
+        if (exifIfdEntry >= 0) {
+            int exifIfd = toAbsolute(readEntryValue(exifIfdEntry));
+            writeEntryValue(findEntry(exifIfd, TAG_PIXEL_X_DIMENSION), width);
+            writeEntryValue(findEntry(exifIfd, TAG_PIXEL_Y_DIMENSION), height);
+        }
+    }
+
+    /**
+     * @return Offset of the embedded JPEG thumbnail in the buffer or -1 if there is none.
+     * The thumbnail has the orientation of the photo.
+     */
+    int getThumbnailOffset() {
+        int ifd1 = getIfd1();
+        int entry = findEntry(ifd1, TAG_JPEG_INTERCHANGE_FORMAT);
+        int offset = entry >= 0 ? toAbsolute(readEntryValue(entry)) : -1;
+        int length = getThumbnailLength();
+        // the length comes from the file, offset + length can overflow.
+        return offset >= 0 && length > 0 && length <= end - offset ? offset : -1;
+    }
+
+    int getThumbnailLength() {
+        int entry = findEntry(getIfd1(), TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+        return entry >= 0 ? readEntryValue(entry) : 0;
+    }
+
+    /**
+     * Unlinks IFD1, so readers don't see the thumbnail any more.
+     *
+     * @return End of the data referenced by IFD0 and its sub-IFDs. The thumbnail is usually stored after it,
+     * so the buffer can be cut there. It is the end of the segment if the layout is not understood.
+     */
+    int removeThumbnail() {
+        int ifd0 = getIfd0();
+        if (ifd0 < 0 || ifd0 + 2 > end) {
+            return end;
+        }
+
+        int next = ifd0 + 2 + readShort(ifd0) * IFD_ENTRY_SIZE;
+        if (next + 4 > end) {
+            return end;
+        }
+
+        writeInt(next, 0);
+        int usedEnd = getUsedEnd(ifd0, 0);
+        return usedEnd >= 0 ? usedEnd : end;
+    }
+
+    /**
+     * Converts Exif orientation (1-8) to clockwise rotation degrees, mirrored orientations are ignored.
+     */
+    static int orientationToDegrees(int orientation) {
+        switch (orientation) {
+            case 3:
+                return 180;
+            case 6:
+                return 90;
+            case 8:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    private int getIfd0() {
+        return toAbsolute(readInt(tiffStart + 4));
+    }
+
+    // the offset of the next IFD follows the entries of IFD0.
+    private int getIfd1() {
+        int ifd0 = getIfd0();
+        if (ifd0 < 0 || ifd0 + 2 > end) {
+            return -1;
+        }
+
+        int next = ifd0 + 2 + readShort(ifd0) * IFD_ENTRY_SIZE;
+        return next + 4 <= end ? toAbsolute(readInt(next)) : -1;
+    }
+
+    // the end of the IFD and of all values and sub-IFDs it points to, or -1 if something is out of bounds.
+    private int getUsedEnd(int ifd, int depth) {
+        if (ifd < 0 || ifd + 2 > end || depth > 2) {
+            return -1;
+        }
+
+        int count = readShort(ifd);
+        int usedEnd = ifd + 2 + count * IFD_ENTRY_SIZE + 4;
+        if (usedEnd > end) {
+            return -1;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * IFD_ENTRY_SIZE;
+            int tag = readShort(entry);
+            int type = readShort(entry + 2);
+            if (type < 1 || type >= TYPE_SIZES.length) {
+                return -1;
+            }
+
+            long size = (readInt(entry + 4) & 0xFFFFFFFFL) * TYPE_SIZES[type];
+            if (size > 4) {
+                int offset = toAbsolute(readInt(entry + 8));
+                if (offset < 0 || size > end - offset) {
+                    return -1;
+                }
+
+                usedEnd = Math.max(usedEnd, offset + (int) size);
+            }
+
+            if (tag == TAG_EXIF_IFD_POINTER || tag == TAG_GPS_IFD_POINTER
+                    || tag == TAG_INTEROPERABILITY_IFD_POINTER) {
+                int subIfdEnd = getUsedEnd(toAbsolute(readEntryValue(entry)), depth + 1);
+                if (subIfdEnd < 0) {
+                    return -1;
+                }
+
+                usedEnd = Math.max(usedEnd, subIfdEnd);
+            }
+        }
+
+        return usedEnd;
+    }
+
+    private int toAbsolute(int tiffOffset) {
+        if (tiffOffset < 8 || tiffOffset > end - tiffStart) {
+            return -1;
+        }
+
+        return tiffStart + tiffOffset;
+    }
+
+    // returns the absolute offset of the IFD entry or -1.
+    private int findEntry(int ifd, int tag) {
+        if (ifd < 0 || ifd + 2 > end) {
+            return -1;
+        }
+
+        int count = readShort(ifd);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * IFD_ENTRY_SIZE;
+            if (entry + IFD_ENTRY_SIZE > end) {
+                return -1;
+            }
+
+            if (readShort(entry) == tag) {
+                return entry;
+            }
+        }
+
+        return -1;
+    }
+
+    private int readEntryValue(int entry) {
+        int type = readShort(entry + 2);
+        if (type == TYPE_SHORT) {
+            return readShort(entry + 8);
+        } else if (type == TYPE_LONG) {
+            return readInt(entry + 8);
+        }
+
+        return 0;
+    }
+
+    private boolean writeEntryValue(int entry, int value) {
+        if (entry < 0 || readInt(entry + 4) != 1) {
+            return false;
+        }
+
+        int type = readShort(entry + 2);
+        if (type == TYPE_SHORT && value <= 0xFFFF) {
+            writeShort(entry + 8, value);
+            return true;
+        } else if (type == TYPE_LONG) {
+            writeInt(entry + 8, value);
+            return true;
+        }
+
+        return false;
+    }
+
+    private int readShort(int offset) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private int readInt(int offset) {
+        int s0 = readShort(offset);
+        int s1 = readShort(offset + 2);
+        return littleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+    }
+
+    private void writeShort(int offset, int value) {
+        byte high = (byte) (value >> 8);
+        byte low = (byte) value;
+        data[offset] = littleEndian ? low : high;
+        data[offset + 1] = littleEndian ? high : low;
+    }
+
+    private void writeInt(int offset, int value) {
+        if (littleEndian) {
+            writeShort(offset, value & 0xFFFF);
+            writeShort(offset + 2, value >>> 16);
+        } else {
+            writeShort(offset, value >>> 16);
+            writeShort(offset + 2, value & 0xFFFF);
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Copies a picked photo to a file.
+ * <p>If the source is a regular file (a file path or a file descriptor from the content provider), the bytes are
+ * moved by {@link FileChannel#transferTo} without passing through the Java heap. Pipes and plain streams
+ * are copied through a big direct buffer.</p>
+ * <p>The JPEG header is parsed on the way, see {@link Stats#header}. If all bytes go through the buffer,
+ * their hash is computed too, see {@link Stats#digest}.</p>
+ * <p>The {@link CancellationToken} is checked after every chunk, a cancelled copy deletes the destination
+ * and throws {@link CancelledException}. The {@link ProgressListener} gets the size of every chunk.</p>
+ * <p>Streamed bytes can be teed to a {@link TeeBuffer}, so another thread reads them while the copy goes on.</p>
+ * <p>Pure Java, it doesn't depend on the Android SDK. Content Uris are opened by {@link ContentTransfer}.</p>
+ */
+final class FileTransfer {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // transferTo() can move the whole file at once, it is split to check the cancellation in between.
+    private static final long TRANSFER_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // one buffer per processing thread, direct buffers are expensive to allocate.
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private FileTransfer() {
+    }
+
+    interface ProgressListener {
+        /**
+         * Called on the copying thread after every chunk.
+         *
+         * @param count Bytes written by the chunk.
+         */
+        void onTransferred(long count);
+    }
+
+    static Stats copy(File source, File destination) throws IOException {
+        return copy(source, destination, CancellationToken.NONE);
+    }
+
+    static Stats copy(File source, File destination, CancellationToken token) throws IOException {
+        return copy(source, destination, token, null);
+    }
+
+    static Stats copy(File source, File destination, CancellationToken token, ProgressListener listener)
+            throws IOException {
+        long start = System.nanoTime();
+        FileInputStream in = new FileInputStream(source);
+        try {
+            return copy(in.getChannel(), true, destination, start, token, listener, null);
+        } finally {
+            close(in);
+        }
+    }
+
+    static Stats copy(ReadableByteChannel source, boolean seekable, File destination, long start)
+            throws IOException {
+        return copy(source, seekable, destination, start, CancellationToken.NONE, null, null);
+    }
+
+    /**
+     * @param seekable True if the source is a FileChannel of a regular file, so transferTo() can be used.
+     * @param start    System.nanoTime() when the copy has started, e.g. before the source was opened.
+     * @param listener Null if the progress is not needed.
+     * @param tee      Gets every streamed chunk, it is broken if transferTo() has moved the bytes. It is finished
+     *                 when the copy ends. Null if the bytes are not needed.
+     */
+    static Stats copy(ReadableByteChannel source, boolean seekable, File destination, long start,
+                      CancellationToken token, ProgressListener listener, TeeBuffer tee) throws IOException {
+        if (token.isCancelled() && tee != null) {
+            tee.finish(false);
+        }
+
+        CancelledException.throwIfCancelled(token);
+        FileOutputStream out = new FileOutputStream(destination);
+        boolean isCopied = false;
+        try {
+            FileChannel target = out.getChannel();
+            JpegHeader.Parser parser = new JpegHeader.Parser();
+            long transferred = 0;
+
+            if (seekable) {
+                FileChannel file = (FileChannel) source;
+                long size = file.size();
+                long position = file.position();
+                readHeader(file, position, parser);
+
+                while (transferred < size - position) {
+                    long count = file.transferTo(position + transferred,
+                            Math.min(TRANSFER_CHUNK_SIZE, size - position - transferred), target);
+                    if (count <= 0) {
+                        break;
+                    }
+
+                    transferred += count;
+                    if (listener != null) {
+                        listener.onTransferred(count);
+                    }
+
+                    CancelledException.throwIfCancelled(token);
+                }
+
+                // the rest if the file has grown or transferTo() has stopped early.
+                file.position(position + transferred);
+            }
+
+            // transferTo() doesn't pass the bytes through the heap.
+            if (transferred > 0 && tee != null) {
+                tee.finish(false);
+                tee = null;
+            }
+
+            MessageDigest digest = transferred == 0 ? createDigest() : null;
+            long streamed = stream(source, target, parser, digest, token, listener, tee);
+            isCopied = true;
+            return new Stats(transferred + streamed, transferred, System.nanoTime() - start,
+                    parser.getHeader(), digest != null ? digest.digest() : null);
+        } finally {
+            close(out);
+            if (tee != null) {
+                tee.finish(isCopied);
+            }
+
+            if (!isCopied && token.isCancelled()) {
+                destination.delete();
+            }
+        }
+    }
+
+    // positional reads of the same descriptor, the bytes of the header are not copied here.
+    private static void readHeader(FileChannel file, long position, JpegHeader.Parser parser) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        while (!parser.isDone()) {
+            buffer.clear();
+            int count = file.read(buffer, position);
+            if (count <= 0) {
+                break;
+            }
+
+            buffer.flip();
+            parser.update(buffer);
+            position += count;
+        }
+    }
+
+    // null if there is no SHA-1, it is required on every Java platform though.
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static long stream(ReadableByteChannel source, FileChannel target, JpegHeader.Parser parser,
+                               MessageDigest digest, CancellationToken token, ProgressListener listener,
+                               TeeBuffer tee) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        boolean isTeeing = tee != null;
+
+        long total = 0;
+        while (source.read(buffer) != -1) {
+            buffer.flip();
+            int count = buffer.remaining();
+            if (!parser.isDone()) {
+                parser.update(buffer);
+            }
+
+            if (digest != null) {
+                digest.update(buffer.duplicate());
+            }
+
+            // a broken or closed tee doesn't need the next chunks.
+            if (isTeeing) {
+                isTeeing = tee.offer(buffer);
+            }
+
+            while (buffer.hasRemaining()) {
+                total += target.write(buffer);
+            }
+
+            if (listener != null) {
+                listener.onTransferred(count);
+            }
+
+            buffer.clear();
+            CancelledException.throwIfCancelled(token);
+        }
+
+        return total;
+    }
+
+    static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Result of one copy.
+     */
+    static final class Stats {
+
+        final long bytes;
+        // bytes moved by transferTo(), the rest went through the buffer.
+        final long zeroCopyBytes;
+        final long durationNanos;
+        // null if the photo is not a JPEG.
+        final JpegHeader header;
+        // SHA-1 of the content or null if it has been moved by transferTo().
+        final byte[] digest;
+
+        Stats(long bytes, long zeroCopyBytes, long durationNanos, JpegHeader header, byte[] digest) {
+            this.bytes = bytes;
+            this.zeroCopyBytes = zeroCopyBytes;
+            this.durationNanos = durationNanos;
+            this.header = header;
+            this.digest = digest;
+        }
+
+        long getBytesPerSecond() {
+            return durationNanos > 0 ? bytes * 1000000000L / durationNanos : bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Copied %d bytes (%d zero-copy) in %d ms, %d KB/s", bytes, zeroCopyBytes,
+                    durationNanos / 1000000, getBytesPerSecond() / 1024);
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.evgeniysharafan.takephoto.util;
+
+import com.evgeniysharafan.takephoto.util.JobMetrics.Stage;
+
+import java.util.Arrays;
+
+/**
+ * In-memory histograms of job times, e.g. to send p50 and p95 of every stage from the field.
+ * Example: TakePhoto.getInstance().setJobMetricsListener(histogram);
+ * and later histogram.getPercentileMillis(Stage.DECODE, 95);
+ * <p>Bucket bounds grow by 10%, so a percentile is accurate within 10% and the memory doesn't depend
+ * on the number of jobs. A stage is counted only for jobs which have it.</p>
+ */
+public class HistogramMetrics implements TakePhoto.OnJobMetricsListener {
+
+    private static final double BUCKET_GROWTH = 1.1;
+    // the last bucket is about 190 seconds.
+    private static final int BUCKET_COUNT = 200;
+    private static final double LOG_GROWTH = Math.log(BUCKET_GROWTH);
+
+    private final long[][] stageCounts = new long[Stage.values().length][BUCKET_COUNT];
+    private final long[] totalCounts = new long[BUCKET_COUNT];
+    private int jobCount;
+    private int failedJobCount;
+
+    @Override
+    public synchronized void onJobMetrics(JobMetrics metrics) {
+        jobCount++;
+        if (!metrics.isSuccessful()) {
+            failedJobCount++;
+        }
+
+        for (Stage stage : Stage.values()) {
+            long nanos = metrics.getStageNanos(stage);
+            if (nanos > 0) {
+                stageCounts[stage.ordinal()][getBucket(nanos)]++;
+            }
+        }
+
+        totalCounts[getBucket(metrics.getTotalNanos())]++;
+    }
+
+    /**
+     * @param percentile 0-100, e.g. 50 or 95.
+     * @return Upper bound of the percentile or 0 if there were no jobs with the stage.
+     */
+    public synchronized double getPercentileMillis(Stage stage, double percentile) {
+        return getPercentileMillis(stageCounts[stage.ordinal()], percentile);
+    }
+
+    /**
+     * @see #getPercentileMillis(Stage, double)
+     */
+    public synchronized double getTotalPercentileMillis(double percentile) {
+        return getPercentileMillis(totalCounts, percentile);
+    }
+
+    public synchronized int getJobCount() {
+        return jobCount;
+    }
+
+    public synchronized int getFailedJobCount() {
+        return failedJobCount;
+    }
+
+    public synchronized void reset() {
+        for (long[] counts : stageCounts) {
+            Arrays.fill(counts, 0);
+        }
+
+        Arrays.fill(totalCounts, 0);
+        jobCount = 0;
+        failedJobCount = 0;
+    }
+
+    private static double getPercentileMillis(long[] counts, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile should be in 0..100");
+        }
+
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return getUpperBoundMicros(i) / 1000;
+            }
+        }
+
+        return getUpperBoundMicros(counts.length - 1) / 1000;
+    }
+
+    // bucket 0 is up to 1 microsecond, bucket i is up to 1.1^i microseconds.
+    private static int getBucket(long nanos) {
+        double micros = nanos / 1000.0;
+        if (micros <= 1) {
+            return 0;
+        }
+
+        return Math.min(BUCKET_COUNT - 1, (int) Math.ceil(Math.log(micros) / LOG_GROWTH));
+    }
+
+    private static double getUpperBoundMicros(int bucket) {
+        return Math.pow(BUCKET_GROWTH, bucket);
+    }
+
+}
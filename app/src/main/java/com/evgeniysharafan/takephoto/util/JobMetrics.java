@@ -0,0 +1,146 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.graphics.Bitmap;
+
+import java.util.Locale;
+
+/**
+ * Timings and sizes of one job: from onActivityResult() to the delivery of a photo (or of one photo of a batch).
+ * <p>Stage times are summed, e.g. decoding of all strips of a tiled photo or all encodes of a quality search.
+ * Time spent in the executor queue is a part of {@link #getTotalNanos()} only.</p>
+ */
+public final class JobMetrics {
+
+    public enum Stage {
+        // restoring the launch state after the process has been killed
+        RESTORE_STATE,
+        // looking up the file path of a MediaStore photo
+        RESOLVE_SOURCE,
+        COPY,
+        ORIENTATION_CHECK,
+        DECODE,
+        // scaling, cropping and rotation, including lossless JPEG rotation
+        TRANSFORM,
+        ENCODE,
+        EXIF_WRITE,
+        // from the end of processing to the return from the listener on the main thread
+        DELIVERY
+    }
+
+    // the job of the current thread, so deep stages don't need a parameter for it.
+    private static final ThreadLocal<JobMetrics> current = new ThreadLocal<>();
+
+    private final long startNanos;
+    private final long[] stageNanos = new long[Stage.values().length];
+    private long totalNanos;
+    private long bytesIn;
+    private long bytesOut;
+    private long decodedPixels;
+    private long peakBitmapBytes;
+    private boolean isSuccessful;
+
+    JobMetrics(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    public long getStageNanos(Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    // bytes of the source photo which have been read or copied.
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    // total size of the delivered files.
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getDecodedPixels() {
+        return decodedPixels;
+    }
+
+    // the biggest bitmap of the job, it is a lower bound of the peak memory.
+    public long getPeakBitmapBytes() {
+        return peakBitmapBytes;
+    }
+
+    public boolean isSuccessful() {
+        return isSuccessful;
+    }
+
+    void finish(boolean isSuccessful, long bytesOut) {
+        this.isSuccessful = isSuccessful;
+        this.bytesOut += bytesOut;
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    void addStage(Stage stage, long nanos) {
+        stageNanos[stage.ordinal()] += nanos;
+    }
+
+    static void attach(JobMetrics metrics) {
+        current.set(metrics);
+    }
+
+    /**
+     * @return The job of the current thread or null, it is not the current job anymore.
+     */
+    static JobMetrics detach() {
+        JobMetrics metrics = current.get();
+        current.remove();
+        return metrics;
+    }
+
+    /**
+     * Adds the time since startNanos to the stage of the current job, if there is one.
+     */
+    static void stage(Stage stage, long startNanos) {
+        JobMetrics metrics = current.get();
+        if (metrics != null) {
+            metrics.addStage(stage, System.nanoTime() - startNanos);
+        }
+    }
+
+    static void readBytes(long bytes) {
+        JobMetrics metrics = current.get();
+        if (metrics != null) {
+            metrics.bytesIn += bytes;
+        }
+    }
+
+    static void decoded(Bitmap bitmap) {
+        JobMetrics metrics = current.get();
+        if (metrics != null) {
+            metrics.decodedPixels += (long) bitmap.getWidth() * bitmap.getHeight();
+            allocated(bitmap);
+        }
+    }
+
+    static void allocated(Bitmap bitmap) {
+        JobMetrics metrics = current.get();
+        if (metrics != null) {
+            metrics.peakBitmapBytes = Math.max(metrics.peakBitmapBytes, bitmap.getByteCount());
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("JobMetrics{");
+        for (Stage stage : Stage.values()) {
+            builder.append(stage.name().toLowerCase(Locale.US)).append('=')
+                    .append(getStageNanos(stage) / 1000000).append("ms, ");
+        }
+
+        return builder.append("total=").append(totalNanos / 1000000).append("ms, bytesIn=").append(bytesIn)
+                .append(", bytesOut=").append(bytesOut).append(", decodedPixels=").append(decodedPixels)
+                .append(", peakBitmapBytes=").append(peakBitmapBytes).append(", successful=").append(isSuccessful)
+                .append('}').toString();
+    }
+
+}
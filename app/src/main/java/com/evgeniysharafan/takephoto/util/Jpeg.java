@@ -0,0 +1,109 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * JPEG constants and helpers shared by the pure Java JPEG code of TakePhoto.
+ */
+final class Jpeg {
+
+    static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    static final int[] NATURAL_TO_ZIGZAG = new int[64];
+
+    static {
+        for (int i = 0; i < 64; i++) {
+            NATURAL_TO_ZIGZAG[ZIGZAG[i]] = i;
+        }
+    }
+
+    static final int MARKER_SOF0 = 0xC0;
+    static final int MARKER_SOF1 = 0xC1;
+    static final int MARKER_SOF15 = 0xCF;
+    static final int MARKER_DHT = 0xC4;
+    static final int MARKER_DAC = 0xCC;
+    static final int MARKER_RST0 = 0xD0;
+    static final int MARKER_RST7 = 0xD7;
+    static final int MARKER_SOI = 0xD8;
+    static final int MARKER_EOI = 0xD9;
+    static final int MARKER_SOS = 0xDA;
+    static final int MARKER_DQT = 0xDB;
+    static final int MARKER_DRI = 0xDD;
+    static final int MARKER_APP0 = 0xE0;
+    static final int MARKER_APP1 = 0xE1;
+    static final int MARKER_APP15 = 0xEF;
+    static final int MARKER_COM = 0xFE;
+
+    // Quantization tables from the JPEG specification (Annex K.1), natural order, quality 50.
+    private static final int[] STANDARD_LUMINANCE_QUANT_TABLE = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    private static final int[] STANDARD_CHROMINANCE_QUANT_TABLE = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    private Jpeg() {
+    }
+
+    static boolean isSofMarker(int marker) {
+        return marker >= MARKER_SOF0 && marker <= MARKER_SOF15 && marker != MARKER_DHT && marker != MARKER_DAC
+                && marker != 0xC8;
+    }
+
+    static boolean isRestartMarker(int marker) {
+        return marker >= MARKER_RST0 && marker <= MARKER_RST7;
+    }
+
+    /**
+     * @return Standard quantization table scaled for the quality (1-100) like libjpeg does it, natural order.
+     */
+    static int[] getQuantTable(boolean luminance, int quality) {
+        quality = Math.max(1, Math.min(100, quality));
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+
+        int[] base = luminance ? STANDARD_LUMINANCE_QUANT_TABLE : STANDARD_CHROMINANCE_QUANT_TABLE;
+        int[] table = new int[64];
+        for (int i = 0; i < 64; i++) {
+            table[i] = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+        }
+
+        return table;
+    }
+
+    static void writeMarker(OutputStream out, int marker, int payloadLength) throws IOException {
+        out.write(0xFF);
+        out.write(marker);
+        writeShort(out, payloadLength + 2);
+    }
+
+    static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+}
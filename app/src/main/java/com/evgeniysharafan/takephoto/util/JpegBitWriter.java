@@ -0,0 +1,39 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes entropy coded JPEG data with 0xFF byte stuffing.
+ */
+final class JpegBitWriter {
+
+    private final OutputStream out;
+    private int buffer;
+    private int count;
+
+    JpegBitWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    void write(int value, int length) throws IOException {
+        buffer = (buffer << length) | (value & ((1 << length) - 1));
+        count += length;
+        while (count >= 8) {
+            count -= 8;
+            int b = (buffer >> count) & 0xFF;
+            out.write(b);
+            if (b == 0xFF) {
+                out.write(0);
+            }
+        }
+    }
+
+    // pads the last byte with 1 bits.
+    void flush() throws IOException {
+        if (count > 0) {
+            write(0x7F, 8 - count);
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Dimensions, orientation and the Exif segment of a JPEG, captured from the bytes before the first scan.
+ * <p>{@link Parser} is fed with chunks while a photo is copied, so later stages don't need to open the file
+ * again to read its header. Pure Java, it doesn't depend on the Android SDK.</p>
+ */
+final class JpegHeader {
+
+    final int width;
+    final int height;
+    final boolean isBaseline;
+    // Exif orientation (1-8) or 0 if it is unknown.
+    final int orientation;
+    // APP1 payload (without the marker and the length) or null.
+    final byte[] exif;
+
+    private JpegHeader(int width, int height, boolean isBaseline, int orientation, byte[] exif) {
+        this.width = width;
+        this.height = height;
+        this.isBaseline = isBaseline;
+        this.orientation = orientation;
+        this.exif = exif;
+    }
+
+    /**
+     * Clockwise rotation from the Exif orientation, mirrored orientations are ignored.
+     */
+    int getRotationDegrees() {
+        return ExifSegment.orientationToDegrees(orientation);
+    }
+
+    /**
+     * Reads only the header of the file.
+     *
+     * @return null if the file is not a JPEG.
+     */
+    static JpegHeader read(File file) throws IOException {
+        Parser parser = new Parser();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int count;
+            while (!parser.isDone() && (count = in.read(buffer)) != -1) {
+                parser.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+
+        return parser.getHeader();
+    }
+
+    /**
+     * Incremental JPEG marker parser, it stops at the first SOS or at the first error.
+     */
+    static final class Parser {
+
+        private static final int STATE_SOI_FF = 0;
+        private static final int STATE_SOI_D8 = 1;
+        private static final int STATE_MARKER_FF = 2;
+        private static final int STATE_MARKER = 3;
+        private static final int STATE_LENGTH_HIGH = 4;
+        private static final int STATE_LENGTH_LOW = 5;
+        private static final int STATE_PAYLOAD = 6;
+        private static final int STATE_DONE = 7;
+        private static final int STATE_INVALID = 8;
+
+        private int state = STATE_SOI_FF;
+        private int marker;
+        private int length;
+
+        // payload of APP1 or SOFn being captured, null if the payload is skipped.
+        private byte[] payload;
+        private int payloadPosition;
+        private int remaining;
+
+        private int width;
+        private int height;
+        private boolean isBaseline;
+        private int orientation;
+        private byte[] exif;
+
+        boolean isDone() {
+            return state == STATE_DONE || state == STATE_INVALID;
+        }
+
+        /**
+         * @return null until a frame header is found or if the stream is not a JPEG.
+         */
+        JpegHeader getHeader() {
+            if (state == STATE_INVALID || width <= 0 || height <= 0) {
+                return null;
+            }
+
+            return new JpegHeader(width, height, isBaseline, orientation, exif);
+        }
+
+        void update(byte[] data, int offset, int count) {
+            int end = offset + count;
+            while (offset < end && !isDone()) {
+                if (state == STATE_PAYLOAD) {
+                    int chunk = Math.min(remaining, end - offset);
+                    if (payload != null) {
+                        System.arraycopy(data, offset, payload, payloadPosition, chunk);
+                        payloadPosition += chunk;
+                    }
+
+                    offset += chunk;
+                    remaining -= chunk;
+                    if (remaining == 0) {
+                        onSegmentEnd();
+                    }
+                } else {
+                    onByte(data[offset++] & 0xFF);
+                }
+            }
+        }
+
+        /**
+         * Reads the bytes between the position and the limit, the position of the buffer is not changed.
+         */
+        void update(ByteBuffer buffer) {
+            int position = buffer.position();
+            int limit = buffer.limit();
+            while (position < limit && !isDone()) {
+                if (state == STATE_PAYLOAD) {
+                    int chunk = Math.min(remaining, limit - position);
+                    if (payload != null) {
+                        for (int i = 0; i < chunk; i++) {
+                            payload[payloadPosition++] = buffer.get(position + i);
+                        }
+                    }
+
+                    position += chunk;
+                    remaining -= chunk;
+                    if (remaining == 0) {
+                        onSegmentEnd();
+                    }
+                } else {
+                    onByte(buffer.get(position++) & 0xFF);
+                }
+            }
+        }
+
+        private void onByte(int value) {
+            switch (state) {
+                case STATE_SOI_FF:
+                    state = value == 0xFF ? STATE_SOI_D8 : STATE_INVALID;
+                    break;
+
+                case STATE_SOI_D8:
+                    state = value == Jpeg.MARKER_SOI ? STATE_MARKER_FF : STATE_INVALID;
+                    break;
+
+                case STATE_MARKER_FF:
+                    state = value == 0xFF ? STATE_MARKER : STATE_INVALID;
+                    break;
+
+                case STATE_MARKER:
+                    onMarker(value);
+                    break;
+
+                case STATE_LENGTH_HIGH:
+                    length = value << 8;
+                    state = STATE_LENGTH_LOW;
+                    break;
+
+                case STATE_LENGTH_LOW:
+                    length |= value;
+                    onSegmentStart();
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        private void onMarker(int value) {
+            if (value == 0xFF) {
+                // fill bytes
+                return;
+            }
+
+            marker = value;
+            if (marker == Jpeg.MARKER_SOS || marker == Jpeg.MARKER_EOI) {
+                state = STATE_DONE;
+            } else if (Jpeg.isRestartMarker(marker) || marker == 0x01) {
+                // standalone markers without a length
+                state = STATE_MARKER_FF;
+            } else {
+                state = STATE_LENGTH_HIGH;
+            }
+        }
+
+        private void onSegmentStart() {
+            if (length < 2) {
+                state = STATE_INVALID;
+                return;
+            }
+
+            remaining = length - 2;
+            payloadPosition = 0;
+            boolean capture = (marker == Jpeg.MARKER_APP1 && exif == null) || (Jpeg.isSofMarker(marker) && width == 0);
+            payload = capture ? new byte[remaining] : null;
+
+            if (remaining == 0) {
+                onSegmentEnd();
+            } else {
+                state = STATE_PAYLOAD;
+            }
+        }
+
+        private void onSegmentEnd() {
+            if (payload != null) {
+                if (marker == Jpeg.MARKER_APP1) {
+                    ExifSegment segment = ExifSegment.parse(payload, 0, payload.length);
+                    if (segment != null) {
+                        exif = payload;
+                        orientation = segment.getOrientation();
+                    }
+                } else if (payload.length >= 5) {
+                    height = ((payload[1] & 0xFF) << 8) | (payload[2] & 0xFF);
+                    width = ((payload[3] & 0xFF) << 8) | (payload[4] & 0xFF);
+                    isBaseline = marker == Jpeg.MARKER_SOF0 || marker == Jpeg.MARKER_SOF1;
+                }
+            }
+
+            payload = null;
+            state = STATE_MARKER_FF;
+        }
+    }
+
+}
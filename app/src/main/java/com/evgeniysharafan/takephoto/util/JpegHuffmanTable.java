@@ -0,0 +1,237 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Huffman table of a JPEG stream: lookup tables for decoding or codes for encoding.
+ * <p>{@code bits[i]} is the number of codes of length i (1-16), {@code values} are symbols in code order.</p>
+ */
+final class JpegHuffmanTable {
+
+    static final int LOOKAHEAD_BITS = 8;
+
+    final int[] bits;
+    final int[] values;
+
+    // decoding
+    int[] maxCodes;
+    int[] minCodes;
+    int[] valueOffsets;
+    int[] lookupLengths;
+    int[] lookupValues;
+
+    // encoding
+    int[] codes;
+    int[] codeLengths;
+
+    // Standard tables from the JPEG specification (Annex K.3), they contain all possible symbols.
+    private static final int[] STANDARD_DC_LUMINANCE_BITS = {0, 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] STANDARD_DC_CHROMINANCE_BITS = {0, 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] STANDARD_DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+    private static final int[] STANDARD_AC_LUMINANCE_BITS = {0, 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7D};
+    private static final int[] STANDARD_AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xA1, 0x08, 0x23, 0x42, 0xB1, 0xC1, 0x15, 0x52, 0xD1, 0xF0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0A, 0x16, 0x17, 0x18, 0x19, 0x1A, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2A, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7A, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8A, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5, 0xA6, 0xA7,
+            0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3, 0xC4, 0xC5,
+            0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4, 0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA, 0xE1, 0xE2,
+            0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA, 0xF1, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+            0xF9, 0xFA
+    };
+
+    private static final int[] STANDARD_AC_CHROMINANCE_BITS = {0, 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] STANDARD_AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xA1, 0xB1, 0xC1, 0x09, 0x23, 0x33, 0x52, 0xF0,
+            0x15, 0x62, 0x72, 0xD1, 0x0A, 0x16, 0x24, 0x34, 0xE1, 0x25, 0xF1, 0x17, 0x18, 0x19, 0x1A, 0x26,
+            0x27, 0x28, 0x29, 0x2A, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7A, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8A, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5,
+            0xA6, 0xA7, 0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3,
+            0xC4, 0xC5, 0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4, 0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA,
+            0xE2, 0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+            0xF9, 0xFA
+    };
+
+    private JpegHuffmanTable(int[] bits, int[] values) {
+        this.bits = bits;
+        this.values = values;
+    }
+
+    static JpegHuffmanTable forDecoding(int[] bits, int[] values) {
+        JpegHuffmanTable table = new JpegHuffmanTable(bits, values);
+        table.maxCodes = new int[18];
+        table.minCodes = new int[17];
+        table.valueOffsets = new int[17];
+        table.lookupLengths = new int[1 << LOOKAHEAD_BITS];
+        table.lookupValues = new int[1 << LOOKAHEAD_BITS];
+
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            table.valueOffsets[length] = k;
+            table.minCodes[length] = code;
+            for (int i = 0; i < bits[length]; i++) {
+                if (length <= LOOKAHEAD_BITS) {
+                    int shift = LOOKAHEAD_BITS - length;
+                    int first = code << shift;
+                    for (int j = 0; j < (1 << shift); j++) {
+                        table.lookupLengths[first + j] = length;
+                        table.lookupValues[first + j] = values[k];
+                    }
+                }
+                code++;
+                k++;
+            }
+            table.maxCodes[length] = bits[length] > 0 ? code - 1 : -1;
+            code <<= 1;
+        }
+        table.maxCodes[17] = Integer.MAX_VALUE;
+
+        return table;
+    }
+
+    // JPEG Annex K.2: code lengths limited to 16 bits, symbol 256 reserves the all-ones code.
+    static JpegHuffmanTable optimal(int[] frequencies) {
+        int[] frequency = frequencies.clone();
+        frequency[256] = 1;
+        int[] codeSize = new int[257];
+        int[] others = new int[257];
+        for (int i = 0; i < others.length; i++) {
+            others[i] = -1;
+        }
+
+        while (true) {
+            int c1 = -1;
+            long v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (frequency[i] != 0 && frequency[i] <= v) {
+                    v = frequency[i];
+                    c1 = i;
+                }
+            }
+
+            int c2 = -1;
+            v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (frequency[i] != 0 && frequency[i] <= v && i != c1) {
+                    v = frequency[i];
+                    c2 = i;
+                }
+            }
+
+            if (c2 < 0) {
+                break;
+            }
+
+            frequency[c1] += frequency[c2];
+            frequency[c2] = 0;
+
+            codeSize[c1]++;
+            while (others[c1] >= 0) {
+                c1 = others[c1];
+                codeSize[c1]++;
+            }
+            others[c1] = c2;
+
+            codeSize[c2]++;
+            while (others[c2] >= 0) {
+                c2 = others[c2];
+                codeSize[c2]++;
+            }
+        }
+
+        int[] counts = new int[33];
+        for (int i = 0; i <= 256; i++) {
+            if (codeSize[i] > 0) {
+                counts[Math.min(codeSize[i], 32)]++;
+            }
+        }
+
+        for (int i = 32; i > 16; i--) {
+            while (counts[i] > 0) {
+                int j = i - 2;
+                while (counts[j] == 0) {
+                    j--;
+                }
+
+                counts[i] -= 2;
+                counts[i - 1]++;
+                counts[j + 1] += 2;
+                counts[j]--;
+            }
+        }
+
+        int last = 16;
+        while (counts[last] == 0) {
+            last--;
+        }
+        counts[last]--;
+
+        int[] bits = new int[17];
+        int total = 0;
+        for (int i = 1; i <= 16; i++) {
+            bits[i] = counts[i];
+            total += counts[i];
+        }
+
+        int[] values = new int[total];
+        int k = 0;
+        for (int length = 1; length <= 32 && k < total; length++) {
+            for (int symbol = 0; symbol < 256 && k < total; symbol++) {
+                if (codeSize[symbol] == length) {
+                    values[k++] = symbol;
+                }
+            }
+        }
+
+        return forEncoding(bits, values);
+    }
+
+    static JpegHuffmanTable standardDc(boolean luminance) {
+        return forEncoding(luminance ? STANDARD_DC_LUMINANCE_BITS : STANDARD_DC_CHROMINANCE_BITS, STANDARD_DC_VALUES);
+    }
+
+    static JpegHuffmanTable standardAc(boolean luminance) {
+        return luminance ? forEncoding(STANDARD_AC_LUMINANCE_BITS, STANDARD_AC_LUMINANCE_VALUES)
+                : forEncoding(STANDARD_AC_CHROMINANCE_BITS, STANDARD_AC_CHROMINANCE_VALUES);
+    }
+
+    static JpegHuffmanTable forEncoding(int[] bits, int[] values) {
+        JpegHuffmanTable table = new JpegHuffmanTable(bits, values);
+        table.codes = new int[256];
+        table.codeLengths = new int[256];
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length]; i++) {
+                table.codes[values[k]] = code;
+                table.codeLengths[values[k]] = length;
+                code++;
+                k++;
+            }
+            code <<= 1;
+        }
+
+        return table;
+    }
+
+    void write(OutputStream out, int tableClass, int id) throws IOException {
+        Jpeg.writeMarker(out, Jpeg.MARKER_DHT, 17 + values.length);
+        out.write((tableClass << 4) | id);
+        for (int i = 1; i <= 16; i++) {
+            out.write(bits[i]);
+        }
+        for (int value : values) {
+            out.write(value);
+        }
+    }
+
+}
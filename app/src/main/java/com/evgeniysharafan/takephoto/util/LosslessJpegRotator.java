@@ -0,0 +1,932 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rotates baseline JPEG files by 90, 180 or 270 degrees without decoding them to pixels.
+ * <p>Quantized DCT blocks are moved and transposed/flipped in place, like jpegtran does, so the image quality
+ * doesn't change and memory is proportional to the compressed size, not to the pixel count.
+ * Partial MCUs on the edges that would move to the left or top side are dropped (jpegtran -trim),
+ * it is up to 15 pixels. The orientation tag of the Exif segment is reset to normal, its thumbnail is dropped.</p>
+ * <p>Progressive, arithmetic coded, 12-bit and multi-scan files are not supported, the caller should
+ * fall back to decoding in this case. Pure Java, it doesn't depend on the Android SDK.</p>
+ */
+final class LosslessJpegRotator {
+
+    private final byte[] data;
+    private final CancellationToken token;
+
+    private int sofMarker;
+    private int width;
+    private int height;
+    private Component[] components;
+    private int maxH;
+    private int maxV;
+    private int mcusX;
+    private int mcusY;
+    private int restartInterval;
+
+    private final int[][] quantTables = new int[4][];
+    private final int[] quantPrecisions = new int[4];
+    private final JpegHuffmanTable[] dcTables = new JpegHuffmanTable[4];
+    private final JpegHuffmanTable[] acTables = new JpegHuffmanTable[4];
+    // APPn and COM segments, they are copied to the output as is (except the Exif orientation).
+    private final List<byte[]> segments = new ArrayList<>();
+
+    // bit reader state
+    private int position;
+    private int bitBuffer;
+    private int bitCount;
+    private int paddingBits;
+    private boolean markerReached;
+
+    private LosslessJpegRotator(byte[] data, CancellationToken token) {
+        this.data = data;
+        this.token = token;
+    }
+
+    static boolean rotate(File source, File destination, int degrees) throws IOException {
+        return rotate(source, destination, degrees, CancellationToken.NONE);
+    }
+
+    /**
+     * @param degrees Clockwise rotation: 90, 180 or 270.
+     * @param token   It is checked once per MCU row of the decode and of both encode passes.
+     * @return false if the file can't be rotated losslessly, the destination is not created in this case.
+     * @throws CancelledException The destination is deleted.
+     */
+    static boolean rotate(File source, File destination, int degrees, CancellationToken token) throws IOException {
+        if (degrees != 90 && degrees != 180 && degrees != 270) {
+            return false;
+        }
+
+        LosslessJpegRotator rotator = new LosslessJpegRotator(readFully(source), token);
+        Coefficients coefficients = rotator.decode();
+        if (coefficients == null) {
+            return false;
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(destination), 64 * 1024);
+        boolean success = false;
+        try {
+            success = rotator.encode(coefficients, degrees, out);
+            return success;
+        } finally {
+            out.close();
+            if (!success) {
+                //noinspection ResultOfMethodCallIgnored
+                destination.delete();
+            }
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("File is too big: " + length);
+        }
+
+        byte[] bytes = new byte[(int) length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+
+            if (offset != bytes.length) {
+                throw new IOException("Unexpected end of file");
+            }
+        } finally {
+            in.close();
+        }
+
+        return bytes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Decoding
+
+    private Coefficients decode() throws IOException {
+        if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != Jpeg.MARKER_SOI) {
+            return null;
+        }
+
+        position = 2;
+        Coefficients coefficients = null;
+        while (true) {
+            int marker = nextMarker();
+            if (marker < 0) {
+                return null;
+            }
+
+            if (marker == Jpeg.MARKER_EOI) {
+                return coefficients;
+            }
+
+            if (marker == Jpeg.MARKER_SOI || Jpeg.isRestartMarker(marker)) {
+                continue;
+            }
+
+            if (position + 2 > data.length) {
+                return null;
+            }
+
+            int length = readUnsignedShort(position);
+            int start = position + 2;
+            int end = position + length;
+            if (length < 2 || end > data.length) {
+                return null;
+            }
+
+            switch (marker) {
+                case Jpeg.MARKER_SOF0:
+                case Jpeg.MARKER_SOF1:
+                    if (components != null || !readFrameHeader(marker, start, end)) {
+                        return null;
+                    }
+                    break;
+
+                case Jpeg.MARKER_DHT:
+                    if (!readHuffmanTables(start, end)) {
+                        return null;
+                    }
+                    break;
+
+                case Jpeg.MARKER_DQT:
+                    if (!readQuantTables(start, end)) {
+                        return null;
+                    }
+                    break;
+
+                case Jpeg.MARKER_DRI:
+                    restartInterval = readUnsignedShort(start);
+                    break;
+
+                case Jpeg.MARKER_SOS:
+                    // only one interleaved scan is supported.
+                    if (components == null || coefficients != null || !readScanHeader(start, end)) {
+                        return null;
+                    }
+
+                    position = end;
+                    coefficients = decodeScan();
+                    if (coefficients == null) {
+                        return null;
+                    }
+                    continue;
+
+                default:
+                    if ((marker >= Jpeg.MARKER_APP0 && marker <= Jpeg.MARKER_APP15) || marker == Jpeg.MARKER_COM) {
+                        byte[] segment = new byte[length + 2];
+                        System.arraycopy(data, position - 2, segment, 0, segment.length);
+                        segments.add(segment);
+                    } else if (Jpeg.isSofMarker(marker)) {
+                        // progressive, lossless, hierarchical or arithmetic coding.
+                        return null;
+                    }
+                    break;
+            }
+
+            position = end;
+        }
+    }
+
+    // skips fill bytes and garbage, returns the marker code and moves the position after it.
+    private int nextMarker() {
+        while (position + 1 < data.length) {
+            if ((data[position] & 0xFF) == 0xFF) {
+                int marker = data[position + 1] & 0xFF;
+                if (marker != 0 && marker != 0xFF) {
+                    position += 2;
+                    return marker;
+                }
+            }
+            position++;
+        }
+
+        return -1;
+    }
+
+    private boolean readFrameHeader(int marker, int start, int end) {
+        if (end - start < 6 || (data[start] & 0xFF) != 8) {
+            return false;
+        }
+
+        sofMarker = marker;
+        height = readUnsignedShort(start + 1);
+        width = readUnsignedShort(start + 3);
+        int count = data[start + 5] & 0xFF;
+        if (width == 0 || height == 0 || (count != 1 && count != 3) || end - start < 6 + count * 3) {
+            return false;
+        }
+
+        components = new Component[count];
+        for (int i = 0; i < count; i++) {
+            int offset = start + 6 + i * 3;
+            Component component = new Component();
+            component.id = data[offset] & 0xFF;
+            component.h = count == 1 ? 1 : (data[offset + 1] & 0xFF) >> 4;
+            component.v = count == 1 ? 1 : data[offset + 1] & 0x0F;
+            component.quantTable = data[offset + 2] & 0xFF;
+            if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4
+                    || component.quantTable > 3) {
+                return false;
+            }
+
+            maxH = Math.max(maxH, component.h);
+            maxV = Math.max(maxV, component.v);
+            components[i] = component;
+        }
+
+        mcusX = ceilDiv(width, 8 * maxH);
+        mcusY = ceilDiv(height, 8 * maxV);
+        for (Component component : components) {
+            component.blocksX = mcusX * component.h;
+            component.blocksY = mcusY * component.v;
+        }
+
+        return true;
+    }
+
+    private boolean readHuffmanTables(int start, int end) {
+        int offset = start;
+        while (offset < end) {
+            int classAndId = data[offset] & 0xFF;
+            int tableClass = classAndId >> 4;
+            int id = classAndId & 0x0F;
+            if (tableClass > 1 || id > 3 || offset + 17 > end) {
+                return false;
+            }
+
+            int[] bits = new int[17];
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                bits[i] = data[offset + i] & 0xFF;
+                total += bits[i];
+            }
+
+            offset += 17;
+            if (total > 256 || offset + total > end) {
+                return false;
+            }
+
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = data[offset + i] & 0xFF;
+            }
+            offset += total;
+
+            JpegHuffmanTable table = JpegHuffmanTable.forDecoding(bits, values);
+            if (tableClass == 0) {
+                dcTables[id] = table;
+            } else {
+                acTables[id] = table;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean readQuantTables(int start, int end) {
+        int offset = start;
+        while (offset < end) {
+            int precision = (data[offset] & 0xFF) >> 4;
+            int id = data[offset] & 0x0F;
+            int size = precision == 0 ? 64 : 128;
+            if (precision > 1 || id > 3 || offset + 1 + size > end) {
+                return false;
+            }
+
+            int[] table = new int[64];
+            for (int i = 0; i < 64; i++) {
+                table[i] = precision == 0 ? data[offset + 1 + i] & 0xFF : readUnsignedShort(offset + 1 + i * 2);
+            }
+
+            quantTables[id] = table;
+            quantPrecisions[id] = precision;
+            offset += 1 + size;
+        }
+
+        return true;
+    }
+
+    private boolean readScanHeader(int start, int end) {
+        int count = data[start] & 0xFF;
+        if (count != components.length || end - start < 1 + count * 2 + 3) {
+            return false;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int id = data[start + 1 + i * 2] & 0xFF;
+            int tables = data[start + 2 + i * 2] & 0xFF;
+            Component component = components[i];
+            if (component.id != id) {
+                return false;
+            }
+
+            component.dcTable = dcTables[tables >> 4];
+            component.acTable = acTables[tables & 0x0F];
+            if (component.dcTable == null || component.acTable == null || quantTables[component.quantTable] == null) {
+                return false;
+            }
+        }
+
+        int offset = start + 1 + count * 2;
+        int spectralStart = data[offset] & 0xFF;
+        int spectralEnd = data[offset + 1] & 0xFF;
+        int approximation = data[offset + 2] & 0xFF;
+        return spectralStart == 0 && spectralEnd == 63 && approximation == 0;
+    }
+
+    private Coefficients decodeScan() throws CancelledException {
+        Coefficients coefficients = new Coefficients(components);
+        int[] block = new int[128];
+        int[] predictions = new int[components.length];
+        int mcuCount = mcusX * mcusY;
+
+        bitBuffer = 0;
+        bitCount = 0;
+        paddingBits = 0;
+        markerReached = false;
+
+        for (int mcu = 0; mcu < mcuCount; mcu++) {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                if (!processRestart()) {
+                    return null;
+                }
+
+                for (int i = 0; i < predictions.length; i++) {
+                    predictions[i] = 0;
+                }
+            }
+
+            int mcuX = mcu % mcusX;
+            int mcuY = mcu / mcusX;
+            if (mcuX == 0) {
+                CancelledException.throwIfCancelled(token);
+            }
+
+            for (int c = 0; c < components.length; c++) {
+                Component component = components[c];
+                for (int v = 0; v < component.v; v++) {
+                    for (int h = 0; h < component.h; h++) {
+                        int count = decodeBlock(component, block, predictions, c);
+                        if (count < 0) {
+                            return null;
+                        }
+
+                        int blockX = mcuX * component.h + h;
+                        int blockY = mcuY * component.v + v;
+                        coefficients.put(c, blockY * component.blocksX + blockX, block, count);
+                    }
+                }
+            }
+
+            // the decoder has consumed zero bits added after the end of the entropy coded data.
+            if (bitCount < paddingBits) {
+                return null;
+            }
+        }
+
+        return coefficients;
+    }
+
+    // decodes one block to the (zigzag index, value) pairs, returns the number of pairs or -1.
+    private int decodeBlock(Component component, int[] block, int[] predictions, int c) {
+        int size = decodeHuffman(component.dcTable);
+        if (size < 0 || size > 11) {
+            return -1;
+        }
+
+        int diff = size == 0 ? 0 : extend(readBits(size), size);
+        predictions[c] += diff;
+        block[0] = 0;
+        block[1] = predictions[c];
+        int count = 1;
+
+        JpegHuffmanTable acTable = component.acTable;
+        for (int k = 1; k < 64; ) {
+            int symbol = decodeHuffman(acTable);
+            if (symbol < 0) {
+                return -1;
+            }
+
+            int run = symbol >> 4;
+            size = symbol & 0x0F;
+            if (size == 0) {
+                if (run != 15) {
+                    break;
+                }
+
+                k += 16;
+                continue;
+            }
+
+            k += run;
+            if (k > 63 || size > 10) {
+                return -1;
+            }
+
+            block[count * 2] = k;
+            block[count * 2 + 1] = extend(readBits(size), size);
+            count++;
+            k++;
+        }
+
+        return count;
+    }
+
+    private boolean processRestart() {
+        bitBuffer = 0;
+        bitCount = 0;
+        paddingBits = 0;
+        markerReached = false;
+
+        if (position + 1 < data.length && (data[position] & 0xFF) == 0xFF) {
+            int marker = data[position + 1] & 0xFF;
+            if (Jpeg.isRestartMarker(marker)) {
+                position += 2;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void fillBits() {
+        while (bitCount <= 24) {
+            int value = 0;
+            if (!markerReached && position < data.length) {
+                value = data[position] & 0xFF;
+                if (value == 0xFF) {
+                    int next = position + 1 < data.length ? data[position + 1] & 0xFF : -1;
+                    if (next == 0) {
+                        position += 2;
+                    } else {
+                        // RSTn, EOI or another marker, don't consume it.
+                        markerReached = true;
+                        value = 0;
+                        paddingBits += 8;
+                    }
+                } else {
+                    position++;
+                }
+            } else {
+                markerReached = true;
+                paddingBits += 8;
+            }
+
+            bitBuffer = (bitBuffer << 8) | value;
+            bitCount += 8;
+        }
+    }
+
+    private int readBits(int count) {
+        if (bitCount < count) {
+            fillBits();
+        }
+
+        bitCount -= count;
+        return (bitBuffer >>> bitCount) & ((1 << count) - 1);
+    }
+
+    private int decodeHuffman(JpegHuffmanTable table) {
+        if (bitCount < 16) {
+            fillBits();
+        }
+
+        int look = (bitBuffer >>> (bitCount - JpegHuffmanTable.LOOKAHEAD_BITS))
+                & ((1 << JpegHuffmanTable.LOOKAHEAD_BITS) - 1);
+        int length = table.lookupLengths[look];
+        if (length != 0) {
+            bitCount -= length;
+            return table.lookupValues[look];
+        }
+
+        for (length = JpegHuffmanTable.LOOKAHEAD_BITS + 1; length <= 16; length++) {
+            int code = (bitBuffer >>> (bitCount - length)) & ((1 << length) - 1);
+            if (code <= table.maxCodes[length]) {
+                bitCount -= length;
+                return table.values[table.valueOffsets[length] + code - table.minCodes[length]];
+            }
+        }
+
+        return -1;
+    }
+
+    private static int extend(int value, int size) {
+        return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+
+    private int readUnsignedShort(int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Encoding
+
+    private boolean encode(Coefficients coefficients, int degrees, OutputStream out) throws IOException {
+        boolean transpose = degrees != 180;
+        // the source side that is mirrored must consist of whole MCUs.
+        boolean trimX = degrees != 90;
+        boolean trimY = degrees != 270;
+        int trimmedMcusX = trimX ? width / (8 * maxH) : mcusX;
+        int trimmedMcusY = trimY ? height / (8 * maxV) : mcusY;
+        if (trimmedMcusX == 0 || trimmedMcusY == 0) {
+            return false;
+        }
+
+        int trimmedWidth = trimX ? trimmedMcusX * 8 * maxH : width;
+        int trimmedHeight = trimY ? trimmedMcusY * 8 * maxV : height;
+        int outWidth = transpose ? trimmedHeight : trimmedWidth;
+        int outHeight = transpose ? trimmedWidth : trimmedHeight;
+        int outMcusX = transpose ? trimmedMcusY : trimmedMcusX;
+        int outMcusY = transpose ? trimmedMcusX : trimmedMcusY;
+
+        BlockTransform transform = new BlockTransform(degrees);
+        OutputComponent[] outComponents = new OutputComponent[components.length];
+        for (int c = 0; c < components.length; c++) {
+            Component source = components[c];
+            OutputComponent component = new OutputComponent();
+            component.h = transpose ? source.v : source.h;
+            component.v = transpose ? source.h : source.v;
+            component.sourceBlocksX = trimmedMcusX * source.h;
+            component.sourceBlocksY = trimmedMcusY * source.v;
+            component.sourceStride = source.blocksX;
+            component.tableIndex = c == 0 ? 0 : 1;
+            outComponents[c] = component;
+        }
+
+        int tableCount = components.length == 1 ? 1 : 2;
+        int[][] dcFrequencies = new int[tableCount][257];
+        int[][] acFrequencies = new int[tableCount][257];
+        JpegHuffmanTable[] dcOut = new JpegHuffmanTable[tableCount];
+        JpegHuffmanTable[] acOut = new JpegHuffmanTable[tableCount];
+
+        // the first pass collects statistics for optimal Huffman tables, the second one writes the data.
+        ByteArrayOutputStream scan = new ByteArrayOutputStream(data.length);
+        JpegBitWriter writer = new JpegBitWriter(scan);
+        for (int pass = 0; pass < 2; pass++) {
+            boolean counting = pass == 0;
+            if (!counting) {
+                for (int t = 0; t < tableCount; t++) {
+                    dcOut[t] = JpegHuffmanTable.optimal(dcFrequencies[t]);
+                    acOut[t] = JpegHuffmanTable.optimal(acFrequencies[t]);
+                }
+            }
+
+            int[] predictions = new int[components.length];
+            int[] source = new int[128];
+            int[] block = new int[64];
+            for (int mcuY = 0; mcuY < outMcusY; mcuY++) {
+                CancelledException.throwIfCancelled(token);
+                for (int mcuX = 0; mcuX < outMcusX; mcuX++) {
+                    for (int c = 0; c < outComponents.length; c++) {
+                        OutputComponent component = outComponents[c];
+                        for (int v = 0; v < component.v; v++) {
+                            for (int h = 0; h < component.h; h++) {
+                                int x = mcuX * component.h + h;
+                                int y = mcuY * component.v + v;
+                                int sourceIndex = transform.getSourceBlock(component, x, y);
+                                int count = coefficients.get(c, sourceIndex, source);
+                                transform.apply(source, count, block);
+
+                                int t = component.tableIndex;
+                                if (counting) {
+                                    countBlock(block, predictions, c, dcFrequencies[t], acFrequencies[t]);
+                                } else {
+                                    writeBlock(block, predictions, c, dcOut[t], acOut[t], writer);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        writer.flush();
+
+        out.write(0xFF);
+        out.write(Jpeg.MARKER_SOI);
+        for (byte[] segment : segments) {
+            if ((segment[1] & 0xFF) == Jpeg.MARKER_APP1) {
+                byte[] exif = ExifSegment.createNormalizedSegment(Arrays.copyOfRange(segment, 4, segment.length),
+                        outWidth, outHeight);
+                if (exif != null) {
+                    segment = exif;
+                }
+            }
+            out.write(segment);
+        }
+
+        writeQuantTables(out, transpose);
+        writeFrameHeader(out, outComponents, outWidth, outHeight);
+        for (int t = 0; t < tableCount; t++) {
+            dcOut[t].write(out, 0, t);
+            acOut[t].write(out, 1, t);
+        }
+        writeScanHeader(out, outComponents);
+        scan.writeTo(out);
+        out.write(0xFF);
+        out.write(Jpeg.MARKER_EOI);
+
+        return true;
+    }
+
+    private static void countBlock(int[] block, int[] predictions, int c, int[] dcFrequencies,
+                                   int[] acFrequencies) {
+        int diff = block[0] - predictions[c];
+        predictions[c] = block[0];
+        dcFrequencies[bitLength(diff)]++;
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = block[k];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+
+            while (run > 15) {
+                acFrequencies[0xF0]++;
+                run -= 16;
+            }
+
+            acFrequencies[(run << 4) | bitLength(value)]++;
+            run = 0;
+        }
+
+        if (run > 0) {
+            acFrequencies[0]++;
+        }
+    }
+
+    private static void writeBlock(int[] block, int[] predictions, int c, JpegHuffmanTable dcTable,
+                                   JpegHuffmanTable acTable, JpegBitWriter writer) throws IOException {
+        int diff = block[0] - predictions[c];
+        predictions[c] = block[0];
+        int size = bitLength(diff);
+        writer.write(dcTable.codes[size], dcTable.codeLengths[size]);
+        if (size > 0) {
+            writer.write(diff < 0 ? diff - 1 : diff, size);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = block[k];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+
+            while (run > 15) {
+                writer.write(acTable.codes[0xF0], acTable.codeLengths[0xF0]);
+                run -= 16;
+            }
+
+            size = bitLength(value);
+            int symbol = (run << 4) | size;
+            writer.write(acTable.codes[symbol], acTable.codeLengths[symbol]);
+            writer.write(value < 0 ? value - 1 : value, size);
+            run = 0;
+        }
+
+        if (run > 0) {
+            writer.write(acTable.codes[0], acTable.codeLengths[0]);
+        }
+    }
+
+    private static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    private void writeQuantTables(OutputStream out, boolean transpose) throws IOException {
+        for (int id = 0; id < quantTables.length; id++) {
+            int[] table = quantTables[id];
+            if (table == null) {
+                continue;
+            }
+
+            int precision = quantPrecisions[id];
+            int size = precision == 0 ? 64 : 128;
+            Jpeg.writeMarker(out, Jpeg.MARKER_DQT, 1 + size);
+            out.write((precision << 4) | id);
+            for (int k = 0; k < 64; k++) {
+                int value;
+                if (transpose) {
+                    int natural = Jpeg.ZIGZAG[k];
+                    int transposed = (natural % 8) * 8 + natural / 8;
+                    value = table[Jpeg.NATURAL_TO_ZIGZAG[transposed]];
+                } else {
+                    value = table[k];
+                }
+
+                if (precision != 0) {
+                    out.write(value >> 8);
+                }
+                out.write(value);
+            }
+        }
+    }
+
+    private void writeFrameHeader(OutputStream out, OutputComponent[] outComponents, int outWidth, int outHeight)
+            throws IOException {
+        Jpeg.writeMarker(out, sofMarker, 6 + components.length * 3);
+        out.write(8);
+        Jpeg.writeShort(out, outHeight);
+        Jpeg.writeShort(out, outWidth);
+        out.write(components.length);
+        for (int c = 0; c < components.length; c++) {
+            out.write(components[c].id);
+            out.write((outComponents[c].h << 4) | outComponents[c].v);
+            out.write(components[c].quantTable);
+        }
+    }
+
+    private void writeScanHeader(OutputStream out, OutputComponent[] outComponents) throws IOException {
+        Jpeg.writeMarker(out, Jpeg.MARKER_SOS, 1 + components.length * 2 + 3);
+        out.write(components.length);
+        for (int c = 0; c < components.length; c++) {
+            int t = outComponents[c].tableIndex;
+            out.write(components[c].id);
+            out.write((t << 4) | t);
+        }
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Component {
+        int id;
+        int h;
+        int v;
+        int quantTable;
+        int blocksX;
+        int blocksY;
+        JpegHuffmanTable dcTable;
+        JpegHuffmanTable acTable;
+    }
+
+    private static final class OutputComponent {
+        int h;
+        int v;
+        int sourceBlocksX;
+        int sourceBlocksY;
+        int sourceStride;
+        int tableIndex;
+    }
+
+    // Moves blocks to their new positions and transforms the coefficients inside them.
+    private static final class BlockTransform {
+
+        private final int degrees;
+        // output zigzag index and sign for every source zigzag index.
+        private final int[] targetIndexes = new int[64];
+        private final int[] signs = new int[64];
+
+        BlockTransform(int degrees) {
+            this.degrees = degrees;
+            for (int k = 0; k < 64; k++) {
+                int natural = Jpeg.ZIGZAG[k];
+                int row = natural / 8;
+                int column = natural % 8;
+                int target;
+                boolean negate;
+                switch (degrees) {
+                    case 90:
+                        // transpose, then mirror horizontally.
+                        target = column * 8 + row;
+                        negate = (row & 1) != 0;
+                        break;
+                    case 270:
+                        // transpose, then mirror vertically.
+                        target = column * 8 + row;
+                        negate = (column & 1) != 0;
+                        break;
+                    default:
+                        target = natural;
+                        negate = ((row + column) & 1) != 0;
+                        break;
+                }
+
+                targetIndexes[k] = Jpeg.NATURAL_TO_ZIGZAG[target];
+                signs[k] = negate ? -1 : 1;
+            }
+        }
+
+        int getSourceBlock(OutputComponent component, int x, int y) {
+            int sourceX;
+            int sourceY;
+            switch (degrees) {
+                case 90:
+                    sourceX = y;
+                    sourceY = component.sourceBlocksY - 1 - x;
+                    break;
+                case 270:
+                    sourceX = component.sourceBlocksX - 1 - y;
+                    sourceY = x;
+                    break;
+                default:
+                    sourceX = component.sourceBlocksX - 1 - x;
+                    sourceY = component.sourceBlocksY - 1 - y;
+                    break;
+            }
+
+            return sourceY * component.sourceStride + sourceX;
+        }
+
+        // source contains (zigzag index, value) pairs, result is in zigzag order.
+        void apply(int[] source, int count, int[] result) {
+            for (int k = 0; k < 64; k++) {
+                result[k] = 0;
+            }
+
+            for (int i = 0; i < count; i++) {
+                int k = source[i * 2];
+                result[targetIndexes[k]] = signs[k] * source[i * 2 + 1];
+            }
+        }
+    }
+
+    // Quantized blocks stored as (zigzag index, value) pairs of non-zero coefficients, DC is always stored.
+    private static final class Coefficients {
+
+        private final int[][] offsets;
+        private final ByteBuffer[] buffers;
+
+        Coefficients(Component[] components) {
+            offsets = new int[components.length][];
+            buffers = new ByteBuffer[components.length];
+            for (int c = 0; c < components.length; c++) {
+                int blocks = components[c].blocksX * components[c].blocksY;
+                offsets[c] = new int[blocks];
+                buffers[c] = new ByteBuffer(blocks * 16);
+            }
+        }
+
+        void put(int c, int blockIndex, int[] pairs, int count) {
+            ByteBuffer buffer = buffers[c];
+            offsets[c][blockIndex] = buffer.size;
+            buffer.ensureCapacity(1 + count * 3);
+            byte[] bytes = buffer.bytes;
+            int offset = buffer.size;
+            bytes[offset++] = (byte) (count - 1);
+            for (int i = 0; i < count; i++) {
+                int value = pairs[i * 2 + 1];
+                bytes[offset++] = (byte) pairs[i * 2];
+                bytes[offset++] = (byte) (value >> 8);
+                bytes[offset++] = (byte) value;
+            }
+            buffer.size = offset;
+        }
+
+        int get(int c, int blockIndex, int[] pairs) {
+            byte[] bytes = buffers[c].bytes;
+            int offset = offsets[c][blockIndex];
+            int count = (bytes[offset++] & 0xFF) + 1;
+            for (int i = 0; i < count; i++) {
+                pairs[i * 2] = bytes[offset++];
+                pairs[i * 2 + 1] = (short) (((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF));
+                offset += 2;
+            }
+
+            return count;
+        }
+    }
+
+    private static final class ByteBuffer {
+
+        byte[] bytes;
+        int size;
+
+        ByteBuffer(int capacity) {
+            bytes = new byte[Math.max(capacity, 64)];
+        }
+
+        void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                byte[] newBytes = new byte[Math.max(bytes.length * 3 / 2, size + extra)];
+                System.arraycopy(bytes, 0, newBytes, 0, size);
+                bytes = newBytes;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * How processed photos are encoded.
+ * Example: TakePhoto.getInstance().setOutputSpec(new OutputSpec.Builder().quality(85).maxBytes(500 * 1024).build());
+ */
+public final class OutputSpec {
+
+    public static final int DEFAULT_QUALITY = 100;
+
+    static final OutputSpec DEFAULT = new Builder().build();
+
+    public final Bitmap.CompressFormat format;
+    public final int quality;
+    // 0 if there is no limit.
+    public final long maxBytes;
+
+    private OutputSpec(Builder builder) {
+        format = builder.format;
+        quality = builder.quality;
+        maxBytes = builder.maxBytes;
+    }
+
+    public boolean hasMaxBytes() {
+        return maxBytes > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "OutputSpec{format=" + format + ", quality=" + quality + ", maxBytes=" + maxBytes + "}";
+    }
+
+    public static final class Builder {
+
+        private Bitmap.CompressFormat format = Bitmap.CompressFormat.JPEG;
+        private int quality = DEFAULT_QUALITY;
+        private long maxBytes;
+
+        /**
+         * JPEG (default) or WEBP. PNG is not supported because its size doesn't depend on the quality.
+         */
+        public Builder format(Bitmap.CompressFormat format) {
+            if (format != Bitmap.CompressFormat.JPEG && format != Bitmap.CompressFormat.WEBP) {
+                throw new IllegalArgumentException("Only JPEG and WEBP are supported");
+            }
+
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * @param quality 0-100, the same as in {@link Bitmap#compress}. With {@link #maxBytes(long)}
+         *                it is the highest quality to try.
+         */
+        public Builder quality(int quality) {
+            if (quality < 0 || quality > 100) {
+                throw new IllegalArgumentException("quality should be in 0..100");
+            }
+
+            this.quality = quality;
+            return this;
+        }
+
+        /**
+         * The highest quality which keeps the file not bigger than maxBytes is used. If the photo doesn't fit
+         * even with the lowest quality, you get it with the lowest quality.
+         * <p>The quality is found by encoding the photo up to 8 times in memory. A photo which doesn't fit into
+         * the processing memory budget is decoded and encoded strip by strip for every try, so its search
+         * stops after 3 tries (4 passes over the photo with the final write) and the quality can be a little
+         * lower than the best one.</p>
+         */
+        public Builder maxBytes(long maxBytes) {
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("maxBytes should be > 0");
+            }
+
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public OutputSpec build() {
+            return new OutputSpec(this);
+        }
+    }
+
+}
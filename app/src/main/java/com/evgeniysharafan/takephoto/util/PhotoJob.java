@@ -0,0 +1,177 @@
+package com.evgeniysharafan.takephoto.util;
+
+import com.squareup.picasso.Request;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Handle of one capture, from show*() to the delivery of its photo (or of all photos of a batch).
+ * Several jobs can run at the same time, e.g. started from different fragments.
+ * <p>The state moves atomically: PENDING (the camera or the gallery is open) -> COPYING -> PROCESSING
+ * -> DONE, FAILED or CANCELLED, a finished job never changes its state. The result of a job which has no
+ * listener is kept in the job until a listener is set with
+ * {@link TakePhoto#setPhotoTakenListenerIfNeeded(int, TakePhoto.OnPhotoTakenListener)}.</p>
+ */
+public final class PhotoJob implements CancellationToken {
+
+    public enum State {
+        PENDING(false),
+        COPYING(false),
+        PROCESSING(false),
+        DONE(true),
+        FAILED(true),
+        CANCELLED(true);
+
+        private final boolean isFinal;
+
+        State(boolean isFinal) {
+            this.isFinal = isFinal;
+        }
+
+        public boolean isFinal() {
+            return isFinal;
+        }
+    }
+
+    private final int id;
+    private final AtomicReference<State> state = new AtomicReference<>(State.PENDING);
+    // stops the blocking call which runs now, e.g. a native decode or a read from the provider.
+    private final AtomicReference<Runnable> cancelAction = new AtomicReference<>();
+
+    // the launch state, it is set before the job is started or restored on the processing thread
+    // after the process has been killed.
+    File photoFile;
+    Request picassoRequest;
+    OutputSpec outputSpec;
+    List<Rendition> renditions;
+
+    // it is read on the processing thread to choose between a reference and a copy.
+    volatile TakePhoto.OnPhotoTakenListener listener;
+    final ProgressReporter progress = new ProgressReporter(this);
+    // several photos are picked, they get no preview.
+    volatile boolean isBatch;
+    // only the first preview is posted, the copy and the processing can both make one.
+    final AtomicBoolean isPreviewPosted = new AtomicBoolean();
+
+    // we use these fields if we get the result when the listener is null, e.g. between onStop() and onStart().
+    // They are used on the main thread only.
+    File completedFile;
+    List<File> completedFiles;
+    PhotoReference completedReference;
+    Map<String, File> completedRenditions;
+    boolean hasError;
+
+    PhotoJob(int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return Id which stays the same if the process is killed while the camera or the gallery is open,
+     * save it to set the listener of the job again.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    // the photo is being copied or processed.
+    public boolean isRunning() {
+        State current = state.get();
+        return current == State.COPYING || current == State.PROCESSING;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return state.get() == State.CANCELLED;
+    }
+
+    /**
+     * The result of the job is not delivered. The copy and the processing stop at the next chunk,
+     * a running decode is aborted and partial files are deleted in the background.
+     *
+     * @return False if the job has finished before.
+     */
+    public boolean cancel() {
+        if (!finish(State.CANCELLED)) {
+            return false;
+        }
+
+        Runnable action = cancelAction.getAndSet(null);
+        if (action != null) {
+            action.run();
+        }
+
+        return true;
+    }
+
+    @Override
+    public void setCancelAction(Runnable action) {
+        cancelAction.set(action);
+        // the job could be cancelled before the action was set.
+        if (action != null && isCancelled() && cancelAction.compareAndSet(action, null)) {
+            action.run();
+        }
+    }
+
+    boolean moveTo(State from, State to) {
+        return state.compareAndSet(from, to);
+    }
+
+    /**
+     * @return False if the job has finished before, e.g. it has been cancelled.
+     */
+    boolean finish(State finalState) {
+        while (true) {
+            State current = state.get();
+            if (current.isFinal()) {
+                return false;
+            }
+
+            if (state.compareAndSet(current, finalState)) {
+                return true;
+            }
+        }
+    }
+
+    boolean hasPicassoRequest() {
+        return picassoRequest != null;
+    }
+
+    boolean hasDoNotProcessKey() {
+        return hasPicassoRequest() && TakePhoto.DO_NOT_PROCESS_KEY.equals(picassoRequest.stableKey);
+    }
+
+    boolean hasOutputSpec() {
+        return outputSpec != null;
+    }
+
+    boolean hasRenditions() {
+        return renditions != null && !renditions.isEmpty();
+    }
+
+    boolean hasResult() {
+        return completedFile != null || completedFiles != null || completedReference != null
+                || completedRenditions != null || hasError;
+    }
+
+    void clearResult() {
+        completedFile = null;
+        completedFiles = null;
+        completedReference = null;
+        completedRenditions = null;
+        hasError = false;
+    }
+
+    @Override
+    public String toString() {
+        return "PhotoJob{id=" + id + ", state=" + state.get() + "}";
+    }
+
+}
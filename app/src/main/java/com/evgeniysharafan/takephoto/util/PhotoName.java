@@ -0,0 +1,103 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.util.Calendar;
+
+/**
+ * Names of taken photos: IMG_yyyyMMdd_HHmmss_SSS, the time is in the default time zone.
+ * <p>Unlike SimpleDateFormat it is thread-safe and doesn't allocate anything but the result.
+ * Names without milliseconds (made by older versions) are parsed too.</p>
+ */
+final class PhotoName {
+
+    static final String PREFIX = "IMG_";
+
+    private static final char SEPARATOR = '_';
+    // IMG_yyyyMMdd_HHmmss
+    private static final int SECONDS_LENGTH = PREFIX.length() + 15;
+    // IMG_yyyyMMdd_HHmmss_SSS
+    private static final int MILLIS_LENGTH = SECONDS_LENGTH + 4;
+
+    private PhotoName() {
+    }
+
+    /**
+     * @param calendar It is used to split the time into fields, so don't share it between threads.
+     */
+    static String format(Calendar calendar, long time) {
+        calendar.setTimeInMillis(time);
+        char[] name = new char[MILLIS_LENGTH];
+        PREFIX.getChars(0, PREFIX.length(), name, 0);
+        int position = PREFIX.length();
+        position = putDigits(name, position, calendar.get(Calendar.YEAR), 4);
+        position = putDigits(name, position, calendar.get(Calendar.MONTH) + 1, 2);
+        position = putDigits(name, position, calendar.get(Calendar.DAY_OF_MONTH), 2);
+        name[position++] = SEPARATOR;
+        position = putDigits(name, position, calendar.get(Calendar.HOUR_OF_DAY), 2);
+        position = putDigits(name, position, calendar.get(Calendar.MINUTE), 2);
+        position = putDigits(name, position, calendar.get(Calendar.SECOND), 2);
+        name[position++] = SEPARATOR;
+        putDigits(name, position, calendar.get(Calendar.MILLISECOND), 3);
+        return new String(name);
+    }
+
+    /**
+     * @param name File name, everything after the time (a batch position, a rendition name, a suffix) is ignored.
+     * @return Time of the photo or -1 if the name is not made by {@link #format(Calendar, long)}.
+     */
+    static long parse(String name) {
+        if (name.length() < SECONDS_LENGTH || !name.startsWith(PREFIX)
+                || name.charAt(PREFIX.length() + 8) != SEPARATOR) {
+            return -1;
+        }
+
+        int position = PREFIX.length();
+        int year = getDigits(name, position, 4);
+        int month = getDigits(name, position + 4, 2);
+        int day = getDigits(name, position + 6, 2);
+        int hour = getDigits(name, position + 9, 2);
+        int minute = getDigits(name, position + 11, 2);
+        int second = getDigits(name, position + 13, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return -1;
+        }
+
+        // milliseconds are exactly 3 digits, so "_1" of a batch photo of an older version is not taken for them.
+        int millis = 0;
+        if (name.length() >= MILLIS_LENGTH && name.charAt(SECONDS_LENGTH) == SEPARATOR
+                && (name.length() == MILLIS_LENGTH || !Character.isDigit(name.charAt(MILLIS_LENGTH)))) {
+            millis = Math.max(0, getDigits(name, SECONDS_LENGTH + 1, 3));
+        }
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        calendar.set(Calendar.MILLISECOND, millis);
+        return calendar.getTimeInMillis();
+    }
+
+    private static int putDigits(char[] name, int position, int value, int count) {
+        for (int i = position + count - 1; i >= position; i--) {
+            name[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+
+        return position + count;
+    }
+
+    // -1 if there is not a digit.
+    private static int getDigits(String name, int position, int count) {
+        int value = 0;
+        for (int i = position; i < position + count; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * Cheap low-resolution version of a photo, shown while the photo is processed.
+ * <p>The thumbnail embedded into the Exif segment is decoded if it exists (a few KB, no file access),
+ * otherwise the photo is decoded with a big inSampleSize, so libjpeg skips most of the DCT work.
+ * Both are rotated by the Exif orientation.</p>
+ * <p>{@link #create(InputStream)} reads a photo which is still being copied, see {@link TeeBuffer}.</p>
+ * <p>MediaStore thumbnails are not used: they can be generated synchronously from the full photo,
+ * which is what we want to avoid.</p>
+ */
+final class PhotoPreview {
+
+    // the longest side of a decoded preview is between this and twice this.
+    static final int MIN_SIDE = 256;
+
+    private PhotoPreview() {
+    }
+
+    /**
+     * @param header Header captured while the photo was copied or null.
+     * @return null if the photo can't be decoded.
+     */
+    @Nullable
+    static Bitmap create(File file, @Nullable JpegHeader header) {
+        int degrees = header != null ? header.getRotationDegrees() : 0;
+        Bitmap preview = decodeExifThumbnail(header);
+        if (preview == null) {
+            preview = decodeSubsampled(file, header);
+        }
+
+        return preview != null ? rotate(preview, degrees) : null;
+    }
+
+    /**
+     * Parses the header from the stream, then decodes the Exif thumbnail or the rest of the stream subsampled.
+     * The stream is not closed.
+     *
+     * @return null if the photo is not a JPEG or can't be decoded.
+     */
+    @Nullable
+    static Bitmap create(InputStream in) throws IOException {
+        JpegHeader.Parser parser = new JpegHeader.Parser();
+        // the bytes of the header are decoded too.
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        int count;
+        while (!parser.isDone() && (count = in.read(buffer)) != -1) {
+            parser.update(buffer, 0, count);
+            prefix.write(buffer, 0, count);
+        }
+
+        JpegHeader header = parser.getHeader();
+        if (header == null) {
+            return null;
+        }
+
+        Bitmap preview = decodeExifThumbnail(header);
+        if (preview == null) {
+            InputStream photo = new SequenceInputStream(new ByteArrayInputStream(prefix.toByteArray()), in);
+            preview = BitmapFactory.decodeStream(photo, null, createSubsampledOptions(header.width, header.height));
+        }
+
+        return preview != null ? rotate(preview, header.getRotationDegrees()) : null;
+    }
+
+    private static Bitmap decodeExifThumbnail(@Nullable JpegHeader header) {
+        if (header == null || header.exif == null) {
+            return null;
+        }
+
+        ExifSegment exif = ExifSegment.parse(header.exif, 0, header.exif.length);
+        int offset = exif != null ? exif.getThumbnailOffset() : -1;
+        if (offset < 0) {
+            return null;
+        }
+
+        return BitmapFactory.decodeByteArray(header.exif, offset, exif.getThumbnailLength());
+    }
+
+    private static Bitmap decodeSubsampled(File file, @Nullable JpegHeader header) {
+        int width;
+        int height;
+        if (header != null) {
+            width = header.width;
+            height = header.height;
+        } else {
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), bounds);
+            width = bounds.outWidth;
+            height = bounds.outHeight;
+        }
+
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        return BitmapFactory.decodeFile(file.getPath(), createSubsampledOptions(width, height));
+    }
+
+    private static BitmapFactory.Options createSubsampledOptions(int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (Math.max(width, height) / (options.inSampleSize * 2) >= MIN_SIDE) {
+            options.inSampleSize *= 2;
+        }
+
+        // half the memory of ARGB_8888, a preview has no alpha.
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return options;
+    }
+
+    private static Bitmap rotate(Bitmap bitmap, int degrees) {
+        if (degrees == 0) {
+            return bitmap;
+        }
+
+        Matrix matrix = new Matrix();
+        matrix.postRotate(degrees);
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (rotated != bitmap) {
+            bitmap.recycle();
+        }
+
+        return rotated;
+    }
+
+}
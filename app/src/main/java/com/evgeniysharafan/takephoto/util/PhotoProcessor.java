@@ -0,0 +1,514 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.support.annotation.Nullable;
+
+import com.evgeniysharafan.utils.L;
+import com.squareup.picasso.Request;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+
+/**
+ * Decodes a photo close to the size requested by a Picasso {@link Request} and applies the request to it.
+ * <p>Only the header is read first, then the photo is decoded with a power-of-two inSampleSize and,
+ * if the scale is uniform, with an exact density scale, so a big photo is never materialized
+ * in memory at full size. Supported methods: resize, centerCrop, centerInside, onlyScaleDown, rotate (both).</p>
+ * <p>For centerCrop only the cropped region is decoded with {@link BitmapRegionDecoder}.</p>
+ * <p>If the bitmaps don't fit into the memory budget, {@link #encodeTiled} decodes the photo strip by strip
+ * and streams the strips to {@link StreamingJpegEncoder}, so the result is never in memory as a whole.</p>
+ * <p>The {@link CancellationToken} is checked between decode steps and strips, a cancelled job stops
+ * with {@link CancelledException}.</p>
+ */
+final class PhotoProcessor {
+
+    private PhotoProcessor() {
+    }
+
+    /**
+     * @param header      Header captured while the photo was copied. If it is null, only the header of the photo
+     *                    is read.
+     * @param exifDegrees Clockwise rotation from the EXIF orientation, it is applied before the request.
+     */
+    static Plan readPlan(File file, @Nullable JpegHeader header, @Nullable Request request, int exifDegrees)
+            throws IOException {
+        if (header != null) {
+            return Plan.create(header.width, header.height, exifDegrees, request);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Can't decode bounds of " + file.getPath());
+        }
+
+        return Plan.create(options.outWidth, options.outHeight, exifDegrees, request);
+    }
+
+    static Bitmap decode(File file, Plan plan, @Nullable Request request, CancellationToken token)
+            throws IOException {
+        CancelledException.throwIfCancelled(token);
+        long start = System.nanoTime();
+        if (plan.isCropped()) {
+            Bitmap region;
+            PhotoTrace.begin("decode region");
+            try {
+                region = decodeRegion(file, plan);
+            } finally {
+                PhotoTrace.end();
+            }
+
+            if (region != null) {
+                JobMetrics.stage(JobMetrics.Stage.DECODE, start);
+                JobMetrics.decoded(region);
+                recycleIfCancelled(region, token);
+                return transform(plan, region, true, request);
+            }
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = plan.sampleSize;
+        plan.setExactScale(options);
+
+        Bitmap decoded;
+        PhotoTrace.begin("decode");
+        // the decoder stops between scanlines and returns null (before API 24, it is a no-op since).
+        token.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                options.requestCancelDecode();
+            }
+        });
+        try {
+            decoded = BitmapFactory.decodeFile(file.getPath(), options);
+        } finally {
+            token.setCancelAction(null);
+            PhotoTrace.end();
+        }
+
+        JobMetrics.stage(JobMetrics.Stage.DECODE, start);
+        if (decoded == null) {
+            CancelledException.throwIfCancelled(token);
+            throw new IOException("Can't decode " + file.getPath());
+        }
+
+        recycleIfCancelled(decoded, token);
+
+        JobMetrics.decoded(decoded);
+        return transform(plan, decoded, false, request);
+    }
+
+    private static void recycleIfCancelled(Bitmap bitmap, CancellationToken token) throws CancelledException {
+        if (token.isCancelled()) {
+            bitmap.recycle();
+            throw new CancelledException();
+        }
+    }
+
+    private static Bitmap transform(Plan plan, Bitmap decoded, boolean isRegion, @Nullable Request request) {
+        long start = System.nanoTime();
+        Bitmap result;
+        PhotoTrace.begin("transform");
+        try {
+            result = isRegion ? plan.transformRegion(decoded, request) : plan.transform(decoded, request);
+        } finally {
+            PhotoTrace.end();
+        }
+
+        JobMetrics.stage(JobMetrics.Stage.TRANSFORM, start);
+        JobMetrics.allocated(result);
+        return result;
+    }
+
+    /**
+     * Writes the transformed photo as JPEG, peak memory is about the budget.
+     * <p>For a rotation which is not a multiple of 90 degrees decoded strips can be bigger than expected.</p>
+     *
+     * @param exif APP1 payload of the source photo, it is patched for the result and written before the frame.
+     */
+    static void encodeTiled(File file, Plan plan, @Nullable Request request, @Nullable byte[] exif,
+                            long memoryBudget, int quality, OutputStream out, CancellationToken token)
+            throws IOException {
+        Rect crop = plan.getSourceCropRect();
+        RectF bounds = new RectF(0, 0, crop.width(), crop.height());
+        Matrix matrix = plan.createMatrix(plan.getSourceScaleX(), plan.getSourceScaleY(), request);
+        matrix.mapRect(bounds);
+        // the same placement as Bitmap.createBitmap() uses.
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        int width = Math.round(bounds.width());
+        int height = Math.round(bounds.height());
+
+        Matrix inverse = new Matrix();
+        if (!matrix.invert(inverse)) {
+            throw new IOException("Can't invert the transformation of " + file.getPath());
+        }
+
+        int stripHeight = getStripHeight(width, height, memoryBudget);
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+        Bitmap strip = null;
+        PhotoTrace.begin("encode tiled");
+        try {
+            strip = Bitmap.createBitmap(width, stripHeight, Bitmap.Config.ARGB_8888);
+            JobMetrics.allocated(strip);
+            Canvas canvas = new Canvas(strip);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            int[] pixels = new int[width * stripHeight];
+
+            long start = System.nanoTime();
+            StreamingJpegEncoder encoder = new StreamingJpegEncoder(out, width, height, quality);
+            byte[] exifSegment = exif != null ? ExifSegment.createNormalizedSegment(exif, width, height) : null;
+            encoder.start(exifSegment != null ? Collections.singletonList(exifSegment) : null);
+            JobMetrics.stage(JobMetrics.Stage.EXIF_WRITE, start);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = plan.sampleSize;
+            RectF area = new RectF();
+            Rect region = new Rect();
+            Matrix tileMatrix = new Matrix();
+            // the bilinear filter needs neighbour pixels on the edges of a strip.
+            int margin = plan.sampleSize * 2;
+
+            for (int top = 0; top < height; top += stripHeight) {
+                CancelledException.throwIfCancelled(token);
+                int rows = Math.min(stripHeight, height - top);
+                // transparent pixels become black like in Bitmap.compress()
+                strip.eraseColor(Color.TRANSPARENT);
+
+                area.set(0, top, width, top + rows);
+                inverse.mapRect(area);
+                region.set((int) Math.floor(area.left) - margin, (int) Math.floor(area.top) - margin,
+                        (int) Math.ceil(area.right) + margin, (int) Math.ceil(area.bottom) + margin);
+                region.offset(crop.left, crop.top);
+
+                if (region.intersect(crop)) {
+                    start = System.nanoTime();
+                    Bitmap tile = decoder.decodeRegion(region, options);
+                    JobMetrics.stage(JobMetrics.Stage.DECODE, start);
+                    if (tile == null) {
+                        throw new IOException("Can't decode " + region + " of " + file.getPath());
+                    }
+
+                    JobMetrics.decoded(tile);
+                    start = System.nanoTime();
+                    tileMatrix.setScale(region.width() / (float) tile.getWidth(),
+                            region.height() / (float) tile.getHeight());
+                    tileMatrix.postTranslate(region.left - crop.left, region.top - crop.top);
+                    tileMatrix.postConcat(matrix);
+                    tileMatrix.postTranslate(0, -top);
+                    canvas.drawBitmap(tile, tileMatrix, paint);
+                    tile.recycle();
+                    JobMetrics.stage(JobMetrics.Stage.TRANSFORM, start);
+                }
+
+                start = System.nanoTime();
+                strip.getPixels(pixels, 0, width, 0, 0, width, rows);
+                encoder.writeRows(pixels, 0, width, rows);
+                JobMetrics.stage(JobMetrics.Stage.ENCODE, start);
+            }
+
+            start = System.nanoTime();
+            encoder.finish();
+            JobMetrics.stage(JobMetrics.Stage.ENCODE, start);
+        } finally {
+            if (strip != null) {
+                strip.recycle();
+            }
+
+            decoder.recycle();
+            PhotoTrace.end();
+        }
+    }
+
+    // the strip bitmap, its pixels and the decoded region (up to 4 times bigger after the power-of-two subsampling).
+    private static int getStripHeight(int width, int height, long memoryBudget) {
+        long bytesPerRow = (long) width * 4 * 6;
+        int rows = (int) Math.min(height, memoryBudget / bytesPerRow);
+        return Math.max(Math.min(height, 16), rows);
+    }
+
+    /**
+     * Applies the size and the crop of the request to an oriented bitmap, the source is not recycled.
+     * It can return the source itself if nothing should be changed.
+     */
+    static Bitmap resize(Bitmap source, Request request) {
+        Plan plan = Plan.create(source.getWidth(), source.getHeight(), 0, request);
+        Rect crop = plan.getSourceCropRect();
+        Matrix matrix = plan.createMatrix(plan.scaleX, plan.scaleY, null);
+        return Bitmap.createBitmap(source, crop.left, crop.top, crop.width(), crop.height(), matrix, true);
+    }
+
+    /**
+     * @return How much of an oriented photo is needed for the request (1 is the full size).
+     */
+    static float getRequiredScale(int width, int height, @Nullable Request request) {
+        Plan plan = Plan.create(width, height, 0, request);
+        return Math.min(1, Math.max(plan.scaleX, plan.scaleY));
+    }
+
+    /**
+     * @return true if the request only scales an oriented photo uniformly,
+     * so smaller sizes can be made from the result.
+     */
+    static boolean keepsWholePhoto(int width, int height, @Nullable Request request) {
+        Plan plan = Plan.create(width, height, 0, request);
+        return plan.isUniform() && !plan.isCropped();
+    }
+
+    // returns null if the format is not supported by BitmapRegionDecoder (only JPEG and PNG are).
+    private static Bitmap decodeRegion(File file, Plan plan) {
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = plan.sampleSize;
+            return decoder.decodeRegion(plan.getSourceCropRect(), options);
+        } catch (IOException e) {
+            L.w("Region decoding is not supported, decode the whole photo: " + e.getMessage());
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * Sizes are calculated for the oriented photo (EXIF rotation applied), like the user sees it.
+     */
+    static final class Plan {
+
+        final int sourceWidth;
+        final int sourceHeight;
+        final int exifDegrees;
+        final boolean swapSides;
+
+        // in the oriented coordinates
+        final int cropWidth;
+        final int cropHeight;
+        final float scaleX;
+        final float scaleY;
+
+        final int sampleSize;
+
+        private Plan(int sourceWidth, int sourceHeight, int exifDegrees, int cropWidth, int cropHeight,
+                     float scaleX, float scaleY) {
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.exifDegrees = exifDegrees;
+            swapSides = exifDegrees == 90 || exifDegrees == 270;
+            this.cropWidth = cropWidth;
+            this.cropHeight = cropHeight;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            sampleSize = calculateSampleSize(Math.max(scaleX, scaleY));
+        }
+
+        static Plan create(int sourceWidth, int sourceHeight, int exifDegrees, @Nullable Request request) {
+            boolean swap = exifDegrees == 90 || exifDegrees == 270;
+            int width = swap ? sourceHeight : sourceWidth;
+            int height = swap ? sourceWidth : sourceHeight;
+
+            if (request == null || !request.hasSize()) {
+                return new Plan(sourceWidth, sourceHeight, exifDegrees, width, height, 1, 1);
+            }
+
+            int targetWidth = request.targetWidth;
+            int targetHeight = request.targetHeight;
+            float widthRatio = targetWidth != 0 ? targetWidth / (float) width : targetHeight / (float) height;
+            float heightRatio = targetHeight != 0 ? targetHeight / (float) height : targetWidth / (float) width;
+
+            boolean shouldResize = shouldResize(request.onlyScaleDown, width, height, targetWidth, targetHeight);
+            if (request.centerCrop) {
+                float scale = Math.max(widthRatio, heightRatio);
+                // the crop has the target aspect ratio even if the photo is not scaled.
+                int cropWidth = targetWidth != 0
+                        ? Math.min(width, Math.max(1, Math.round(targetWidth / scale))) : width;
+                int cropHeight = targetHeight != 0
+                        ? Math.min(height, Math.max(1, Math.round(targetHeight / scale))) : height;
+                if (!shouldResize) {
+                    scale = 1;
+                }
+
+                return new Plan(sourceWidth, sourceHeight, exifDegrees, cropWidth, cropHeight, scale, scale);
+            } else if (request.centerInside) {
+                float scale = shouldResize ? Math.min(widthRatio, heightRatio) : 1;
+                return new Plan(sourceWidth, sourceHeight, exifDegrees, width, height, scale, scale);
+            } else {
+                if (!shouldResize) {
+                    widthRatio = 1;
+                    heightRatio = 1;
+                }
+
+                return new Plan(sourceWidth, sourceHeight, exifDegrees, width, height, widthRatio, heightRatio);
+            }
+        }
+
+        // the same as in Picasso's BitmapHunter: onlyScaleDown skips the scale only if both sides fit.
+        private static boolean shouldResize(boolean onlyScaleDown, int width, int height, int targetWidth,
+                                            int targetHeight) {
+            return !onlyScaleDown || width > targetWidth || height > targetHeight;
+        }
+
+        // the biggest power of two which keeps the decoded photo not smaller than the target.
+        private static int calculateSampleSize(float scale) {
+            int sampleSize = 1;
+            while (scale * sampleSize * 2 <= 1) {
+                sampleSize *= 2;
+            }
+
+            return sampleSize;
+        }
+
+        boolean isCropped() {
+            int width = swapSides ? sourceHeight : sourceWidth;
+            int height = swapSides ? sourceWidth : sourceHeight;
+            return cropWidth < width || cropHeight < height;
+        }
+
+        // the crop is centered, so it is centered in the source (not oriented) coordinates too.
+        Rect getSourceCropRect() {
+            int width = swapSides ? cropHeight : cropWidth;
+            int height = swapSides ? cropWidth : cropHeight;
+            int left = (sourceWidth - width) / 2;
+            int top = (sourceHeight - height) / 2;
+            return new Rect(left, top, left + width, top + height);
+        }
+
+        float getSourceScaleX() {
+            return swapSides ? scaleY : scaleX;
+        }
+
+        float getSourceScaleY() {
+            return swapSides ? scaleX : scaleY;
+        }
+
+        /**
+         * @return Bytes needed by {@link #decode}: the decoded photo or region and the transformed copy (ARGB_8888).
+         */
+        long getDecodeBytes() {
+            int width = isCropped() ? (swapSides ? cropHeight : cropWidth) : sourceWidth;
+            int height = isCropped() ? (swapSides ? cropWidth : cropHeight) : sourceHeight;
+            long decoded = (long) ((width + sampleSize - 1) / sampleSize) * ((height + sampleSize - 1) / sampleSize);
+            long output = (long) getOutputWidth() * getOutputHeight();
+            return (decoded + output) * 4;
+        }
+
+        boolean isUniform() {
+            return scaleX == scaleY;
+        }
+
+        int getOutputWidth() {
+            return Math.max(1, Math.round(cropWidth * scaleX));
+        }
+
+        int getOutputHeight() {
+            return Math.max(1, Math.round(cropHeight * scaleY));
+        }
+
+        /**
+         * Lets the decoder do the rest of a uniform downscale after subsampling, so we don't need
+         * a second full-size bitmap for the matrix scale.
+         */
+        void setExactScale(BitmapFactory.Options options) {
+            if (!isUniform() || scaleX >= 1) {
+                return;
+            }
+
+            // the same rounding as libjpeg uses for the scaled output.
+            int sampledWidth = (sourceWidth + options.inSampleSize - 1) / options.inSampleSize;
+            int scaledWidth = Math.max(1, Math.round(sourceWidth * scaleX));
+            if (scaledWidth < sampledWidth) {
+                options.inScaled = true;
+                options.inDensity = sampledWidth;
+                options.inTargetDensity = scaledWidth;
+            }
+        }
+
+        /**
+         * Crops, scales and rotates the decoded bitmap, the decoded bitmap is recycled if a new one is created.
+         */
+        Bitmap transform(Bitmap decoded, @Nullable Request request) {
+            int decodedWidth = decoded.getWidth();
+            int decodedHeight = decoded.getHeight();
+            float decodedRatioX = decodedWidth / (float) sourceWidth;
+            float decodedRatioY = decodedHeight / (float) sourceHeight;
+
+            // back to the source (not oriented) coordinates
+            int sourceCropWidth = swapSides ? cropHeight : cropWidth;
+            int sourceCropHeight = swapSides ? cropWidth : cropHeight;
+            float sourceScaleX = getSourceScaleX();
+            float sourceScaleY = getSourceScaleY();
+
+            int width = Math.min(decodedWidth, Math.max(1, Math.round(sourceCropWidth * decodedRatioX)));
+            int height = Math.min(decodedHeight, Math.max(1, Math.round(sourceCropHeight * decodedRatioY)));
+            int x = (decodedWidth - width) / 2;
+            int y = (decodedHeight - height) / 2;
+
+            return transform(decoded, x, y, width, height, sourceScaleX / decodedRatioX,
+                    sourceScaleY / decodedRatioY, request);
+        }
+
+        /**
+         * The same as {@link #transform(Bitmap, Request)}, but the bitmap contains only the crop region.
+         */
+        Bitmap transformRegion(Bitmap region, @Nullable Request request) {
+            Rect crop = getSourceCropRect();
+            float matrixScaleX = getSourceScaleX() * crop.width() / region.getWidth();
+            float matrixScaleY = getSourceScaleY() * crop.height() / region.getHeight();
+
+            return transform(region, 0, 0, region.getWidth(), region.getHeight(), matrixScaleX, matrixScaleY,
+                    request);
+        }
+
+        Bitmap transform(Bitmap decoded, int x, int y, int width, int height, float matrixScaleX,
+                         float matrixScaleY, @Nullable Request request) {
+            Matrix matrix = createMatrix(matrixScaleX, matrixScaleY, request);
+            if (matrix.isIdentity() && x == 0 && y == 0 && width == decoded.getWidth()
+                    && height == decoded.getHeight()) {
+                return decoded;
+            }
+
+            Bitmap result = Bitmap.createBitmap(decoded, x, y, width, height, matrix, true);
+            if (result != decoded) {
+                decoded.recycle();
+            }
+
+            return result;
+        }
+
+        // scales in the source axes, then rotates by EXIF and by the request.
+        Matrix createMatrix(float matrixScaleX, float matrixScaleY, @Nullable Request request) {
+            Matrix matrix = new Matrix();
+            if (Math.abs(matrixScaleX - 1) > 0.001f || Math.abs(matrixScaleY - 1) > 0.001f) {
+                matrix.postScale(matrixScaleX, matrixScaleY);
+            }
+
+            if (exifDegrees != 0) {
+                matrix.postRotate(exifDegrees);
+            }
+
+            if (request != null && request.rotationDegrees != 0) {
+                if (request.hasRotationPivot) {
+                    matrix.postRotate(request.rotationDegrees, request.rotationPivotX, request.rotationPivotY);
+                } else {
+                    matrix.postRotate(request.rotationDegrees);
+                }
+            }
+
+            return matrix;
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.support.annotation.Nullable;
+
+import com.evgeniysharafan.utils.L;
+import com.evgeniysharafan.utils.Utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+
+/**
+ * Picked photo which didn't need processing, it points to the original instead of a copy.
+ * <p>Read it with {@link #openInputStream()} or {@link #openFileDescriptor()}. If you need a file,
+ * {@link #getFile()} copies the photo to the album directory on the first call.</p>
+ * <p>Access to a content Uri may be granted only to the activity which received it,
+ * so read the photo before it is finished.</p>
+ */
+public final class PhotoReference {
+
+    private final Uri uri;
+    private final String mimeType;
+    private final long size;
+    private final File file;
+    private boolean isCopied;
+
+    private PhotoReference(Uri uri, String mimeType, long size, File file) {
+        this.uri = uri;
+        this.mimeType = mimeType;
+        this.size = size;
+        this.file = file;
+    }
+
+    /**
+     * @param file Where {@link #getFile()} copies the photo.
+     */
+    static PhotoReference create(Uri uri, File file) {
+        ContentResolver resolver = Utils.getApp().getContentResolver();
+        long size = -1;
+        String mimeType;
+
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            size = new File(uri.getPath()).length();
+            mimeType = URLConnection.guessContentTypeFromName(uri.getPath());
+        } else {
+            mimeType = resolver.getType(uri);
+
+            Cursor cursor = null;
+            try {
+                cursor = resolver.query(uri, new String[]{OpenableColumns.SIZE}, null, null, null);
+                if (cursor != null && cursor.moveToFirst()) {
+                    int column = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    if (column >= 0 && !cursor.isNull(column)) {
+                        size = cursor.getLong(column);
+                    }
+                }
+            } catch (Exception e) {
+                L.e(e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        return new PhotoReference(uri, mimeType, size, file);
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    /**
+     * @return null if the provider doesn't report it.
+     */
+    @Nullable
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return Size in bytes or -1 if the provider doesn't report it.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public InputStream openInputStream() throws FileNotFoundException {
+        InputStream in = Utils.getApp().getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("Can't open " + uri);
+        }
+
+        return in;
+    }
+
+    /**
+     * Close the descriptor when you don't need it.
+     */
+    public ParcelFileDescriptor openFileDescriptor() throws FileNotFoundException {
+        ParcelFileDescriptor descriptor = Utils.getApp().getContentResolver().openFileDescriptor(uri, "r");
+        if (descriptor == null) {
+            throw new FileNotFoundException("Can't open " + uri);
+        }
+
+        return descriptor;
+    }
+
+    /**
+     * Copies the photo to the album directory on the first call, don't call it on the main thread.
+     */
+    public synchronized File getFile() throws IOException {
+        if (!isCopied) {
+            FileTransfer.Stats stats = ContentResolver.SCHEME_FILE.equals(uri.getScheme())
+                    ? FileTransfer.copy(new File(uri.getPath()), file)
+                    : ContentTransfer.copy(Utils.getApp().getContentResolver(), uri, file);
+            if (stats == null) {
+                throw new FileNotFoundException("Can't open " + uri);
+            }
+
+            isCopied = true;
+            // the album is cleaned up by its index, the copy must be evicted like other photos.
+            TakePhoto.getInstance().addCopiedReference(file);
+        }
+
+        return file;
+    }
+
+    @Override
+    public String toString() {
+        return "PhotoReference{uri=" + uri + ", mimeType=" + mimeType + ", size=" + size + "}";
+    }
+
+}
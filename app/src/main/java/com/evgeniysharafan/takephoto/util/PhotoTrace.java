@@ -0,0 +1,89 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Systrace sections of the photo pipeline, named "TakePhoto#jobId stage" so stages of one job can be found
+ * on all threads, including the main thread hops of the delivery.
+ * <p>The job id is chosen when a job starts, a job without an id (tracing is off or API < 18) is not traced,
+ * so begin and end calls of a job are always balanced even if tracing is turned on in the middle of it.</p>
+ */
+final class PhotoTrace {
+
+    private static final String SECTION_PREFIX = "TakePhoto#";
+    // Trace.beginSection() throws for longer names.
+    private static final int MAX_SECTION_LENGTH = 127;
+
+    private static final AtomicInteger nextJobId = new AtomicInteger(1);
+    private static final ThreadLocal<Integer> currentJobId = new ThreadLocal<>();
+    private static volatile boolean isEnabled;
+
+    private PhotoTrace() {
+    }
+
+    static void setEnabled(boolean enabled) {
+        isEnabled = enabled;
+    }
+
+    /**
+     * @return Id of a new job or 0 if it is not traced.
+     */
+    static int newJobId() {
+        return isEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                ? nextJobId.getAndIncrement() : 0;
+    }
+
+    static void attach(int jobId) {
+        currentJobId.set(jobId);
+    }
+
+    static void detach() {
+        currentJobId.remove();
+    }
+
+    /**
+     * @return Id of the job of the current thread or 0.
+     */
+    static int getJobId() {
+        Integer jobId = currentJobId.get();
+        return jobId != null ? jobId : 0;
+    }
+
+    static void begin(String stage) {
+        begin(getJobId(), stage);
+    }
+
+    static void end() {
+        end(getJobId());
+    }
+
+    // the id is passed explicitly on threads which don't have the job attached, e.g. the main thread.
+    static void begin(int jobId, String stage) {
+        if (jobId != 0) {
+            String name = SECTION_PREFIX + jobId + " " + stage;
+            beginSection(name.length() > MAX_SECTION_LENGTH ? name.substring(0, MAX_SECTION_LENGTH) : name);
+        }
+    }
+
+    static void end(int jobId) {
+        if (jobId != 0) {
+            endSection();
+        }
+    }
+
+    // newJobId() returns 0 below API 18, so the calls are never made there.
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void endSection() {
+        Trace.endSection();
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool for the background stages of TakePhoto (copy, EXIF check, save).
+ * <p>Threads are named, run with the background priority and die after {@link #KEEP_ALIVE_SECONDS} of idling.
+ * The queue is bounded, so a burst of picks is rejected instead of piling up decoded images in memory.</p>
+ */
+public class ProcessingExecutor extends ThreadPoolExecutor {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+    public static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final String THREAD_NAME_PREFIX = "TakePhoto-Processing-";
+
+    public ProcessingExecutor() {
+        this(getDefaultThreadCount(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public ProcessingExecutor(int threadCount, int queueCapacity) {
+        this(threadCount, queueCapacity, new AbortPolicy());
+    }
+
+    /**
+     * @param rejectionHandler Called when all threads are busy and the queue is full.
+     *                         TakePhoto reports an error for the job if the handler throws.
+     */
+    public ProcessingExecutor(int threadCount, int queueCapacity, RejectedExecutionHandler rejectionHandler) {
+        super(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), new ProcessingThreadFactory(THREAD_NAME_PREFIX),
+                rejectionHandler);
+        allowCoreThreadTimeOut(true);
+    }
+
+    // decoding is memory bound, so we leave one core for the UI and never run more than 2 decodes at once.
+    public static int getDefaultThreadCount() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(processors - 1, 2));
+    }
+
+    // named daemon threads with the background priority, TakePhoto uses it for its own threads too.
+    static final class ProcessingThreadFactory implements ThreadFactory {
+
+        private final String namePrefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        ProcessingThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+
+}
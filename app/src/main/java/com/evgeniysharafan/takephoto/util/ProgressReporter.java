@@ -0,0 +1,95 @@
+package com.evgeniysharafan.takephoto.util;
+
+import com.evgeniysharafan.utils.Utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of one job for {@link TakePhoto.OnPhotoProgressListener}.
+ * <p>Background threads only update counters. At most one task is posted to the main thread at a time,
+ * and at most one per {@link #MIN_INTERVAL_MILLIS} unless the stage changes, the task reads the latest values.
+ * Nothing is posted if the listener of the job doesn't want the progress.</p>
+ * <p>The photos of a batch are counted together, the total grows when a photo starts to be copied.</p>
+ */
+final class ProgressReporter implements FileTransfer.ProgressListener {
+
+    static final long MIN_INTERVAL_MILLIS = 100;
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(MIN_INTERVAL_MILLIS);
+
+    private final PhotoJob job;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicBoolean isPosted = new AtomicBoolean();
+    private volatile boolean isTotalUnknown;
+    private volatile JobMetrics.Stage stage = JobMetrics.Stage.COPY;
+    private volatile long lastPostNanos;
+
+    private final Runnable update = new Runnable() {
+        @Override
+        public void run() {
+            isPosted.set(false);
+            TakePhoto.OnPhotoTakenListener listener = job.listener;
+            // the photo could be delivered after the task has been posted.
+            if (listener instanceof TakePhoto.OnPhotoProgressListener && job.isRunning()) {
+                ((TakePhoto.OnPhotoProgressListener) listener).onPhotoProgress(job, stage, bytes.get(),
+                        isTotalUnknown ? -1 : totalBytes.get());
+            }
+        }
+    };
+
+    ProgressReporter(PhotoJob job) {
+        this.job = job;
+    }
+
+    boolean isWanted() {
+        return job.listener instanceof TakePhoto.OnPhotoProgressListener;
+    }
+
+    /**
+     * @param declaredBytes Size of the source, e.g. OpenableColumns.SIZE, or -1 if the provider doesn't report it.
+     */
+    void startCopy(long declaredBytes) {
+        if (declaredBytes >= 0) {
+            totalBytes.addAndGet(declaredBytes);
+        } else {
+            isTotalUnknown = true;
+        }
+
+        setStage(JobMetrics.Stage.COPY, true);
+    }
+
+    void setStage(JobMetrics.Stage stage) {
+        setStage(stage, stage != this.stage);
+    }
+
+    private void setStage(JobMetrics.Stage stage, boolean isChanged) {
+        this.stage = stage;
+        post(isChanged);
+    }
+
+    @Override
+    public void onTransferred(long count) {
+        bytes.addAndGet(count);
+        post(false);
+    }
+
+    private void post(boolean isForced) {
+        if (!isWanted()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (!isForced && now - lastPostNanos < MIN_INTERVAL_NANOS) {
+            return;
+        }
+
+        // a posted task which hasn't run yet shows the latest values anyway.
+        if (isPosted.compareAndSet(false, true)) {
+            lastPostNanos = now;
+            Utils.runOnUiThread(update);
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Binary search of the highest encoder quality which keeps the output under a size limit.
+ * It takes at most 8 encodes, fewer if the caller limits them. Pure Java, it doesn't depend on the Android SDK.
+ */
+final class QualitySearch {
+
+    static final int MIN_QUALITY = 10;
+    static final int MAX_ENCODES = 8;
+
+    interface Encoder {
+        void encode(int quality, OutputStream out) throws IOException;
+    }
+
+    private QualitySearch() {
+    }
+
+    /**
+     * @param result If it is not null, it gets the output of the returned quality, so it doesn't need
+     *               to be encoded again.
+     * @return The highest quality which fits or the lowest quality if nothing fits.
+     */
+    static int findQuality(Encoder encoder, int maxQuality, long maxBytes, ByteArrayOutputStream result)
+            throws IOException {
+        return findQuality(encoder, maxQuality, maxBytes, result, MAX_ENCODES);
+    }
+
+    /**
+     * @param maxEncodes The search stops after this many encodes with the best quality found so far,
+     *                   e.g. if every encode is a slow pass over the whole photo.
+     */
+    static int findQuality(Encoder encoder, int maxQuality, long maxBytes, ByteArrayOutputStream result,
+                           int maxEncodes) throws IOException {
+        ByteArrayOutputStream attempt = result != null ? new ByteArrayOutputStream() : null;
+        int low = Math.min(MIN_QUALITY, maxQuality);
+        int high = maxQuality;
+        int best = -1;
+
+        // the highest quality first, most photos fit at once.
+        int quality = high;
+        int encodes = 0;
+        while (low <= high && encodes++ < maxEncodes) {
+            boolean fits = encode(encoder, quality, attempt) <= maxBytes;
+            if (fits) {
+                best = quality;
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+
+            // nothing fits if the lowest quality has been tried last, so keep it too.
+            if (result != null && (fits || (best < 0 && quality == low))) {
+                result.reset();
+                attempt.writeTo(result);
+            }
+
+            quality = (low + high) / 2;
+        }
+
+        return best >= 0 ? best : Math.min(MIN_QUALITY, maxQuality);
+    }
+
+    private static long encode(Encoder encoder, int quality, ByteArrayOutputStream buffer) throws IOException {
+        if (buffer != null) {
+            buffer.reset();
+        }
+
+        CountingOutputStream out = new CountingOutputStream(buffer);
+        encoder.encode(quality, out);
+        return out.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+            if (out != null) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+            if (out != null) {
+                out.write(b, off, len);
+            }
+        }
+    }
+
+}
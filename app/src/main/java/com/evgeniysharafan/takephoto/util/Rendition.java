@@ -0,0 +1,44 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.support.annotation.Nullable;
+
+import com.squareup.picasso.Request;
+
+/**
+ * One of several outputs made from one decode of a photo, see {@link TakePhoto#setRenditions}.
+ * Example: new Rendition("thumb", new Request.Builder(42).resize(200, 200).centerCrop().build(),
+ * new OutputSpec.Builder().quality(80).build());
+ */
+public final class Rendition {
+
+    public final String name;
+    // size and crop, rotation is ignored (the request of the photo is applied before all renditions).
+    public final Request request;
+    public final OutputSpec spec;
+
+    /**
+     * @param name    Unique name, it is added to the file name.
+     * @param request Supported methods: resize, centerCrop, centerInside, onlyScaleDown.
+     *                Null or a request without a size means the full-size photo.
+     * @param spec    Null means JPEG with quality 100.
+     */
+    public Rendition(String name, @Nullable Request request, @Nullable OutputSpec spec) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("name should not be empty");
+        }
+
+        this.name = name;
+        this.request = request;
+        this.spec = spec != null ? spec : OutputSpec.DEFAULT;
+    }
+
+    public boolean hasSize() {
+        return request != null && request.hasSize();
+    }
+
+    @Override
+    public String toString() {
+        return "Rendition{name=" + name + ", spec=" + spec + "}";
+    }
+
+}
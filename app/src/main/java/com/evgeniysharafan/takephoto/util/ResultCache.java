@@ -0,0 +1,183 @@
+package com.evgeniysharafan.takephoto.util;
+
+import com.evgeniysharafan.utils.L;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Processed photos keyed by their source and the processing signature, stored as files in a directory.
+ * <p>The last access time is the modification time of a file, so the LRU order survives process restarts
+ * without an index. The directory is listed once, later the sizes and the LRU order are kept in memory.
+ * The least recently used files are deleted when the cache is bigger than its limit.
+ * If the file system ignores setLastModified(), the order is by creation time.</p>
+ */
+final class ResultCache {
+
+    private static final String[] SUFFIXES = {".jpg", ".webp"};
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final long maxBytes;
+    // file name -> size, in access order.
+    private final Map<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private boolean isLoaded;
+
+    ResultCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param source    Identity of the source: uri, size and modification time, or a content hash.
+     * @param signature Canonical description of the processing.
+     */
+    static String createKey(String source, String signature) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(source.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(signature.getBytes("UTF-8"));
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * @return null if there is no result for the key.
+     */
+    synchronized File get(String key) {
+        load();
+        for (String suffix : SUFFIXES) {
+            File file = new File(dir, key + suffix);
+            if (sizes.get(file.getName()) != null) {
+                if (!file.isFile()) {
+                    // deleted outside the cache.
+                    totalBytes -= sizes.remove(file.getName());
+                    continue;
+                }
+
+                file.setLastModified(System.currentTimeMillis());
+                return file;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Copies the result to the cache, errors are only logged because the cache is optional.
+     * Call it off the delivery path, it writes the whole photo once more.
+     */
+    synchronized void put(String key, File result) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            L.w("Can't create the result cache directory " + dir);
+            return;
+        }
+
+        load();
+        String name = result.getName();
+        String suffix = name.endsWith(SUFFIXES[1]) ? SUFFIXES[1] : SUFFIXES[0];
+        File file = new File(dir, key + suffix);
+        File tempFile = new File(dir, key + suffix + TEMP_SUFFIX);
+        try {
+            FileTransfer.copy(result, tempFile);
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Can't rename " + tempFile);
+            }
+        } catch (IOException e) {
+            L.e(e);
+            tempFile.delete();
+            return;
+        }
+
+        Long previous = sizes.put(file.getName(), file.length());
+        totalBytes += file.length() - (previous != null ? previous : 0);
+        trim();
+    }
+
+    synchronized void clear() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        sizes.clear();
+        totalBytes = 0;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            File file = new File(dir, entry.getKey());
+            if (file.delete() || !file.exists()) {
+                totalBytes -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    // the LRU order of the previous runs is restored from the modification times.
+    private void load() {
+        if (isLoaded) {
+            return;
+        }
+
+        isLoaded = true;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // lastModified() is read once, it can change while sorting.
+        final long[] accessTimes = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            accessTimes[i] = files[i].lastModified();
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return accessTimes[lhs] < accessTimes[rhs] ? -1 : (accessTimes[lhs] == accessTimes[rhs] ? 0 : 1);
+            }
+        });
+
+        for (Integer i : order) {
+            File file = files[i];
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // a copy interrupted by the death of the process.
+                file.delete();
+            } else if (file.isFile()) {
+                sizes.put(file.getName(), file.length());
+                totalBytes += file.length();
+            }
+        }
+
+        trim();
+    }
+
+}
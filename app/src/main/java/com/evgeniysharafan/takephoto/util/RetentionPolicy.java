@@ -0,0 +1,107 @@
+package com.evgeniysharafan.takephoto.util;
+
+/**
+ * Which photos of the album to keep, it is applied in the background by
+ * {@link TakePhoto#scheduleAlbumCleanup(RetentionPolicy)}.
+ * Example: new RetentionPolicy.Builder().remainDays(10).maxBytes(100 * 1024 * 1024).build();
+ */
+public final class RetentionPolicy {
+
+    public static final int DEFAULT_BATCH_SIZE = 8;
+    public static final int DEFAULT_DELETIONS_PER_SECOND = 20;
+
+    // 0 if there is no limit.
+    public final int remainCount;
+    public final int remainDays;
+    public final long maxBytes;
+    public final int batchSize;
+    public final int deletionsPerSecond;
+
+    private RetentionPolicy(Builder builder) {
+        remainCount = builder.remainCount;
+        remainDays = builder.remainDays;
+        maxBytes = builder.maxBytes;
+        batchSize = builder.batchSize;
+        deletionsPerSecond = builder.deletionsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "RetentionPolicy{remainCount=" + remainCount + ", remainDays=" + remainDays + ", maxBytes=" + maxBytes
+                + ", batchSize=" + batchSize + ", deletionsPerSecond=" + deletionsPerSecond + "}";
+    }
+
+    public static final class Builder {
+
+        private int remainCount;
+        private int remainDays;
+        private long maxBytes;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private int deletionsPerSecond = DEFAULT_DELETIONS_PER_SECOND;
+
+        /**
+         * Keep only the latest count photos.
+         */
+        public Builder remainCount(int count) {
+            if (count <= 0) {
+                throw new IllegalArgumentException("count should be > 0");
+            }
+
+            remainCount = count;
+            return this;
+        }
+
+        /**
+         * Keep only photos taken during the latest days.
+         */
+        public Builder remainDays(int days) {
+            if (days <= 0) {
+                throw new IllegalArgumentException("days should be > 0");
+            }
+
+            remainDays = days;
+            return this;
+        }
+
+        /**
+         * Delete the least recently used photos until the album is not bigger than maxBytes.
+         */
+        public Builder maxBytes(long maxBytes) {
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("maxBytes should be > 0");
+            }
+
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * @param batchSize How many photos are deleted at once, the album index is locked while a batch is deleted.
+         */
+        public Builder batchSize(int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("batchSize should be > 0");
+            }
+
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * @param deletionsPerSecond Rate limit, batches are delayed to keep the storage free for the camera.
+         */
+        public Builder deletionsPerSecond(int deletionsPerSecond) {
+            if (deletionsPerSecond <= 0) {
+                throw new IllegalArgumentException("deletionsPerSecond should be > 0");
+            }
+
+            this.deletionsPerSecond = deletionsPerSecond;
+            return this;
+        }
+
+        public RetentionPolicy build() {
+            return new RetentionPolicy(this);
+        }
+    }
+
+}
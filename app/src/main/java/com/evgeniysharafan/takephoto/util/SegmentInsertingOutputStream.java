@@ -0,0 +1,54 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Inserts a segment (e.g. Exif) right after SOI of the JPEG stream written through it,
+ * so an encoder which knows nothing about the segment still writes the file only once.
+ */
+final class SegmentInsertingOutputStream extends FilterOutputStream {
+
+    private final byte[] segment;
+    // bytes of SOI written so far, the segment is inserted when it is 2.
+    private int headerPosition;
+
+    SegmentInsertingOutputStream(OutputStream out, byte[] segment) {
+        super(out);
+        this.segment = segment;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (headerPosition < 2) {
+            onHeaderByte(b & 0xFF);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (headerPosition < 2 && len > 0) {
+            write(b[off++]);
+            len--;
+        }
+
+        if (len > 0) {
+            out.write(b, off, len);
+        }
+    }
+
+    private void onHeaderByte(int b) throws IOException {
+        int expected = headerPosition == 0 ? 0xFF : Jpeg.MARKER_SOI;
+        if (b != expected) {
+            throw new IOException("The stream is not a JPEG");
+        }
+
+        headerPosition++;
+        if (headerPosition == 2) {
+            out.write(segment);
+        }
+    }
+
+}
@@ -0,0 +1,343 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Baseline JPEG encoder (YCbCr 4:2:0, standard Huffman tables) that takes pixels row by row.
+ * <p>It keeps only one MCU row (16 pixel rows) in memory, so an image of any size can be written
+ * from tiles. Rows are written top to bottom with {@link #writeRows(int[], int, int, int)}.
+ * Pure Java, it doesn't depend on the Android SDK.</p>
+ */
+final class StreamingJpegEncoder {
+
+    private static final int MCU_SIZE = 16;
+
+    private static final float[] AAN_SCALE_FACTORS = {
+            1.0f, 1.387039845f, 1.306562965f, 1.175875602f, 1.0f, 0.785694958f, 0.541196100f, 0.275899379f
+    };
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final int paddedWidth;
+
+    // divisors for the AAN DCT output in natural order
+    private final float[] luminanceDivisors;
+    private final float[] chrominanceDivisors;
+    private final int[] luminanceQuantTable;
+    private final int[] chrominanceQuantTable;
+
+    private final JpegHuffmanTable luminanceDc = JpegHuffmanTable.standardDc(true);
+    private final JpegHuffmanTable luminanceAc = JpegHuffmanTable.standardAc(true);
+    private final JpegHuffmanTable chrominanceDc = JpegHuffmanTable.standardDc(false);
+    private final JpegHuffmanTable chrominanceAc = JpegHuffmanTable.standardAc(false);
+
+    private final JpegBitWriter writer;
+
+    // one MCU row of the color planes
+    private final float[] yPlane;
+    private final float[] cbPlane;
+    private final float[] crPlane;
+    private int bufferedRows;
+    private int writtenRows;
+
+    private final float[] block = new float[64];
+    private final int[] quantized = new int[64];
+    private int yPrediction;
+    private int cbPrediction;
+    private int crPrediction;
+
+    /**
+     * @param quality 1-100, the same scale as {@link android.graphics.Bitmap#compress}.
+     */
+    StreamingJpegEncoder(OutputStream out, int width, int height, int quality) {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        paddedWidth = (width + MCU_SIZE - 1) / MCU_SIZE * MCU_SIZE;
+
+        luminanceQuantTable = Jpeg.getQuantTable(true, quality);
+        chrominanceQuantTable = Jpeg.getQuantTable(false, quality);
+        luminanceDivisors = getDivisors(luminanceQuantTable);
+        chrominanceDivisors = getDivisors(chrominanceQuantTable);
+
+        writer = new JpegBitWriter(out);
+        yPlane = new float[paddedWidth * MCU_SIZE];
+        cbPlane = new float[paddedWidth * MCU_SIZE];
+        crPlane = new float[paddedWidth * MCU_SIZE];
+    }
+
+    private static float[] getDivisors(int[] quantTable) {
+        float[] divisors = new float[64];
+        for (int row = 0; row < 8; row++) {
+            for (int column = 0; column < 8; column++) {
+                int i = row * 8 + column;
+                divisors[i] = 1.0f / (quantTable[i] * AAN_SCALE_FACTORS[row] * AAN_SCALE_FACTORS[column] * 8.0f);
+            }
+        }
+
+        return divisors;
+    }
+
+    /**
+     * Writes all headers.
+     *
+     * @param segments Complete APPn/COM segments (with the marker and the length) to write after SOI,
+     *                 e.g. the Exif segment of the source photo.
+     */
+    void start(List<byte[]> segments) throws IOException {
+        out.write(0xFF);
+        out.write(Jpeg.MARKER_SOI);
+        if (segments != null) {
+            for (byte[] segment : segments) {
+                out.write(segment);
+            }
+        }
+
+        writeQuantTable(0, luminanceQuantTable);
+        writeQuantTable(1, chrominanceQuantTable);
+
+        Jpeg.writeMarker(out, Jpeg.MARKER_SOF0, 6 + 3 * 3);
+        out.write(8);
+        Jpeg.writeShort(out, height);
+        Jpeg.writeShort(out, width);
+        out.write(3);
+        out.write(1);
+        out.write(0x22);
+        out.write(0);
+        out.write(2);
+        out.write(0x11);
+        out.write(1);
+        out.write(3);
+        out.write(0x11);
+        out.write(1);
+
+        luminanceDc.write(out, 0, 0);
+        luminanceAc.write(out, 1, 0);
+        chrominanceDc.write(out, 0, 1);
+        chrominanceAc.write(out, 1, 1);
+
+        Jpeg.writeMarker(out, Jpeg.MARKER_SOS, 1 + 3 * 2 + 3);
+        out.write(3);
+        out.write(1);
+        out.write(0x00);
+        out.write(2);
+        out.write(0x11);
+        out.write(3);
+        out.write(0x11);
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+
+    private void writeQuantTable(int id, int[] table) throws IOException {
+        Jpeg.writeMarker(out, Jpeg.MARKER_DQT, 65);
+        out.write(id);
+        for (int k = 0; k < 64; k++) {
+            out.write(table[Jpeg.ZIGZAG[k]]);
+        }
+    }
+
+    /**
+     * @param argb   Pixels in the {@link android.graphics.Bitmap#getPixels} format, alpha is ignored.
+     * @param offset Index of the first pixel of the first row.
+     * @param stride Number of entries between rows, not less than the image width.
+     * @param rows   Number of rows to write.
+     */
+    void writeRows(int[] argb, int offset, int stride, int rows) throws IOException {
+        if (writtenRows + bufferedRows + rows > height) {
+            throw new IllegalArgumentException("Too many rows");
+        }
+
+        for (int r = 0; r < rows; r++) {
+            int source = offset + r * stride;
+            int target = bufferedRows * paddedWidth;
+            for (int x = 0; x < paddedWidth; x++) {
+                int pixel = argb[source + Math.min(x, width - 1)];
+                int red = (pixel >> 16) & 0xFF;
+                int green = (pixel >> 8) & 0xFF;
+                int blue = pixel & 0xFF;
+                yPlane[target + x] = 0.299f * red + 0.587f * green + 0.114f * blue - 128;
+                cbPlane[target + x] = -0.168736f * red - 0.331264f * green + 0.5f * blue;
+                crPlane[target + x] = 0.5f * red - 0.418688f * green - 0.081312f * blue;
+            }
+
+            bufferedRows++;
+            if (bufferedRows == MCU_SIZE) {
+                encodeMcuRow();
+            }
+        }
+    }
+
+    /**
+     * Encodes the buffered rows (the last row is repeated to fill the MCU row) and writes EOI.
+     */
+    void finish() throws IOException {
+        if (writtenRows + bufferedRows != height) {
+            throw new IllegalStateException("Expected " + height + " rows, got " + (writtenRows + bufferedRows));
+        }
+
+        if (bufferedRows > 0) {
+            int last = (bufferedRows - 1) * paddedWidth;
+            for (int r = bufferedRows; r < MCU_SIZE; r++) {
+                System.arraycopy(yPlane, last, yPlane, r * paddedWidth, paddedWidth);
+                System.arraycopy(cbPlane, last, cbPlane, r * paddedWidth, paddedWidth);
+                System.arraycopy(crPlane, last, crPlane, r * paddedWidth, paddedWidth);
+            }
+
+            int rows = bufferedRows;
+            encodeMcuRow();
+            writtenRows -= MCU_SIZE - rows;
+        }
+
+        writer.flush();
+        out.write(0xFF);
+        out.write(Jpeg.MARKER_EOI);
+    }
+
+    private void encodeMcuRow() throws IOException {
+        for (int mcuX = 0; mcuX < paddedWidth; mcuX += MCU_SIZE) {
+            for (int blockY = 0; blockY < MCU_SIZE; blockY += 8) {
+                for (int blockX = 0; blockX < MCU_SIZE; blockX += 8) {
+                    loadBlock(yPlane, mcuX + blockX, blockY);
+                    yPrediction = encodeBlock(luminanceDivisors, yPrediction, luminanceDc, luminanceAc);
+                }
+            }
+
+            loadSubsampledBlock(cbPlane, mcuX);
+            cbPrediction = encodeBlock(chrominanceDivisors, cbPrediction, chrominanceDc, chrominanceAc);
+            loadSubsampledBlock(crPlane, mcuX);
+            crPrediction = encodeBlock(chrominanceDivisors, crPrediction, chrominanceDc, chrominanceAc);
+        }
+
+        writtenRows += MCU_SIZE;
+        bufferedRows = 0;
+    }
+
+    private void loadBlock(float[] plane, int x, int y) {
+        for (int row = 0; row < 8; row++) {
+            System.arraycopy(plane, (y + row) * paddedWidth + x, block, row * 8, 8);
+        }
+    }
+
+    // averages 2x2 pixels, chroma is stored with the full resolution.
+    private void loadSubsampledBlock(float[] plane, int x) {
+        for (int row = 0; row < 8; row++) {
+            int top = row * 2 * paddedWidth + x;
+            int bottom = top + paddedWidth;
+            for (int column = 0; column < 8; column++) {
+                int i = column * 2;
+                block[row * 8 + column] = (plane[top + i] + plane[top + i + 1] + plane[bottom + i]
+                        + plane[bottom + i + 1]) * 0.25f;
+            }
+        }
+    }
+
+    private int encodeBlock(float[] divisors, int prediction, JpegHuffmanTable dcTable, JpegHuffmanTable acTable)
+            throws IOException {
+        forwardDct(block);
+        for (int k = 0; k < 64; k++) {
+            int natural = Jpeg.ZIGZAG[k];
+            quantized[k] = Math.round(block[natural] * divisors[natural]);
+        }
+
+        int dc = quantized[0];
+        int diff = dc - prediction;
+        int size = bitLength(diff);
+        writer.write(dcTable.codes[size], dcTable.codeLengths[size]);
+        if (size > 0) {
+            writer.write(diff < 0 ? diff - 1 : diff, size);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = quantized[k];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+
+            while (run > 15) {
+                writer.write(acTable.codes[0xF0], acTable.codeLengths[0xF0]);
+                run -= 16;
+            }
+
+            size = bitLength(value);
+            int symbol = (run << 4) | size;
+            writer.write(acTable.codes[symbol], acTable.codeLengths[symbol]);
+            writer.write(value < 0 ? value - 1 : value, size);
+            run = 0;
+        }
+
+        if (run > 0) {
+            writer.write(acTable.codes[0], acTable.codeLengths[0]);
+        }
+
+        return dc;
+    }
+
+    private static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    // AAN floating point forward DCT (libjpeg jfdctflt), the output is scaled by the AAN factors.
+    private static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            // rows on the first pass, columns on the second one
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int line = 0; line < 8; line++) {
+                int p = line * next;
+                int p0 = p;
+                int p1 = p + step;
+                int p2 = p + step * 2;
+                int p3 = p + step * 3;
+                int p4 = p + step * 4;
+                int p5 = p + step * 5;
+                int p6 = p + step * 6;
+                int p7 = p + step * 7;
+
+                float tmp0 = data[p0] + data[p7];
+                float tmp7 = data[p0] - data[p7];
+                float tmp1 = data[p1] + data[p6];
+                float tmp6 = data[p1] - data[p6];
+                float tmp2 = data[p2] + data[p5];
+                float tmp5 = data[p2] - data[p5];
+                float tmp3 = data[p3] + data[p4];
+                float tmp4 = data[p3] - data[p4];
+
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+
+                data[p0] = tmp10 + tmp11;
+                data[p4] = tmp10 - tmp11;
+
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[p2] = tmp13 + z1;
+                data[p6] = tmp13 - z1;
+
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+
+                data[p5] = z13 + z2;
+                data[p3] = z13 - z2;
+                data[p1] = z11 + z4;
+                data[p7] = z11 - z4;
+            }
+        }
+    }
+
+}
@@ -2,6 +2,7 @@ package com.evgeniysharafan.takephoto.util;
 
 import android.app.Activity;
 import android.app.Dialog;
+import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.DialogInterface;
@@ -10,12 +11,12 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.drawable.Drawable;
-import android.media.ExifInterface;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcelable;
 import android.provider.MediaStore;
+import android.provider.OpenableColumns;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.DialogFragment;
@@ -29,22 +30,33 @@ import com.evgeniysharafan.utils.L;
 import com.evgeniysharafan.utils.PrefUtils;
 import com.evgeniysharafan.utils.Res;
 import com.evgeniysharafan.utils.Utils;
-import com.squareup.picasso.Picasso;
 import com.squareup.picasso.Request;
-import com.squareup.picasso.RequestCreator;
-import com.squareup.picasso.Target;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
-import java.util.Locale;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings({"unused", "ResultOfMethodCallIgnored"})
 public class TakePhoto {
@@ -58,16 +70,111 @@ public class TakePhoto {
         void onPhotoError();
     }
 
+    /**
+     * Use it with showGalleryMultiple() and showSystemChooserMultiple().
+     * If the user picks only one photo, you get the callbacks of {@link OnPhotoTakenListener}.
+     */
+    public interface OnPhotosTakenListener extends OnPhotoTakenListener {
+        void onBatchPhotoTaken(int position, File photo);
+
+        void onBatchPhotoError(int position);
+
+        /**
+         * Enable the Photo button when you get this callback.
+         *
+         * @param photos Processed photos in the picked order, failed ones are skipped.
+         */
+        void onBatchCompleted(List<File> photos);
+    }
+
+    /**
+     * If a picked photo doesn't need processing (no request or {@link #DO_NOT_PROCESS_KEY}, and the orientation
+     * is known to be correct), it is not copied and you get a reference to the original instead.
+     * Camera photos and batches are always delivered as files.
+     */
+    public interface OnPhotoReferencedListener extends OnPhotoTakenListener {
+        /**
+         * Enable the Photo button when you get this callback.
+         */
+        void onPhotoReferenced(PhotoReference photo);
+    }
+
+    /**
+     * Use it with {@link #setRenditions}. Batches are delivered without renditions.
+     */
+    public interface OnRenditionsTakenListener extends OnPhotoTakenListener {
+        /**
+         * Enable the Photo button when you get this callback.
+         *
+         * @param renditions Files by rendition names in the declared order.
+         */
+        void onRenditionsTaken(Map<String, File> renditions);
+    }
+
+    /**
+     * Implement it to show a low-resolution preview (the Exif thumbnail or a subsampled decode, oriented)
+     * while the photo is copied or processed. If the provider gives a stream, the preview is decoded from it
+     * during the copy. Otherwise it comes only if the photo needs processing. It is not called for batches.
+     */
+    public interface OnPhotoPreviewListener extends OnPhotoTakenListener {
+        /**
+         * Called on the main thread before {@link #onPhotoTaken(File)}, the bitmap is yours.
+         */
+        void onPreviewAvailable(PhotoJob job, Bitmap preview);
+    }
+
+    /**
+     * Implement it to show the progress of long copies, e.g. from cloud providers. Updates come on the main thread
+     * at most every 100 ms (and when the stage changes), intermediate values are skipped.
+     */
+    public interface OnPhotoProgressListener extends OnPhotoTakenListener {
+        /**
+         * @param stage      {@link JobMetrics.Stage#COPY} while the photo is copied, then DECODE, TRANSFORM
+         *                   and ENCODE while it is processed.
+         * @param bytes      Bytes copied so far, the photos of a batch are counted together.
+         * @param totalBytes Size declared by the provider (OpenableColumns.SIZE) or -1 if it is unknown.
+         */
+        void onPhotoProgress(PhotoJob job, JobMetrics.Stage stage, long bytes, long totalBytes);
+    }
+
+    /**
+     * Use it with {@link #setJobMetricsListener}, e.g. {@link HistogramMetrics}.
+     */
+    public interface OnJobMetricsListener {
+        /**
+         * Called on the main thread after the photo (or one photo of a batch) has been delivered or has failed.
+         */
+        void onJobMetrics(JobMetrics metrics);
+    }
+
     public static final String DO_NOT_PROCESS_KEY = "do_not_process_key";
 
-    private static final String JPEG_FILE_PREFIX = "IMG_";
     private static final String JPEG_FILE_SUFFIX = ".jpg";
-    private static final SimpleDateFormat PHOTO_DATE_FORMAT = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
-
+    private static final String WEBP_FILE_SUFFIX = ".webp";
+    private static final String BATCH_FILE_SEPARATOR = "_";
+    private static final String RENDITION_FILE_SEPARATOR = "_";
+    private static final String TEMP_FILE_SUFFIX = AlbumIndex.TEMP_SUFFIX;
+    private static final long MAX_DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+    // how far the preview decoder can fall behind the copy of a stream.
+    private static final int TEE_BUFFER_SIZE = 2 * 1024 * 1024;
+    // tries of the quality search for photos which don't fit into the memory budget, the final write is one more.
+    private static final int MAX_TILED_QUALITY_ENCODES = 3;
+    private static final String PREVIEW_THREAD_NAME_PREFIX = "TakePhoto-Preview-";
+    private static final String RESULT_CACHE_DIR_NAME = "results";
+    // DocumentsContract.Document.COLUMN_LAST_MODIFIED, it is available since API 19.
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+    // the low 8 bits of a request code, the job id is in the next 8 bits.
     private static final int REQUEST_CODE_SYSTEM_CHOOSER = 141;
     private static final int REQUEST_CODE_CAMERA = 142;
     private static final int REQUEST_CODE_GALLERY = 143;
+    private static final int REQUEST_CODE_TYPE_MASK = 0xFF;
+    private static final int JOB_ID_SHIFT = 8;
+    // request codes of fragments have only 16 bits, ids are reused after that.
+    private static final int MAX_JOB_ID = 0xFF;
 
+    // the launch state of every job is saved with this prefix and the job id.
+    private static final String STATE_JOB_PREFIX = "state_job_";
     private static final String STATE_FILE_PATH = "state_file_path";
 
     private static final String STATE_HAS_PICASSO_REQUEST = "state_has_picasso_request";
@@ -81,23 +188,42 @@ public class TakePhoto {
     private static final String STATE_HAS_ROTATION_PIVOT = "state_has_rotation_pivot";
     private static final String STATE_ROTATION_PIVOT_X = "state_rotation_pivot_x";
     private static final String STATE_ROTATION_PIVOT_Y = "state_rotation_pivot_y";
+    private static final String STATE_HAS_OUTPUT_SPEC = "state_has_output_spec";
+    private static final String STATE_OUTPUT_FORMAT = "state_output_format";
+    private static final String STATE_OUTPUT_QUALITY = "state_output_quality";
+    private static final String STATE_OUTPUT_MAX_BYTES = "state_output_max_bytes";
+    private static final String STATE_RENDITION_COUNT = "state_rendition_count";
+    private static final String STATE_RENDITION_PREFIX = "state_rendition_";
+    private static final String STATE_RENDITION_NAME = "state_rendition_name";
 
     private static final TakePhoto instance = new TakePhoto();
 
-    private File photoFile;
-    private Request picassoRequest;
-
-    private OnPhotoTakenListener photoTakenListener;
-
-    // we use this file if we get the result between onStop() and onStart(), in this case listener is null.
-    private File completedFile;
-    // we use this flag if we get an error between onStop() and onStart(), in this case listener is null.
-    private boolean hasError;
-
-    private boolean isProcessingInProgress;
-    private boolean isProcessingCancelled;
-
-    private TargetImpl picassoTarget;
+    // they are copied to every next job.
+    private OutputSpec outputSpec;
+    private List<Rendition> renditions;
+
+    private volatile OnJobMetricsListener jobMetricsListener;
+
+    // jobs which are pending, running or have a result for a listener, by ids. It is read by the album cleanup thread.
+    private final ConcurrentMap<Integer, PhotoJob> jobs = new ConcurrentHashMap<>();
+    // the job of setPhotoTakenListenerIfNeeded(listener), they are used on the main thread only.
+    private PhotoJob latestJob;
+    private int lastJobId;
+
+    private volatile ExecutorService processingExecutor;
+    // one reader of a tee at a time, it doesn't take a thread of the copy which feeds it.
+    private ExecutorService previewExecutor;
+    private volatile int batchParallelism = ProcessingExecutor.getDefaultThreadCount();
+    private volatile long processingMemoryBudget =
+            Math.min(Runtime.getRuntime().maxMemory() / 4, MAX_DEFAULT_MEMORY_BUDGET);
+    private long resultCacheSize;
+    private ResultCache resultCache;
+    private volatile long albumMaxBytes;
+    private AlbumIndex albumIndex;
+    private AlbumCleaner albumCleaner;
+    // they are used on the main thread only.
+    private final Calendar photoNameCalendar = Calendar.getInstance();
+    private long lastPhotoTime;
 
     private TakePhoto() {
     }
@@ -106,8 +232,8 @@ public class TakePhoto {
         return instance;
     }
 
-    public void showSystemChooser(Activity activity) {
-        showSystemChooser(activity, null);
+    public PhotoJob showSystemChooser(Activity activity) {
+        return showSystemChooser(activity, null);
     }
 
     /**
@@ -116,16 +242,20 @@ public class TakePhoto {
      *                       .resize(400, 400).centerCrop().build());
      *                       <p>If you don't want to process a photo and get it as is with wrong orientation on Samsung devices,
      *                       add stableKey(TakePhoto.DO_NOT_PROCESS_KEY) to your Picasso request.</p>
+     * @return Handle of the capture or null if the storage is unmounted.
      */
-    public void showSystemChooser(Activity activity, @Nullable Request picassoRequest) {
-        if (createPhotoFile(picassoRequest)) {
-            Intent intent = getSystemChooserIntent(activity.getPackageManager());
-            activity.startActivityForResult(intent, REQUEST_CODE_SYSTEM_CHOOSER);
+    public PhotoJob showSystemChooser(Activity activity, @Nullable Request picassoRequest) {
+        PhotoJob job = createJob(picassoRequest);
+        if (job != null) {
+            Intent intent = getSystemChooserIntent(activity.getPackageManager(), job.photoFile, false);
+            activity.startActivityForResult(intent, getRequestCode(job, REQUEST_CODE_SYSTEM_CHOOSER));
         }
+
+        return job;
     }
 
-    public void showSystemChooser(Fragment fragment) {
-        showSystemChooser(fragment, null);
+    public PhotoJob showSystemChooser(Fragment fragment) {
+        return showSystemChooser(fragment, null);
     }
 
     /**
@@ -134,17 +264,21 @@ public class TakePhoto {
      *                       .resize(400, 400).centerCrop().build());
      *                       <p>If you don't want to process a photo and get it as is with wrong orientation on Samsung devices,
      *                       add stableKey(TakePhoto.DO_NOT_PROCESS_KEY) to your Picasso request.</p>
+     * @return Handle of the capture or null if the storage is unmounted.
      */
-    public void showSystemChooser(Fragment fragment, @Nullable Request picassoRequest) {
-        if (createPhotoFile(picassoRequest)) {
-            Intent intent = getSystemChooserIntent(fragment.getActivity().getPackageManager());
-            fragment.startActivityForResult(intent, REQUEST_CODE_SYSTEM_CHOOSER);
+    public PhotoJob showSystemChooser(Fragment fragment, @Nullable Request picassoRequest) {
+        PhotoJob job = createJob(picassoRequest);
+        if (job != null) {
+            Intent intent = getSystemChooserIntent(fragment.getActivity().getPackageManager(), job.photoFile, false);
+            fragment.startActivityForResult(intent, getRequestCode(job, REQUEST_CODE_SYSTEM_CHOOSER));
         }
+
+        return job;
     }
 
     // Custom dialog with chooser
-    public void showDialogChooser(Fragment fragment) {
-        showDialogChooser(fragment, null);
+    public PhotoJob showDialogChooser(Fragment fragment) {
+        return showDialogChooser(fragment, null);
     }
 
     /**
@@ -153,17 +287,21 @@ public class TakePhoto {
      *                       .resize(400, 400).centerCrop().build());
      *                       <p>If you don't want to process a photo and get it as is with wrong orientation on Samsung devices,
      *                       add stableKey(TakePhoto.DO_NOT_PROCESS_KEY) to your Picasso request.</p>
+     * @return Handle of the capture or null if the storage is unmounted.
      */
     // Custom dialog with chooser
-    public void showDialogChooser(Fragment fragment, @Nullable Request picassoRequest) {
-        if (createPhotoFile(picassoRequest)) {
-            ChooseDialog dialog = ChooseDialog.newInstance(fragment);
+    public PhotoJob showDialogChooser(Fragment fragment, @Nullable Request picassoRequest) {
+        PhotoJob job = createJob(picassoRequest);
+        if (job != null) {
+            ChooseDialog dialog = ChooseDialog.newInstance(fragment, job);
             dialog.show(fragment.getFragmentManager(), "");
         }
+
+        return job;
     }
 
-    public void showCamera(Fragment fragment) {
-        showCamera(fragment, null);
+    public PhotoJob showCamera(Fragment fragment) {
+        return showCamera(fragment, null);
     }
 
     /**
@@ -172,15 +310,54 @@ public class TakePhoto {
      *                       .resize(400, 400).centerCrop().build());
      *                       <p>If you don't want to process a photo and get it as is with wrong orientation on Samsung devices,
      *                       add stableKey(TakePhoto.DO_NOT_PROCESS_KEY) to your Picasso request.</p>
+     * @return Handle of the capture or null if the storage is unmounted.
+     */
+    public PhotoJob showCamera(Fragment fragment, @Nullable Request picassoRequest) {
+        PhotoJob job = createJob(picassoRequest);
+        if (job != null) {
+            takePhoto(fragment, job);
+        }
+
+        return job;
+    }
+
+    public PhotoJob showGallery(Fragment fragment) {
+        return showGallery(fragment, null);
+    }
+
+    public PhotoJob showGalleryMultiple(Fragment fragment) {
+        return showGalleryMultiple(fragment, null);
+    }
+
+    /**
+     * The same as {@link #showGallery(Fragment, Request)}, but the user can pick several photos at once.
+     * Your listener should implement {@link OnPhotosTakenListener} to get all of them.
      */
-    public void showCamera(Fragment fragment, @Nullable Request picassoRequest) {
-        if (createPhotoFile(picassoRequest)) {
-            takePhoto(fragment);
+    public PhotoJob showGalleryMultiple(Fragment fragment, @Nullable Request picassoRequest) {
+        PhotoJob job = createJob(picassoRequest);
+        if (job != null) {
+            launchGallery(fragment, job, true);
         }
+
+        return job;
+    }
+
+    public PhotoJob showSystemChooserMultiple(Fragment fragment) {
+        return showSystemChooserMultiple(fragment, null);
     }
 
-    public void showGallery(Fragment fragment) {
-        showGallery(fragment, null);
+    /**
+     * The same as {@link #showSystemChooser(Fragment, Request)}, but the user can pick several photos
+     * from a gallery at once. Your listener should implement {@link OnPhotosTakenListener} to get all of them.
+     */
+    public PhotoJob showSystemChooserMultiple(Fragment fragment, @Nullable Request picassoRequest) {
+        PhotoJob job = createJob(picassoRequest);
+        if (job != null) {
+            Intent intent = getSystemChooserIntent(fragment.getActivity().getPackageManager(), job.photoFile, true);
+            fragment.startActivityForResult(intent, getRequestCode(job, REQUEST_CODE_SYSTEM_CHOOSER));
+        }
+
+        return job;
     }
 
     /**
@@ -189,57 +366,387 @@ public class TakePhoto {
      *                       .resize(400, 400).centerCrop().build());
      *                       <p>If you don't want to process a photo and get it as is with wrong orientation on Samsung devices,
      *                       add stableKey(TakePhoto.DO_NOT_PROCESS_KEY) to your Picasso request.</p>
+     * @return Handle of the capture or null if the storage is unmounted.
      */
-    public void showGallery(Fragment fragment, @Nullable Request picassoRequest) {
-        if (createPhotoFile(picassoRequest)) {
-            launchGallery(fragment);
+    public PhotoJob showGallery(Fragment fragment, @Nullable Request picassoRequest) {
+        PhotoJob job = createJob(picassoRequest);
+        if (job != null) {
+            launchGallery(fragment, job, false);
         }
+
+        return job;
     }
 
+    /**
+     * Sets the listener of the latest job, use {@link #setPhotoTakenListenerIfNeeded(int, OnPhotoTakenListener)}
+     * if several jobs can run at the same time.
+     */
     public void setPhotoTakenListenerIfNeeded(OnPhotoTakenListener listener) {
-        if (listener != null && !isProcessingCancelled) {
-            if (isProcessingInProgress()) {
-                photoTakenListener = listener;
-            } else if (completedFile != null) {
-                photoTakenListener = listener;
-                fireSuccess(completedFile);
-            } else if (hasError) {
-                photoTakenListener = listener;
-                fireError();
-            }
+        if (latestJob != null) {
+            setPhotoTakenListenerIfNeeded(latestJob, listener);
+        }
+    }
+
+    /**
+     * If the job has finished while it had no listener, the result is delivered to the listener right away.
+     *
+     * @param jobId    {@link PhotoJob#getId()}, it is the same after the process has been killed.
+     * @param listener Pass null to keep the result of the job until the next listener.
+     */
+    public void setPhotoTakenListenerIfNeeded(int jobId, OnPhotoTakenListener listener) {
+        PhotoJob job = jobs.get(jobId);
+        if (job != null) {
+            setPhotoTakenListenerIfNeeded(job, listener);
+        }
+    }
+
+    private void setPhotoTakenListenerIfNeeded(PhotoJob job, OnPhotoTakenListener listener) {
+        if (listener != null && !job.isCancelled()) {
+            job.listener = listener;
+            deliver(job);
         } else {
-            photoTakenListener = null;
+            job.listener = null;
+        }
+    }
+
+    /**
+     * @return Null if the job has been delivered, cancelled or has never been started in this process.
+     */
+    @Nullable
+    public PhotoJob getJob(int jobId) {
+        return jobs.get(jobId);
+    }
+
+    /**
+     * @param executor Runs all background stages (copy, EXIF check, save). Pass null to use the default
+     *                 {@link ProcessingExecutor}. If the executor rejects a stage, the photo fails with onPhotoError().
+     */
+    public void setProcessingExecutor(@Nullable ExecutorService executor) {
+        processingExecutor = executor;
+    }
+
+    private ExecutorService getProcessingExecutor() {
+        ExecutorService executor = processingExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = processingExecutor;
+                if (executor == null) {
+                    executor = new ProcessingExecutor();
+                    processingExecutor = executor;
+                }
+            }
+        }
+
+        return executor;
+    }
+
+    /**
+     * @param parallelism How many photos of a batch are copied and processed at the same time.
+     *                    The real number of threads is limited by the processing executor.
+     */
+    public void setBatchParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism should be >= 1");
+        }
+
+        batchParallelism = parallelism;
+    }
+
+    /**
+     * @param bytes How much memory bitmaps of one photo may take. If a photo doesn't fit,
+     *              it is processed strip by strip. Default is 1/4 of the heap, but not more than 64 MB.
+     */
+    public void setProcessingMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("bytes should be > 0");
+        }
+
+        processingMemoryBudget = bytes;
+    }
+
+    /**
+     * @param spec Format, quality and size limit of processed photos, it is used for the next photos.
+     *             If it is set, a photo is always processed (even without a Picasso request).
+     *             Pass null to get JPEG with quality 100.
+     */
+    public void setOutputSpec(@Nullable OutputSpec spec) {
+        outputSpec = spec;
+    }
+
+    /**
+     * @param renditions Outputs to make from one decode of every next photo, e.g. a thumbnail, a medium
+     *                   and a full-size image. The photo is decoded once at the biggest needed size and smaller
+     *                   renditions are made from bigger ones. Your listener should implement
+     *                   {@link OnRenditionsTakenListener}, otherwise it gets only the first rendition.
+     *                   Pass null to get one photo as usual.
+     */
+    public void setRenditions(@Nullable List<Rendition> renditions) {
+        if (renditions != null) {
+            Set<String> names = new HashSet<>();
+            for (Rendition rendition : renditions) {
+                if (!names.add(rendition.name)) {
+                    throw new IllegalArgumentException("Rendition names should be unique: " + rendition.name);
+                }
+            }
+        }
+
+        this.renditions = renditions != null ? new ArrayList<>(renditions) : null;
+    }
+
+    /**
+     * @param enabled Adds "TakePhoto#jobId stage" sections to systrace for every next job, API 18+.
+     *                Capture the trace with the app tag: python systrace.py -a your.package.name.
+     */
+    public void setTracingEnabled(boolean enabled) {
+        PhotoTrace.setEnabled(enabled);
+    }
+
+    /**
+     * @param listener Gets timings of every stage and sizes of every next job. Pass null to stop measuring.
+     */
+    public void setJobMetricsListener(@Nullable OnJobMetricsListener listener) {
+        jobMetricsListener = listener;
+    }
+
+    /**
+     * @param bytes Limit of the total size of photos in the album directory. When a new photo is taken,
+     *              the least recently used photos are deleted until the album fits into the limit.
+     *              Default is 0, it means no limit.
+     */
+    public void setAlbumMaxBytes(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes should be >= 0");
+        }
+
+        albumMaxBytes = bytes;
+    }
+
+    /**
+     * @param bytes Size of the cache of processed photos in the album directory. If the same photo is picked again
+     *              with the same Picasso request and output spec, the cached result is returned without processing.
+     *              Every processed photo is copied into the cache once more after its delivery.
+     *              Default is 0, the cache is disabled.
+     */
+    public synchronized void setResultCacheSize(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes should be >= 0");
+        }
+
+        resultCacheSize = bytes;
+        resultCache = null;
+    }
+
+    public void clearResultCache() {
+        ResultCache cache = getResultCache();
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    // null if the storage is unmounted.
+    private synchronized AlbumIndex getAlbumIndex() {
+        if (albumIndex == null) {
+            File albumDir = getAlbumDir();
+            if (albumDir != null) {
+                albumIndex = new AlbumIndex(albumDir);
+            }
+        }
+
+        return albumIndex;
+    }
+
+    // records photos of a job which has finished and evicts old photos if the album is too big.
+    private void addToAlbumIndex(Collection<File> files) {
+        AlbumIndex index = getAlbumIndex();
+        if (index != null) {
+            for (File file : files) {
+                index.put(file);
+            }
+
+            evictIfNeeded(index, files);
+        }
+    }
+
+    private void evictIfNeeded(AlbumIndex index, Collection<File> keep) {
+        if (albumMaxBytes > 0) {
+            index.evictToBytes(albumMaxBytes, keep, Integer.MAX_VALUE);
+        }
+    }
+
+    // records a photo of a batch which is still running, nothing is evicted until the batch has finished.
+    private void addPinnedToAlbumIndex(File file) {
+        AlbumIndex index = getAlbumIndex();
+        if (index != null) {
+            index.put(file);
+            index.pin(file);
+        }
+    }
+
+    /**
+     * Deletes old photos of the album in the background. Photos are deleted in small batches
+     * with a rate limit and the cleanup waits while a photo is processed, so it doesn't slow down taking photos.
+     * The next call replaces the cleanup in progress.
+     */
+    public void scheduleAlbumCleanup(RetentionPolicy policy) {
+        AlbumCleaner cleaner = getAlbumCleaner();
+        if (cleaner != null) {
+            cleaner.schedule(policy);
+        }
+    }
+
+    public void cancelAlbumCleanup() {
+        AlbumCleaner cleaner = getAlbumCleaner();
+        if (cleaner != null) {
+            cleaner.cancel();
+        }
+    }
+
+    // null if the storage is unmounted.
+    private synchronized AlbumCleaner getAlbumCleaner() {
+        if (albumCleaner == null) {
+            AlbumIndex index = getAlbumIndex();
+            if (index != null) {
+                albumCleaner = new AlbumCleaner(index, new AlbumCleaner.PauseCondition() {
+                    @Override
+                    public boolean shouldPause() {
+                        return isProcessingInProgress();
+                    }
+                });
+            }
+        }
+
+        return albumCleaner;
+    }
+
+    // PhotoReference.getFile() has copied the photo into the album after the delivery.
+    void addCopiedReference(File file) {
+        addToAlbumIndex(Collections.singletonList(file));
+    }
+
+    private void removeFromAlbumIndex(File file) {
+        AlbumIndex index = getAlbumIndex();
+        if (index != null) {
+            index.remove(file);
+        }
+    }
+
+    // null if the cache is disabled or the storage is unmounted.
+    private synchronized ResultCache getResultCache() {
+        if (resultCache == null && resultCacheSize > 0) {
+            File albumDir = getAlbumDir();
+            if (albumDir != null) {
+                resultCache = new ResultCache(new File(albumDir, RESULT_CACHE_DIR_NAME), resultCacheSize);
+            }
+        }
+
+        return resultCache;
+    }
+
+    private void runInBackground(PhotoJob job, Runnable runnable) {
+        runInBackground(runnable, new SinglePhotoCallback(job));
+    }
+
+    private void runInBackground(Runnable runnable, PhotoCallback callback) {
+        try {
+            getProcessingExecutor().execute(runnable);
+        } catch (RejectedExecutionException e) {
+            L.e(e);
+            callback.onError();
         }
     }
 
+    // any job is copying or processing a photo.
     public boolean isProcessingInProgress() {
-        return isProcessingInProgress;
+        for (PhotoJob job : jobs.values()) {
+            if (job.isRunning()) {
+                return true;
+            }
+        }
+
+        return false;
     }
 
+    /**
+     * Cancels the latest job, use {@link PhotoJob#cancel()} if several jobs can run at the same time.
+     */
     public void cancelCurrentProcessingIfInProgress() {
-        if (isProcessingInProgress()) {
-            isProcessingCancelled = true;
-            isProcessingInProgress = false;
+        if (latestJob != null && latestJob.isRunning()) {
+            latestJob.cancel();
         }
     }
 
-    private boolean createPhotoFile(@Nullable Request request) {
-        photoFile = null;
-        picassoRequest = null;
-
+    // null if the storage is unmounted.
+    private PhotoJob createJob(@Nullable Request request) {
         File albumDir = getAlbumDir();
-        if (albumDir != null) {
-            String imageFileName = JPEG_FILE_PREFIX + PHOTO_DATE_FORMAT.format(new Date());
-            photoFile = new File(albumDir, imageFileName + JPEG_FILE_SUFFIX);
-            savePhotoFile();
-
-            picassoRequest = request;
-            savePicassoRequestIfExists();
-        } else {
+        if (albumDir == null) {
             L.e("Storage is unmounted");
+            return null;
+        }
+
+        PhotoJob job = new PhotoJob(nextJobId());
+        job.photoFile = createUniquePhotoFile(albumDir);
+        job.picassoRequest = request;
+        job.outputSpec = outputSpec;
+        job.renditions = renditions;
+        saveJob(job);
+        reservePhotoFile(job.photoFile, lastPhotoTime);
+
+        jobs.put(job.getId(), job);
+        latestJob = job;
+        return job;
+    }
+
+    // ids of jobs which are not delivered yet are skipped.
+    private int nextJobId() {
+        for (int i = 0; i < MAX_JOB_ID; i++) {
+            lastJobId = lastJobId % MAX_JOB_ID + 1;
+            if (!jobs.containsKey(lastJobId)) {
+                break;
+            }
+        }
+
+        return lastJobId;
+    }
+
+    private int getRequestCode(PhotoJob job, int type) {
+        return job.getId() << JOB_ID_SHIFT | type;
+    }
+
+    // names have milliseconds, the time is moved forward if two photos are created in the same millisecond
+    // or if the name is taken (e.g. the clock has been set back).
+    private File createUniquePhotoFile(File albumDir) {
+        long time = Math.max(System.currentTimeMillis(), lastPhotoTime + 1);
+        File file;
+        while ((file = new File(albumDir, PhotoName.format(photoNameCalendar, time) + JPEG_FILE_SUFFIX)).exists()) {
+            time++;
+        }
+
+        lastPhotoTime = time;
+        return file;
+    }
+
+    // the camera writes the file later, the index keeps its creation time until the photo is put.
+    private void reservePhotoFile(final File file, final long time) {
+        try {
+            getProcessingExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    AlbumIndex index = getAlbumIndex();
+                    if (index != null) {
+                        index.reserve(file, time);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            L.e(e);
         }
+    }
 
-        return photoFile != null;
+    private void releasePhotoFile(File file) {
+        AlbumIndex index = getAlbumIndex();
+        if (index != null) {
+            index.release(file);
+        }
     }
 
     private File getAlbumDir() {
@@ -258,7 +765,7 @@ public class TakePhoto {
         return storageDir;
     }
 
-    private Intent getSystemChooserIntent(PackageManager packageManager) {
+    private Intent getSystemChooserIntent(PackageManager packageManager, File photoFile, boolean allowMultiple) {
         // Camera
         List<Intent> cameraIntents = new ArrayList<>();
         Intent captureIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
@@ -274,8 +781,7 @@ public class TakePhoto {
         }
 
         // Gallery
-        Intent galleryIntent = new Intent(Intent.ACTION_PICK, MediaStore.Images.Media.INTERNAL_CONTENT_URI);
-        galleryIntent.setType("image/*");
+        Intent galleryIntent = getGalleryIntent(allowMultiple);
 
         Intent chooserIntent = Intent.createChooser(galleryIntent, Res.getString(R.string.photo_select_source));
         chooserIntent.putExtra(Intent.EXTRA_INITIAL_INTENTS, cameraIntents.toArray(
@@ -283,53 +789,161 @@ public class TakePhoto {
         return chooserIntent;
     }
 
-    private void takePhoto(Fragment fragment) {
+    // the dialog is recreated after the death of the process, so its job is restored from the preferences.
+    private PhotoJob getDialogJob(int jobId) {
+        PhotoJob job = jobs.get(jobId);
+        if (job == null) {
+            job = new PhotoJob(jobId);
+            restoreJob(job);
+            jobs.put(jobId, job);
+            latestJob = job;
+        }
+
+        return job;
+    }
+
+    private void takePhoto(Fragment fragment, PhotoJob job) {
         Intent takePictureIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
-        takePictureIntent.putExtra(MediaStore.EXTRA_OUTPUT, Uri.fromFile(photoFile));
-        fragment.startActivityForResult(takePictureIntent, REQUEST_CODE_CAMERA);
+        takePictureIntent.putExtra(MediaStore.EXTRA_OUTPUT, Uri.fromFile(job.photoFile));
+        fragment.startActivityForResult(takePictureIntent, getRequestCode(job, REQUEST_CODE_CAMERA));
+    }
+
+    private void launchGallery(Fragment fragment, PhotoJob job, boolean allowMultiple) {
+        fragment.startActivityForResult(getGalleryIntent(allowMultiple), getRequestCode(job, REQUEST_CODE_GALLERY));
     }
 
-    private void launchGallery(Fragment fragment) {
-        Intent intent = new Intent(Intent.ACTION_PICK, MediaStore.Images.Media.INTERNAL_CONTENT_URI);
+    private Intent getGalleryIntent(boolean allowMultiple) {
+        Intent intent;
+        if (allowMultiple && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            // ACTION_PICK ignores EXTRA_ALLOW_MULTIPLE in most galleries.
+            intent = new Intent(Intent.ACTION_GET_CONTENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        } else {
+            intent = new Intent(Intent.ACTION_PICK, MediaStore.Images.Media.INTERNAL_CONTENT_URI);
+        }
         intent.setType("image/*");
-        fragment.startActivityForResult(intent, REQUEST_CODE_GALLERY);
+
+        return intent;
     }
 
     public boolean isPhotoRequestOk(int requestCode, int resultCode) {
-        return (requestCode == REQUEST_CODE_SYSTEM_CHOOSER || requestCode == REQUEST_CODE_CAMERA
-                || requestCode == REQUEST_CODE_GALLERY) && resultCode == Activity.RESULT_OK;
+        return isPhotoRequest(requestCode) && resultCode == Activity.RESULT_OK;
+    }
+
+    private static boolean isPhotoRequest(int requestCode) {
+        int type = requestCode & REQUEST_CODE_TYPE_MASK;
+        int jobId = requestCode >>> JOB_ID_SHIFT;
+        return (type == REQUEST_CODE_SYSTEM_CHOOSER || type == REQUEST_CODE_CAMERA || type == REQUEST_CODE_GALLERY)
+                && jobId > 0 && jobId <= MAX_JOB_ID;
+    }
+
+    /**
+     * Call it from onActivityResult if isPhotoRequestOk() is false, e.g. the camera has been closed without a photo.
+     * The job of the request is cancelled and forgotten, so its id can be used again. Other request codes
+     * are ignored.
+     */
+    public void discardJob(int requestCode) {
+        if (!isPhotoRequest(requestCode)) {
+            return;
+        }
+
+        int jobId = requestCode >>> JOB_ID_SHIFT;
+        PhotoJob job = jobs.get(jobId);
+        if (job == null) {
+            // our process has been killed while the camera was running, the photo file is restored in background.
+            job = new PhotoJob(jobId);
+            jobs.put(jobId, job);
+        }
+
+        discardJob(job);
+    }
+
+    // a pending job or a job cancelled while it was pending, it won't get a result.
+    private void discardJob(PhotoJob job) {
+        if (job.moveTo(PhotoJob.State.PENDING, PhotoJob.State.CANCELLED) || job.isCancelled()) {
+            deleteCancelled(job);
+        } else {
+            L.w("The result of " + job + " has been received already");
+        }
     }
 
     /**
-     * Call isPhotoRequestOk() before, if true disable the Photo button until you get OnPhotoTakenListener callback
+     * Call isPhotoRequestOk() before, if true disable the Photo button until you get OnPhotoTakenListener callback,
+     * otherwise call {@link #discardJob(int)}.
+     *
+     * @return The job of the request, it is restored if the process has been killed.
      */
-    public void onActivityResult(final int requestCode, final int resultCode,
-                                 final Intent data, OnPhotoTakenListener listener) {
+    public PhotoJob onActivityResult(int requestCode, int resultCode, final Intent data,
+                                     OnPhotoTakenListener listener) {
         if (!isPhotoRequestOk(requestCode, resultCode)) {
             throw new IllegalStateException("isPhotoRequestOk() should be called before onActivityResult");
         }
 
-        photoTakenListener = listener;
-        isProcessingInProgress = true;
-        isProcessingCancelled = false;
-        completedFile = null;
-        hasError = false;
+        int jobId = requestCode >>> JOB_ID_SHIFT;
+        PhotoJob job = jobs.get(jobId);
+        if (job == null) {
+            // our process has been killed while the camera was running, the launch state is restored in background.
+            job = new PhotoJob(jobId);
+            jobs.put(jobId, job);
+        }
+
+        latestJob = job;
+        if (!job.moveTo(PhotoJob.State.PENDING, PhotoJob.State.COPYING)) {
+            if (job.isCancelled()) {
+                deleteCancelled(job);
+            } else {
+                L.w("The result of " + job + " has been received already");
+            }
+
+            return job;
+        }
+
+        job.listener = listener;
+        final PhotoJob startedJob = job;
+        final int type = requestCode & REQUEST_CODE_TYPE_MASK;
+        final JobMetrics metrics = jobMetricsListener != null ? new JobMetrics(System.nanoTime()) : null;
+        final int traceId = PhotoTrace.newJobId();
+        runInBackground(job, new Runnable() {
+            @Override
+            public void run() {
+                JobMetrics.attach(metrics);
+                PhotoTrace.attach(traceId);
+                PhotoTrace.begin("getPhoto");
+                try {
+                    getPhoto(startedJob, type, data);
+                } finally {
+                    PhotoTrace.end();
+                    PhotoTrace.detach();
+                    JobMetrics.detach();
+                }
+            }
+        });
+
+        return job;
+    }
 
-        new Thread(new Runnable() {
+    // the job has been cancelled while the camera was open, the photo it has taken (if any) is not needed.
+    private void deleteCancelled(final PhotoJob job) {
+        runInBackground(job, new Runnable() {
             @Override
             public void run() {
-                getPhoto(requestCode, resultCode, data);
+                if (job.photoFile == null) {
+                    restoreJob(job);
+                }
+
+                fireError(job);
             }
-        }).start();
+        });
     }
 
     // gets the image in background thread
-    private void getPhoto(int requestCode, int resultCode, Intent data) {
+    private void getPhoto(PhotoJob job, int requestCode, Intent data) {
         // system chooser
         if (requestCode == REQUEST_CODE_SYSTEM_CHOOSER) {
             boolean isCamera;
 
-            if (data == null || data.getData() == null) {
+            if (data == null || getPickedUris(data).isEmpty()) {
                 isCamera = true;
             } else {
                 final String action = data.getAction();
@@ -339,42 +953,58 @@ public class TakePhoto {
             requestCode = isCamera ? REQUEST_CODE_CAMERA : REQUEST_CODE_GALLERY;
         }
 
-        if (photoFile == null) {
+        if (job.photoFile == null) {
             // it means our process has been killed while the camera was running
-            restorePhotoFile();
-            restorePicassoRequestIfExists();
+            long start = System.nanoTime();
+            PhotoTrace.begin("restore state");
+            restoreJob(job);
+            PhotoTrace.end();
+            JobMetrics.stage(JobMetrics.Stage.RESTORE_STATE, start);
         }
 
-        // we need to create a copy because user can press the Photo button again when current process is
-        // in progress (if developer forgot to disable this button until current processing is finished).
-        File currentFile = new File(photoFile.getPath());
+        File file = job.photoFile;
+        if (file == null) {
+            // the launch state has been lost, e.g. the preferences have been cleared.
+            L.e("No photo file for " + job);
+            fireError(job);
+            return;
+        }
+
+        PhotoCallback callback = new SinglePhotoCallback(job);
 
         // dialog chooser
         switch (requestCode) {
             case REQUEST_CODE_CAMERA:
-                processIfNeeded(currentFile);
+                try {
+                    JobMetrics.readBytes(file.length());
+                    processIfNeeded(job, file, callback);
+                } catch (RuntimeException e) {
+                    // the job must not stay in PROCESSING if a decoder throws.
+                    L.e(e);
+                    fireError(job);
+                }
                 break;
 
             case REQUEST_CODE_GALLERY:
-                if (data != null && data.getData() != null) {
+                List<Uri> uris = data != null ? getPickedUris(data) : Collections.<Uri>emptyList();
+                if (uris.size() > 1) {
+                    new Batch(job, uris).start();
+                } else if (uris.size() == 1 && canReference(job, uris.get(0))) {
+                    // the file is written only if the app asks for it, a reservation would stay forever.
+                    releasePhotoFile(file);
+                    fireReferenced(job, PhotoReference.create(uris.get(0), file));
+                } else if (uris.size() == 1) {
                     try {
-                        if (isMediaStorage(data.getData()) || isFile(data.getData())) {
-                            String path = getPathFromContentUri(data.getData());
-                            if (path != null) {
-                                IO.copyFile(new File(path), currentFile);
-                                processIfNeeded(currentFile);
-                            } else {
-                                fireError();
-                            }
-                        } else {
-                            getImageFromExternalContentProvider(data.getData(), currentFile);
-                        }
+                        copyAndProcess(job, uris.get(0), file, callback);
+                    } catch (CancelledException e) {
+                        L.d(job + " has been cancelled while copying");
+                        fireError(job);
                     } catch (Exception e) {
                         L.e(e);
-                        fireError();
+                        fireError(job);
                     }
                 } else {
-                    fireError();
+                    fireError(job);
                 }
 
                 break;
@@ -384,13 +1014,220 @@ public class TakePhoto {
         }
     }
 
-    private boolean isFile(Uri uri) {
-        return ContentResolver.SCHEME_FILE.equals(uri.getScheme());
-    }
+    private List<Uri> getPickedUris(Intent data) {
+        List<Uri> uris = new ArrayList<>();
 
-    private boolean isMediaStorage(Uri uri) {
-        return ContentResolver.SCHEME_CONTENT.equals(uri.getScheme()) &&
-                MediaStore.AUTHORITY.equals(uri.getAuthority());
+        ClipData clipData = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? data.getClipData() : null;
+        if (clipData != null) {
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                Uri uri = clipData.getItemAt(i).getUri();
+                if (uri != null) {
+                    uris.add(uri);
+                }
+            }
+        }
+
+        if (uris.isEmpty() && data.getData() != null) {
+            uris.add(data.getData());
+        }
+
+        return uris;
+    }
+
+    // Position 0 is the file created before launching the gallery, the others are created next to it.
+    private File getBatchFile(File firstFile, int position) {
+        if (position == 0) {
+            return firstFile;
+        }
+
+        String name = firstFile.getName();
+        String baseName = name.substring(0, name.length() - JPEG_FILE_SUFFIX.length());
+        return new File(firstFile.getParentFile(), baseName + BATCH_FILE_SEPARATOR + position + JPEG_FILE_SUFFIX);
+    }
+
+    /**
+     * Copies the picked photo to the file and processes it. A processed photo is taken from the result cache
+     * if the same source has been processed the same way before.
+     */
+    private void copyAndProcess(PhotoJob job, Uri uri, File file, PhotoCallback callback) throws IOException {
+        ResultCache cache = getResultCache();
+        String signature = cache != null ? getProcessingSignature(job) : null;
+        String sourceId = signature != null ? getSourceId(uri) : null;
+        String key = sourceId != null ? ResultCache.createKey(sourceId, signature) : null;
+
+        if (key != null && copyFromCache(job, cache, key, file, callback)) {
+            return;
+        }
+
+        FileTransfer.Stats stats = copyToFile(job, uri, file);
+        if (stats == null) {
+            callback.onError();
+            return;
+        }
+
+        // the provider doesn't tell when the photo was modified, so the content identifies it.
+        if (signature != null && key == null && stats.digest != null) {
+            key = ResultCache.createKey(ResultCache.toHex(stats.digest), signature);
+            if (copyFromCache(job, cache, key, file, callback)) {
+                return;
+            }
+        }
+
+        processIfNeeded(job, file, stats.header, key != null ? new CachingCallback(cache, key, callback) : callback);
+    }
+
+    private boolean copyFromCache(PhotoJob job, ResultCache cache, String key, File file, PhotoCallback callback) {
+        File cachedFile = cache.get(key);
+        if (cachedFile == null) {
+            return false;
+        }
+
+        File outputFile = getOutputFile(file, job.hasOutputSpec() ? job.outputSpec : OutputSpec.DEFAULT);
+        long start = System.nanoTime();
+        PhotoTrace.begin("copy from cache");
+        try {
+            JobMetrics.readBytes(FileTransfer.copy(cachedFile, outputFile, job).bytes);
+            JobMetrics.stage(JobMetrics.Stage.COPY, start);
+        } catch (IOException e) {
+            L.e(e);
+            outputFile.delete();
+            return false;
+        } finally {
+            PhotoTrace.end();
+        }
+
+        if (!outputFile.equals(file)) {
+            file.delete();
+            removeFromAlbumIndex(file);
+        }
+
+        L.d("Took " + outputFile.getName() + " from the result cache");
+        callback.onSuccess(outputFile);
+        return true;
+    }
+
+    // null if the result of processing shouldn't be cached.
+    private String getProcessingSignature(PhotoJob job) {
+        if (job.hasDoNotProcessKey() || job.hasRenditions() || (!job.hasPicassoRequest() && !job.hasOutputSpec())) {
+            return null;
+        }
+
+        // the same fields as saveRequest() and saveOutputSpec() store.
+        StringBuilder signature = new StringBuilder();
+        if (job.hasPicassoRequest()) {
+            Request request = job.picassoRequest;
+            signature.append("size=").append(request.hasSize() ? request.targetWidth + "x" + request.targetHeight : "")
+                    .append(";centerCrop=").append(request.centerCrop)
+                    .append(";centerInside=").append(request.centerInside)
+                    .append(";onlyScaleDown=").append(request.onlyScaleDown)
+                    .append(";rotation=").append(request.rotationDegrees);
+            if (request.hasRotationPivot) {
+                signature.append("@").append(request.rotationPivotX).append(",").append(request.rotationPivotY);
+            }
+        }
+
+        if (job.hasOutputSpec()) {
+            OutputSpec spec = job.outputSpec;
+            signature.append(";format=").append(spec.format.name())
+                    .append(";quality=").append(spec.quality)
+                    .append(";maxBytes=").append(spec.maxBytes);
+        }
+
+        return signature.toString();
+    }
+
+    // uri, size and modification time of the source, null if the provider doesn't report them.
+    private String getSourceId(Uri uri) {
+        if (isMediaStorage(uri) || isFile(uri)) {
+            String path = getPathFromContentUri(uri);
+            File file = path != null ? new File(path) : null;
+            if (file == null || !file.isFile()) {
+                return null;
+            }
+
+            return uri + "|" + file.length() + "|" + file.lastModified();
+        }
+
+        if (uri.getAuthority() == null) {
+            return null;
+        }
+
+        String sourceId = null;
+        Cursor cursor = null;
+        try {
+            cursor = Utils.getApp().getContentResolver().query(uri,
+                    new String[]{OpenableColumns.SIZE, COLUMN_LAST_MODIFIED}, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                int sizeColumn = cursor.getColumnIndex(OpenableColumns.SIZE);
+                int modifiedColumn = cursor.getColumnIndex(COLUMN_LAST_MODIFIED);
+                if (sizeColumn >= 0 && modifiedColumn >= 0 && !cursor.isNull(sizeColumn)
+                        && !cursor.isNull(modifiedColumn)) {
+                    sourceId = uri + "|" + cursor.getLong(sizeColumn) + "|" + cursor.getLong(modifiedColumn);
+                }
+            }
+        } catch (Exception e) {
+            // some providers throw if they don't know a column.
+            L.e(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return sourceId;
+    }
+
+    // returns null if the photo can't be copied.
+    private FileTransfer.Stats copyToFile(PhotoJob job, Uri uri, File file) throws IOException {
+        FileTransfer.Stats stats;
+        if (isMediaStorage(uri) || isFile(uri)) {
+            long start = System.nanoTime();
+            PhotoTrace.begin("resolve source");
+            String path = getPathFromContentUri(uri);
+            PhotoTrace.end();
+            JobMetrics.stage(JobMetrics.Stage.RESOLVE_SOURCE, start);
+            if (path == null) {
+                return null;
+            }
+
+            File source = new File(path);
+            job.progress.startCopy(source.length());
+            start = System.nanoTime();
+            PhotoTrace.begin("copy");
+            try {
+                stats = FileTransfer.copy(source, file, job, job.progress);
+            } finally {
+                PhotoTrace.end();
+            }
+
+            JobMetrics.stage(JobMetrics.Stage.COPY, start);
+        } else {
+            long start = System.nanoTime();
+            PhotoTrace.begin("copy");
+            try {
+                stats = getImageFromExternalContentProvider(job, uri, file);
+            } finally {
+                PhotoTrace.end();
+            }
+
+            JobMetrics.stage(JobMetrics.Stage.COPY, start);
+        }
+
+        if (stats != null) {
+            L.d(stats.toString());
+            JobMetrics.readBytes(stats.bytes);
+        }
+
+        return stats;
+    }
+
+    private boolean isFile(Uri uri) {
+        return ContentResolver.SCHEME_FILE.equals(uri.getScheme());
+    }
+
+    private boolean isMediaStorage(Uri uri) {
+        return ContentResolver.SCHEME_CONTENT.equals(uri.getScheme()) &&
+                MediaStore.AUTHORITY.equals(uri.getAuthority());
     }
 
     // Convert the image URI to the direct file system path of the image file
@@ -420,125 +1257,738 @@ public class TakePhoto {
         return path;
     }
 
-    private void getImageFromExternalContentProvider(Uri uri, File file) throws IOException {
-        InputStream is = null;
-        OutputStream outStream = null;
+    private FileTransfer.Stats getImageFromExternalContentProvider(PhotoJob job, Uri uri, File file)
+            throws IOException {
+        if (uri.getAuthority() == null) {
+            return null;
+        }
 
-        if (uri.getAuthority() != null) {
-            try {
-                is = Utils.getApp().getContentResolver().openInputStream(uri);
-                outStream = new FileOutputStream(file);
-                byte[] buffer = new byte[8 * 1024];
-                int bytesRead;
-                if (is != null) {
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        outStream.write(buffer, 0, bytesRead);
+        if (job.progress.isWanted()) {
+            job.progress.startCopy(getDeclaredSize(uri));
+        }
+
+        TeeBuffer tee = wantsPreview(job) ? startTeePreview(job) : null;
+        try {
+            return ContentTransfer.copy(Utils.getApp().getContentResolver(), uri, file, job, job.progress, tee);
+        } finally {
+            if (tee != null) {
+                // the provider could fail before the copy has started.
+                tee.finish(false);
+            }
+        }
+    }
+
+    /**
+     * The preview is decoded on another thread from the bytes of the copy, so it is shown while a slow
+     * provider is still sending the photo. If the decoder falls behind, the preview is made from the file.
+     * <p>The reader has its own thread: on a processing thread it could wait in the queue behind the copy
+     * which feeds it, or hold a thread of other jobs for the whole download.</p>
+     *
+     * @return null if the preview thread is busy with another photo, the tee is not started then.
+     */
+    private TeeBuffer startTeePreview(final PhotoJob job) {
+        final TeeBuffer tee = new TeeBuffer(TEE_BUFFER_SIZE);
+        final int traceId = PhotoTrace.getJobId();
+        try {
+            getPreviewExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    PhotoTrace.attach(traceId);
+                    PhotoTrace.begin("tee preview");
+                    try {
+                        Bitmap preview = PhotoPreview.create(tee);
+                        // the decoder doesn't report a truncated stream, it returns a partial bitmap.
+                        tee.close();
+                        if (preview != null && tee.isBroken()) {
+                            preview.recycle();
+                        } else if (preview != null) {
+                            postPreview(job, preview);
+                        }
+                    } catch (IOException e) {
+                        L.d("No preview while copying: " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        // a damaged Exif segment or thumbnail, the preview is optional.
+                        L.e(e);
+                    } catch (OutOfMemoryError e) {
+                        L.w("Not enough memory for the preview while copying");
+                    } finally {
+                        tee.close();
+                        PhotoTrace.end();
+                        PhotoTrace.detach();
                     }
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            L.d("The preview thread is busy, no preview while copying");
+            return null;
+        }
 
-                processIfNeeded(file);
-            } finally {
-                try {
-                    if (is != null) {
-                        is.close();
-                    }
+        return tee;
+    }
 
-                    if (outStream != null) {
-                        outStream.close();
-                    }
-                } catch (IOException e) {
-                    // ignore
+    // no queue: a task runs right away or it is rejected.
+    private synchronized ExecutorService getPreviewExecutor() {
+        if (previewExecutor == null) {
+            previewExecutor = new ThreadPoolExecutor(0, 1, ProcessingExecutor.KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    new ProcessingExecutor.ProcessingThreadFactory(PREVIEW_THREAD_NAME_PREFIX));
+        }
+
+        return previewExecutor;
+    }
+
+    // OpenableColumns.SIZE, -1 if the provider doesn't report it.
+    private long getDeclaredSize(Uri uri) {
+        long size = -1;
+        Cursor cursor = null;
+        try {
+            cursor = Utils.getApp().getContentResolver().query(uri, new String[]{OpenableColumns.SIZE}, null, null,
+                    null);
+            if (cursor != null && cursor.moveToFirst()) {
+                int sizeColumn = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (sizeColumn >= 0 && !cursor.isNull(sizeColumn)) {
+                    size = cursor.getLong(sizeColumn);
                 }
             }
+        } catch (Exception e) {
+            // some providers throw if they don't know a column.
+            L.e(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
+
+        return size;
     }
 
-    private void processIfNeeded(File file) {
-        if (!hasDoNotProcessKey() && (hasPicassoRequest() || needRotate(file))) {
-            process(file);
+    private void processIfNeeded(PhotoJob job, File file, PhotoCallback callback) {
+        processIfNeeded(job, file, readHeader(file), callback);
+    }
+
+    /**
+     * @param header Header captured while the photo was copied, null if it is not a JPEG.
+     */
+    private void processIfNeeded(PhotoJob job, File file, @Nullable JpegHeader header, PhotoCallback callback) {
+        // a batch moves to PROCESSING with its first photo.
+        job.moveTo(PhotoJob.State.COPYING, PhotoJob.State.PROCESSING);
+        if (job.isCancelled()) {
+            callback.onError();
+        } else if (job.hasRenditions() && callback instanceof SinglePhotoCallback) {
+            firePreviewIfNeeded(job, file, header);
+            processRenditions(job, file, header);
+        } else if (!job.hasDoNotProcessKey()
+                && (job.hasPicassoRequest() || job.hasOutputSpec() || needRotate(header))) {
+            firePreviewIfNeeded(job, file, header);
+            // if only the orientation is wrong, we move DCT blocks instead of decoding and encoding the photo.
+            if (!job.hasPicassoRequest() && !job.hasOutputSpec() && rotateLosslessly(job, file, header)) {
+                callback.onSuccess(file);
+            } else if (job.isCancelled()) {
+                callback.onError();
+            } else {
+                process(job, file, header, callback);
+            }
         } else {
-            fireSuccess(file);
+            callback.onSuccess(file);
         }
     }
 
-    private boolean hasDoNotProcessKey() {
-        return hasPicassoRequest() && DO_NOT_PROCESS_KEY.equals(picassoRequest.stableKey);
+    private boolean wantsPreview(PhotoJob job) {
+        return !job.isBatch && job.listener instanceof OnPhotoPreviewListener && !job.isPreviewPosted.get();
     }
 
-    private boolean needRotate(File file) {
-        int orientation = getOrientationFromContentUri(Uri.fromFile(file));
-        return (orientation % 360) != 0;
+    // the preview is decoded before the processing, it takes a few milliseconds.
+    private void firePreviewIfNeeded(PhotoJob job, File file, @Nullable JpegHeader header) {
+        if (!wantsPreview(job)) {
+            return;
+        }
+
+        Bitmap preview;
+        PhotoTrace.begin("preview");
+        try {
+            preview = PhotoPreview.create(file, header);
+        } catch (RuntimeException e) {
+            // a damaged Exif segment or thumbnail must not fail the job, the preview is optional.
+            L.e(e);
+            return;
+        } catch (OutOfMemoryError e) {
+            L.w("Not enough memory for the preview of " + file.getName());
+            return;
+        } finally {
+            PhotoTrace.end();
+        }
+
+        if (preview != null) {
+            postPreview(job, preview);
+        }
     }
 
-    private void process(final File file) {
+    private void postPreview(final PhotoJob job, final Bitmap preview) {
+        if (!job.isPreviewPosted.compareAndSet(false, true)) {
+            preview.recycle();
+            return;
+        }
+
         Utils.runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                // we need to have a strong reference to the target
-                picassoTarget = new TargetImpl(file);
-                RequestCreator requestCreator = Picasso.with(Utils.getApp()).load(file);
+                OnPhotoTakenListener listener = job.listener;
+                if (listener instanceof OnPhotoPreviewListener && job.isRunning()) {
+                    ((OnPhotoPreviewListener) listener).onPreviewAvailable(job, preview);
+                } else {
+                    preview.recycle();
+                }
+            }
+        });
+    }
 
-                if (hasPicassoRequest()) {
-                    if (picassoRequest.hasSize()) {
-                        requestCreator.resize(picassoRequest.targetWidth, picassoRequest.targetHeight);
-                    }
-                    if (picassoRequest.centerCrop) {
-                        requestCreator.centerCrop();
-                    }
-                    if (picassoRequest.centerInside) {
-                        requestCreator.centerInside();
+    private boolean rotateLosslessly(PhotoJob job, File file, @Nullable JpegHeader header) {
+        if (header == null || !header.isBaseline) {
+            return false;
+        }
+
+        job.progress.setStage(JobMetrics.Stage.TRANSFORM);
+        File rotatedFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+        long start = System.nanoTime();
+        PhotoTrace.begin("lossless rotation");
+        try {
+            if (LosslessJpegRotator.rotate(file, rotatedFile, getRotationDegrees(header), job)
+                    && rotatedFile.renameTo(file)) {
+                return true;
+            }
+        } catch (CancelledException e) {
+            L.d(job + " has been cancelled while rotating " + file.getName());
+        } catch (IOException e) {
+            L.e(e);
+        } finally {
+            PhotoTrace.end();
+            JobMetrics.stage(JobMetrics.Stage.TRANSFORM, start);
+        }
+
+        rotatedFile.delete();
+        return false;
+    }
+
+    // the orientation is known without opening the photo only for MediaStore and files.
+    private boolean canReference(PhotoJob job, Uri uri) {
+        if (!(job.listener instanceof OnPhotoReferencedListener)) {
+            return false;
+        }
+
+        if (job.hasDoNotProcessKey()) {
+            return true;
+        }
+
+        if (job.hasPicassoRequest() || job.hasOutputSpec() || !(isMediaStorage(uri) || isFile(uri))) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        PhotoTrace.begin("orientation check");
+        int orientation = getOrientationFromContentUri(uri);
+        PhotoTrace.end();
+        JobMetrics.stage(JobMetrics.Stage.ORIENTATION_CHECK, start);
+        return orientation % 360 == 0;
+    }
+
+    private boolean needRotate(@Nullable JpegHeader header) {
+        return getRotationDegrees(header) != 0;
+    }
+
+    private int getRotationDegrees(@Nullable JpegHeader header) {
+        return header != null ? header.getRotationDegrees() : 0;
+    }
+
+    private JpegHeader readHeader(File file) {
+        long start = System.nanoTime();
+        PhotoTrace.begin("read header");
+        try {
+            return JpegHeader.read(file);
+        } catch (IOException e) {
+            L.e(e);
+            return null;
+        } finally {
+            PhotoTrace.end();
+            JobMetrics.stage(JobMetrics.Stage.ORIENTATION_CHECK, start);
+        }
+    }
+
+    private void process(PhotoJob job, File file, @Nullable JpegHeader header, PhotoCallback callback) {
+        Bitmap bitmap = null;
+        File outputFile = file;
+        PhotoTrace.begin("process");
+        try {
+            OutputSpec spec = job.hasOutputSpec() ? job.outputSpec : OutputSpec.DEFAULT;
+            PhotoProcessor.Plan plan = PhotoProcessor.readPlan(file, header, job.picassoRequest,
+                    getRotationDegrees(header));
+
+            if (plan.getDecodeBytes() > processingMemoryBudget) {
+                if (spec.format != Bitmap.CompressFormat.JPEG) {
+                    L.w("The photo doesn't fit into the memory budget, it is saved as JPEG instead of " + spec.format);
+                }
+
+                // strips are decoded and encoded in turns.
+                job.progress.setStage(JobMetrics.Stage.ENCODE);
+                saveTiled(job, file, outputFile, header, plan, spec);
+            } else {
+                job.progress.setStage(JobMetrics.Stage.DECODE);
+                bitmap = PhotoProcessor.decode(file, plan, job.picassoRequest, job);
+                job.progress.setStage(JobMetrics.Stage.ENCODE);
+                outputFile = getOutputFile(file, spec);
+                saveRotatedBitmap(outputFile, header, bitmap, spec, job);
+                if (!outputFile.equals(file)) {
+                    file.delete();
+                    removeFromAlbumIndex(file);
+                }
+            }
+
+            callback.onSuccess(outputFile);
+        } catch (CancelledException e) {
+            L.d(job + " has been cancelled while processing " + file.getName());
+            deletePartialOutput(file, outputFile);
+            callback.onError();
+        } catch (IOException e) {
+            L.e(e);
+            deletePartialOutput(file, outputFile);
+            callback.onError();
+        } catch (RuntimeException e) {
+            // e.g. IllegalArgumentException of a region decoder or of createBitmap.
+            L.e(e);
+            deletePartialOutput(file, outputFile);
+            callback.onError();
+        } catch (OutOfMemoryError e) {
+            L.e("Not enough memory to process " + file.getName());
+            deletePartialOutput(file, outputFile);
+            callback.onError();
+        } finally {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+
+            PhotoTrace.end();
+        }
+    }
+
+    // decodes the photo once and makes smaller renditions from the biggest suitable bitmap made before.
+    private void processRenditions(PhotoJob job, File file, @Nullable JpegHeader header) {
+        List<Rendition> sized = new ArrayList<>();
+        Map<String, File> results = new LinkedHashMap<>();
+        // the decoded photo first, then uniformly scaled whole renditions from big to small.
+        List<Bitmap> sources = new ArrayList<>();
+        PhotoTrace.begin("renditions");
+        try {
+            int degrees = getRotationDegrees(header);
+            PhotoProcessor.Plan plan = PhotoProcessor.readPlan(file, header, job.picassoRequest, degrees);
+            boolean fitsBudget = plan.getDecodeBytes() <= processingMemoryBudget;
+
+            for (Rendition rendition : job.renditions) {
+                File renditionFile = getRenditionFile(file, rendition);
+                results.put(rendition.name, renditionFile);
+                if (rendition.hasSize()) {
+                    sized.add(rendition);
+                } else if (!fitsBudget) {
+                    job.progress.setStage(JobMetrics.Stage.ENCODE);
+                    saveTiled(job, file, renditionFile, header, plan, rendition.spec);
+                    CancelledException.throwIfCancelled(job);
+                }
+            }
+
+            boolean needFullSize = sized.size() < job.renditions.size();
+            if (fitsBudget || !sized.isEmpty()) {
+                // a photo request with a size is small enough already.
+                boolean useRequest = (job.hasPicassoRequest() && job.picassoRequest.hasSize())
+                        || (needFullSize && fitsBudget);
+                Request decodeRequest = useRequest ? job.picassoRequest : getDecodeRequest(job, plan, sized);
+                PhotoProcessor.Plan decodePlan = decodeRequest == job.picassoRequest
+                        ? plan : PhotoProcessor.readPlan(file, header, decodeRequest, degrees);
+                job.progress.setStage(JobMetrics.Stage.DECODE);
+                sources.add(PhotoProcessor.decode(file, decodePlan, decodeRequest, job));
+                job.progress.setStage(JobMetrics.Stage.ENCODE);
+            }
+
+            Bitmap base = !sources.isEmpty() ? sources.get(0) : null;
+            if (base != null && fitsBudget && needFullSize) {
+                for (Rendition rendition : job.renditions) {
+                    if (!rendition.hasSize()) {
+                        saveRotatedBitmap(results.get(rendition.name), header, base, rendition.spec, job);
                     }
-                    if (picassoRequest.onlyScaleDown) {
-                        requestCreator.onlyScaleDown();
+                }
+            }
+
+            final int baseWidth = base != null ? base.getWidth() : 0;
+            final int baseHeight = base != null ? base.getHeight() : 0;
+            Collections.sort(sized, new Comparator<Rendition>() {
+                @Override
+                public int compare(Rendition lhs, Rendition rhs) {
+                    return Float.compare(PhotoProcessor.getRequiredScale(baseWidth, baseHeight, rhs.request),
+                            PhotoProcessor.getRequiredScale(baseWidth, baseHeight, lhs.request));
+                }
+            });
+
+            for (Rendition rendition : sized) {
+                CancelledException.throwIfCancelled(job);
+                float requiredScale = PhotoProcessor.getRequiredScale(baseWidth, baseHeight, rendition.request);
+                Bitmap source = base;
+                for (Bitmap candidate : sources) {
+                    if (candidate.getWidth() >= Math.round(baseWidth * requiredScale)) {
+                        source = candidate;
                     }
-                    if (picassoRequest.rotationDegrees != 0) {
-                        if (picassoRequest.hasRotationPivot) {
-                            requestCreator.rotate(picassoRequest.rotationDegrees,
-                                    picassoRequest.rotationPivotX, picassoRequest.rotationPivotY);
-                        } else {
-                            requestCreator.rotate(picassoRequest.rotationDegrees);
-                        }
+                }
+
+                long start = System.nanoTime();
+                Bitmap bitmap;
+                PhotoTrace.begin("resize " + rendition.name);
+                try {
+                    bitmap = PhotoProcessor.resize(source, rendition.request);
+                } finally {
+                    PhotoTrace.end();
+                }
+
+                JobMetrics.stage(JobMetrics.Stage.TRANSFORM, start);
+                JobMetrics.allocated(bitmap);
+                saveRotatedBitmap(results.get(rendition.name), header, bitmap, rendition.spec, job);
+                if (bitmap != source) {
+                    if (PhotoProcessor.keepsWholePhoto(source.getWidth(), source.getHeight(), rendition.request)) {
+                        sources.add(bitmap);
+                    } else {
+                        bitmap.recycle();
                     }
                 }
+            }
+
+            file.delete();
+            removeFromAlbumIndex(file);
+            fireRenditions(job, results);
+        } catch (CancelledException e) {
+            L.d(job + " has been cancelled while processing renditions of " + file.getName());
+            deleteFiles(results.values());
+            fireError(job);
+        } catch (IOException e) {
+            L.e(e);
+            deleteFiles(results.values());
+            fireError(job);
+        } catch (RuntimeException e) {
+            L.e(e);
+            deleteFiles(results.values());
+            fireError(job);
+        } catch (OutOfMemoryError e) {
+            L.e("Not enough memory to process renditions of " + file.getName());
+            deleteFiles(results.values());
+            fireError(job);
+        } finally {
+            for (Bitmap source : sources) {
+                source.recycle();
+            }
+
+            PhotoTrace.end();
+        }
+    }
+
+    /**
+     * The photo is decoded uniformly scaled to the biggest size needed by the renditions,
+     * the rotation of the photo request (it has no size here) is kept.
+     */
+    private Request getDecodeRequest(PhotoJob job, PhotoProcessor.Plan plan, List<Rendition> sized) {
+        Request picassoRequest = job.picassoRequest;
+        int width = plan.getOutputWidth();
+        int height = plan.getOutputHeight();
+        boolean swapSides = picassoRequest != null && Math.abs(picassoRequest.rotationDegrees % 180) == 90;
+
+        float scale = 0;
+        for (Rendition rendition : sized) {
+            scale = Math.max(scale, PhotoProcessor.getRequiredScale(swapSides ? height : width,
+                    swapSides ? width : height, rendition.request));
+        }
+
+        Request.Builder builder = new Request.Builder(42)
+                .resize(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)));
+        if (picassoRequest != null && picassoRequest.rotationDegrees != 0) {
+            if (picassoRequest.hasRotationPivot) {
+                builder.rotate(picassoRequest.rotationDegrees, picassoRequest.rotationPivotX,
+                        picassoRequest.rotationPivotY);
+            } else {
+                builder.rotate(picassoRequest.rotationDegrees);
+            }
+        }
+
+        return builder.build();
+    }
+
+    private File getRenditionFile(File file, Rendition rendition) {
+        String name = file.getName();
+        String baseName = name.endsWith(JPEG_FILE_SUFFIX)
+                ? name.substring(0, name.length() - JPEG_FILE_SUFFIX.length()) : name;
+        String suffix = rendition.spec.format == Bitmap.CompressFormat.WEBP ? WEBP_FILE_SUFFIX : JPEG_FILE_SUFFIX;
+        return new File(file.getParentFile(), baseName + RENDITION_FILE_SEPARATOR + rendition.name + suffix);
+    }
+
+    // a WebP output has its own file, the photo itself is deleted by the callback.
+    private void deletePartialOutput(File file, File outputFile) {
+        if (!outputFile.equals(file)) {
+            outputFile.delete();
+        }
+    }
+
+    private void deleteFiles(Collection<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private void fireRenditions(final PhotoJob job, final Map<String, File> files) {
+        addToAlbumIndex(files.values());
+        long bytes = 0;
+        for (File file : files.values()) {
+            bytes += file.length();
+        }
+
+        final JobMetrics metrics = JobMetrics.detach();
+        final long bytesOut = bytes;
+        final long deliveryStart = System.nanoTime();
+        final int traceId = PhotoTrace.getJobId();
 
-                requestCreator.into(picassoTarget);
+        Utils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                PhotoTrace.begin(traceId, "deliver renditions");
+                job.finish(PhotoJob.State.DONE);
+                job.completedRenditions = files;
+                deliver(job);
+                finishJob(metrics, deliveryStart, true, bytesOut);
+                PhotoTrace.end(traceId);
+            }
+        });
+    }
+
+    private void fireSuccess(final PhotoJob job, final File file) {
+        addToAlbumIndex(Collections.singletonList(file));
+        final JobMetrics metrics = JobMetrics.detach();
+        final long bytesOut = metrics != null ? file.length() : 0;
+        final long deliveryStart = System.nanoTime();
+        final int traceId = PhotoTrace.getJobId();
+
+        Utils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                PhotoTrace.begin(traceId, "deliver");
+                job.finish(PhotoJob.State.DONE);
+                job.completedFile = new File(file.getPath());
+                deliver(job);
+                finishJob(metrics, deliveryStart, true, bytesOut);
+                PhotoTrace.end(traceId);
             }
         });
     }
 
-    private void fireSuccess(final File file) {
+    private void fireReferenced(final PhotoJob job, final PhotoReference reference) {
+        final JobMetrics metrics = JobMetrics.detach();
+        final long deliveryStart = System.nanoTime();
+        final int traceId = PhotoTrace.getJobId();
         Utils.runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                if (photoTakenListener != null && !isProcessingCancelled) {
-                    photoTakenListener.onPhotoTaken(file);
+                OnPhotoTakenListener listener = job.listener;
+                if (listener != null && !job.isCancelled() && !(listener instanceof OnPhotoReferencedListener)) {
+                    // the listener has been replaced by one which needs a file.
+                    copyReference(job, reference, metrics, traceId);
+                    return;
                 }
 
-                completedFile = (photoTakenListener == null && !isProcessingCancelled) ? new File(file.getPath()) : null;
-                setPhotoTakenListenerIfNeeded(null);
-                hasError = false;
-                isProcessingInProgress = false;
+                PhotoTrace.begin(traceId, "deliver reference");
+                job.finish(PhotoJob.State.DONE);
+                job.completedReference = reference;
+                deliver(job);
+                finishJob(metrics, deliveryStart, true, 0);
+                PhotoTrace.end(traceId);
             }
         });
     }
 
-    private void fireError() {
-        if (photoFile != null) {
-            photoFile.delete();
-            photoFile = null;
+    private void copyReference(final PhotoJob job, final PhotoReference reference,
+                               @Nullable final JobMetrics metrics, final int traceId) {
+        runInBackground(job, new Runnable() {
+            @Override
+            public void run() {
+                JobMetrics.attach(metrics);
+                PhotoTrace.attach(traceId);
+                PhotoTrace.begin("copy reference");
+                try {
+                    long start = System.nanoTime();
+                    File file = reference.getFile();
+                    JobMetrics.stage(JobMetrics.Stage.COPY, start);
+                    fireSuccess(job, file);
+                } catch (IOException e) {
+                    L.e(e);
+                    fireError(job);
+                } finally {
+                    PhotoTrace.end();
+                    PhotoTrace.detach();
+                    JobMetrics.detach();
+                }
+            }
+        });
+    }
+
+    /**
+     * Gives the result of the job to its listener or keeps it in the job until a listener is set.
+     * The job is forgotten after the delivery or if it has been cancelled. Called on the main thread.
+     */
+    private void deliver(PhotoJob job) {
+        if (job.isCancelled()) {
+            job.clearResult();
+            forgetJob(job);
+            return;
         }
 
+        OnPhotoTakenListener listener = job.listener;
+        if (listener == null || !job.hasResult()) {
+            return;
+        }
+
+        if (job.completedReference != null && !(listener instanceof OnPhotoReferencedListener)) {
+            // the listener has been replaced by one which needs a file.
+            PhotoReference reference = job.completedReference;
+            job.completedReference = null;
+            copyReference(job, reference, null, 0);
+            return;
+        }
+
+        if (job.completedFile != null) {
+            listener.onPhotoTaken(job.completedFile);
+        } else if (job.completedFiles != null) {
+            if (listener instanceof OnPhotosTakenListener) {
+                ((OnPhotosTakenListener) listener).onBatchCompleted(job.completedFiles);
+            } else if (!job.completedFiles.isEmpty()) {
+                // the listener doesn't support batches, so it gets only the first photo.
+                listener.onPhotoTaken(job.completedFiles.get(0));
+            } else {
+                listener.onPhotoError();
+            }
+        } else if (job.completedReference != null) {
+            ((OnPhotoReferencedListener) listener).onPhotoReferenced(job.completedReference);
+        } else if (job.completedRenditions != null) {
+            if (listener instanceof OnRenditionsTakenListener) {
+                ((OnRenditionsTakenListener) listener).onRenditionsTaken(job.completedRenditions);
+            } else {
+                // the listener doesn't support renditions, so it gets only the first one.
+                listener.onPhotoTaken(job.completedRenditions.values().iterator().next());
+            }
+        } else {
+            listener.onPhotoError();
+        }
+
+        job.clearResult();
+        job.listener = null;
+        forgetJob(job);
+    }
+
+    // the id can be taken by a new job after that, so its launch state is removed too.
+    private void forgetJob(PhotoJob job) {
+        if (jobs.remove(job.getId(), job)) {
+            String prefix = getJobPrefix(job.getId());
+            PrefUtils.remove(prefix + STATE_FILE_PATH);
+            PrefUtils.remove(prefix + STATE_HAS_PICASSO_REQUEST);
+            PrefUtils.remove(prefix + STATE_HAS_OUTPUT_SPEC);
+            PrefUtils.remove(prefix + STATE_RENDITION_COUNT);
+        }
+    }
+
+    // called on the main thread after the listener, the delivery includes the hop to the main thread.
+    private void finishJob(@Nullable JobMetrics metrics, long deliveryStart, boolean isSuccessful, long bytesOut) {
+        OnJobMetricsListener listener = jobMetricsListener;
+        if (metrics == null || listener == null) {
+            return;
+        }
+
+        metrics.addStage(JobMetrics.Stage.DELIVERY, System.nanoTime() - deliveryStart);
+        metrics.finish(isSuccessful, bytesOut);
+        listener.onJobMetrics(metrics);
+    }
+
+    private void fireBatchItemSuccess(final PhotoJob job, final int position, final File file) {
+        addPinnedToAlbumIndex(file);
+        final JobMetrics metrics = JobMetrics.detach();
+        final long bytesOut = metrics != null ? file.length() : 0;
+        final long deliveryStart = System.nanoTime();
+        final int traceId = PhotoTrace.getJobId();
+
+        Utils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                PhotoTrace.begin(traceId, "deliver batch item");
+                OnPhotoTakenListener listener = job.listener;
+                if (listener instanceof OnPhotosTakenListener && !job.isCancelled()) {
+                    ((OnPhotosTakenListener) listener).onBatchPhotoTaken(position, file);
+                }
+
+                finishJob(metrics, deliveryStart, true, bytesOut);
+                PhotoTrace.end(traceId);
+            }
+        });
+    }
+
+    private void fireBatchItemError(final PhotoJob job, final int position, File file) {
+        file.delete();
+        removeFromAlbumIndex(file);
+        final JobMetrics metrics = JobMetrics.detach();
+        final long deliveryStart = System.nanoTime();
+        final int traceId = PhotoTrace.getJobId();
+
         Utils.runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                if (photoTakenListener != null && !isProcessingCancelled) {
-                    photoTakenListener.onPhotoError();
+                PhotoTrace.begin(traceId, "deliver batch error");
+                OnPhotoTakenListener listener = job.listener;
+                if (listener instanceof OnPhotosTakenListener && !job.isCancelled()) {
+                    ((OnPhotosTakenListener) listener).onBatchPhotoError(position);
                 }
 
-                hasError = photoTakenListener == null && !isProcessingCancelled;
-                setPhotoTakenListenerIfNeeded(null);
-                completedFile = null;
-                isProcessingInProgress = false;
+                finishJob(metrics, deliveryStart, false, 0);
+                PhotoTrace.end(traceId);
+            }
+        });
+    }
+
+    private void fireBatchCompleted(final PhotoJob job, final List<File> files) {
+        // the photos have been added by fireBatchItemSuccess().
+        AlbumIndex index = getAlbumIndex();
+        if (index != null) {
+            for (File file : files) {
+                index.unpin(file);
+            }
+
+            evictIfNeeded(index, files);
+        }
+
+        Utils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                job.finish(PhotoJob.State.DONE);
+                job.completedFiles = files;
+                deliver(job);
+            }
+        });
+    }
+
+    private void fireError(final PhotoJob job) {
+        if (job.photoFile != null) {
+            job.photoFile.delete();
+            removeFromAlbumIndex(job.photoFile);
+        }
+
+        final JobMetrics metrics = JobMetrics.detach();
+        final long deliveryStart = System.nanoTime();
+        final int traceId = PhotoTrace.getJobId();
+
+        Utils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                PhotoTrace.begin(traceId, "deliver error");
+                job.finish(PhotoJob.State.FAILED);
+                job.hasError = true;
+                deliver(job);
+                finishJob(metrics, deliveryStart, false, 0);
+                PhotoTrace.end(traceId);
             }
         });
     }
@@ -569,122 +2019,347 @@ public class TakePhoto {
         return orientation;
     }
 
-    private void saveRotatedBitmap(File file, Bitmap rotatedBitmap) throws IOException {
-        FileOutputStream out = null;
+    private File getOutputFile(File file, OutputSpec spec) {
+        if (spec.format != Bitmap.CompressFormat.WEBP) {
+            return file;
+        }
+
+        String name = file.getName();
+        String baseName = name.endsWith(JPEG_FILE_SUFFIX)
+                ? name.substring(0, name.length() - JPEG_FILE_SUFFIX.length()) : name;
+        return new File(file.getParentFile(), baseName + WEBP_FILE_SUFFIX);
+    }
+
+    // the Exif segment of the source is patched and written together with the photo, so the file is written once.
+    private void saveRotatedBitmap(File file, @Nullable JpegHeader header, final Bitmap rotatedBitmap,
+                                   final OutputSpec spec, final CancellationToken token) throws IOException {
+        CancelledException.throwIfCancelled(token);
+        long start = System.nanoTime();
+        PhotoTrace.begin("exif");
+        byte[] exifSegment = spec.format == Bitmap.CompressFormat.JPEG && header != null && header.exif != null
+                ? ExifSegment.createNormalizedSegment(header.exif, rotatedBitmap.getWidth(),
+                rotatedBitmap.getHeight()) : null;
+        PhotoTrace.end();
+        JobMetrics.stage(JobMetrics.Stage.EXIF_WRITE, start);
+        if (exifSegment != null && spec.hasMaxBytes() && exifSegment.length >= spec.maxBytes) {
+            L.w("The Exif segment leaves no room for the photo in " + spec.maxBytes + " bytes, it is not written");
+            exifSegment = null;
+        }
+
+        start = System.nanoTime();
+        PhotoTrace.begin("encode");
+
+        // the photo is encoded in memory until it fits, then it is written.
+        ByteArrayOutputStream encoded = null;
+        if (spec.hasMaxBytes()) {
+            encoded = new ByteArrayOutputStream();
+            long maxBytes = spec.maxBytes - (exifSegment != null ? exifSegment.length : 0);
+            int quality = QualitySearch.findQuality(new QualitySearch.Encoder() {
+                @Override
+                public void encode(int quality, OutputStream out) throws IOException {
+                    CancelledException.throwIfCancelled(token);
+                    compress(rotatedBitmap, spec, quality, out);
+                }
+            }, spec.quality, maxBytes, encoded);
+
+            if (encoded.size() > maxBytes) {
+                L.w("The photo doesn't fit into " + spec.maxBytes + " bytes even with quality " + quality);
+            }
+        }
+
+        OutputStream out = null;
         try {
-            ExifHelper exifHelper = new ExifHelper();
-            exifHelper.readExifData(file.getPath());
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            if (exifSegment != null) {
+                out = new SegmentInsertingOutputStream(out, exifSegment);
+            }
 
-            out = new FileOutputStream(file);
-            rotatedBitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
+            if (encoded != null) {
+                encoded.writeTo(out);
+            } else {
+                compress(rotatedBitmap, spec, spec.quality, out);
+            }
 
-            exifHelper.setOrientation(String.valueOf(ExifInterface.ORIENTATION_NORMAL));
-            exifHelper.setImageWidth(String.valueOf(rotatedBitmap.getWidth()));
-            exifHelper.setImageLength(String.valueOf(rotatedBitmap.getHeight()));
-            exifHelper.writeExifData(file.getPath());
+            // the buffered tail is written here, e.g. a full disk must fail the photo, not truncate it.
+            out.flush();
+            out.close();
+            out = null;
         } finally {
             try {
                 if (out != null) {
-                    out.flush();
                     out.close();
                 }
-            } catch (Exception e) {
+            } catch (IOException e) {
+                L.e(e);
+            }
+
+            PhotoTrace.end();
+            JobMetrics.stage(JobMetrics.Stage.ENCODE, start);
+        }
+    }
+
+    private static void compress(Bitmap bitmap, OutputSpec spec, int quality, OutputStream out) throws IOException {
+        if (!bitmap.compress(spec.format, quality, out)) {
+            throw new IOException("Can't compress the photo to " + spec.format);
+        }
+    }
+
+    // only JPEG can be written strip by strip.
+    private void saveTiled(final PhotoJob job, final File file, File outputFile, @Nullable JpegHeader header,
+                           final PhotoProcessor.Plan plan, OutputSpec spec) throws IOException {
+        final byte[] exif = header != null ? header.exif : null;
+        final Request picassoRequest = job.picassoRequest;
+        QualitySearch.Encoder encoder = new QualitySearch.Encoder() {
+            @Override
+            public void encode(int quality, OutputStream out) throws IOException {
+                PhotoProcessor.encodeTiled(file, plan, picassoRequest, exif, processingMemoryBudget, quality, out,
+                        job);
+            }
+        };
+
+        // without a size limit it is encoded once, otherwise the search only counts bytes.
+        // Every try decodes and encodes all strips, so the search is coarse here.
+        int quality = spec.hasMaxBytes() ? QualitySearch.findQuality(encoder, spec.quality, spec.maxBytes, null,
+                MAX_TILED_QUALITY_ENCODES) : spec.quality;
+
+        File tiledFile = new File(outputFile.getPath() + TEMP_FILE_SUFFIX);
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tiledFile));
+            encoder.encode(quality, out);
+            out.close();
+            out = null;
+
+            if (!tiledFile.renameTo(outputFile)) {
+                throw new IOException("Can't rename " + tiledFile.getPath());
+            }
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
                 L.e(e);
             }
+
+            tiledFile.delete();
         }
     }
 
     public void clearAlbumDir() {
         IO.deleteFilesInDir(getAlbumDir(), false);
+        AlbumIndex index = getAlbumIndex();
+        if (index != null) {
+            index.reset();
+        }
     }
 
+    /**
+     * Deletes the oldest photos of the album index, the directory is not listed.
+     * The index is built by listing the directory once, on the first run with it, so photos taken before
+     * are included. Files put into the album directory by the app itself are not in the index.
+     * It runs on the calling thread, use {@link #scheduleAlbumCleanup(RetentionPolicy)} to delete in the background.
+     */
     public void clearAlbumDirRemainCount(int remainLatestPhotosCount) {
-        IO.deleteFilesInDirRemainCount(getAlbumDir(), remainLatestPhotosCount, false);
+        AlbumIndex index = getAlbumIndex();
+        if (index != null) {
+            index.evictToCount(remainLatestPhotosCount, Integer.MAX_VALUE);
+        }
     }
 
+    /**
+     * Deletes photos of the album index created more than remainFilesForDays days ago, the directory is not listed.
+     * It runs on the calling thread, use {@link #scheduleAlbumCleanup(RetentionPolicy)} to delete in the background.
+     */
     public void clearAlbumDirRemainDays(int remainFilesForDays) {
-        IO.deleteFilesInDirRemainDays(getAlbumDir(), remainFilesForDays, false);
+        AlbumIndex index = getAlbumIndex();
+        if (index != null) {
+            index.evictCreatedBefore(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(remainFilesForDays),
+                    Integer.MAX_VALUE);
+        }
     }
 
+    /**
+     * @return Time of the photo from its name or from the album index, the current time if it is unknown.
+     */
     public Date getDate(String imagePath) {
-        try {
-            String imageName = imagePath.substring(imagePath.indexOf(JPEG_FILE_PREFIX) + JPEG_FILE_PREFIX.length());
-            return PHOTO_DATE_FORMAT.parse(imageName);
-        } catch (ParseException e) {
-            L.e(e);
+        File file = new File(imagePath);
+        long time = PhotoName.parse(file.getName());
+        if (time < 0) {
+            AlbumIndex index = getAlbumIndex();
+            time = index != null ? index.getCreationTime(file) : -1;
+        }
+
+        if (time < 0) {
+            L.e("Unknown date of " + imagePath);
             return new Date();
         }
+
+        return new Date(time);
     }
 
-    private void savePhotoFile() {
-        PrefUtils.put(STATE_FILE_PATH, photoFile.getAbsolutePath());
+    /**
+     * Photos of the album index, the directory is not listed. Don't call it on the main thread
+     * for the first time, the index is read from the storage then.
+     *
+     * @return Photos taken in [from, to), from old to new.
+     */
+    public List<File> getPhotos(Date from, Date to) {
+        AlbumIndex index = getAlbumIndex();
+        return index != null ? index.getCreatedBetween(from.getTime(), to.getTime())
+                : Collections.<File>emptyList();
+    }
+
+    /**
+     * @return The latest count photos of the album index, from new to old.
+     * @see #getPhotos(Date, Date)
+     */
+    public List<File> getLatestPhotos(int count) {
+        AlbumIndex index = getAlbumIndex();
+        return index != null ? index.getLatest(count) : Collections.<File>emptyList();
     }
 
-    private void restorePhotoFile() {
-        photoFile = new File(PrefUtils.getString(STATE_FILE_PATH, null));
+    /**
+     * @return Total size of photos of the album index in bytes.
+     * @see #getPhotos(Date, Date)
+     */
+    public long getAlbumSize() {
+        AlbumIndex index = getAlbumIndex();
+        return index != null ? index.getTotalBytes() : 0;
     }
 
-    private boolean hasPicassoRequest() {
-        return picassoRequest != null;
+    // the launch state of every job has its own prefix, so jobs survive the death of the process independently.
+    private static String getJobPrefix(int jobId) {
+        return STATE_JOB_PREFIX + jobId + "_";
     }
 
-    private void savePicassoRequestIfExists() {
-        PrefUtils.put(STATE_HAS_PICASSO_REQUEST, hasPicassoRequest());
-        if (hasPicassoRequest()) {
-            PrefUtils.put(STATE_HAS_SIZE, picassoRequest.hasSize());
-            PrefUtils.put(STATE_TARGET_WIDTH, picassoRequest.targetWidth);
-            PrefUtils.put(STATE_TARGET_HEIGHT, picassoRequest.targetHeight);
-            PrefUtils.put(STATE_CENTER_CROP, picassoRequest.centerCrop);
-            PrefUtils.put(STATE_CENTER_INSIDE, picassoRequest.centerInside);
-            PrefUtils.put(STATE_ONLY_SCALE_DOWN, picassoRequest.onlyScaleDown);
-            PrefUtils.put(STATE_ROTATION_DEGREES, picassoRequest.rotationDegrees);
-            PrefUtils.put(STATE_HAS_ROTATION_PIVOT, picassoRequest.hasRotationPivot);
-            PrefUtils.put(STATE_ROTATION_PIVOT_X, picassoRequest.rotationPivotX);
-            PrefUtils.put(STATE_ROTATION_PIVOT_Y, picassoRequest.rotationPivotY);
+    private void saveJob(PhotoJob job) {
+        String prefix = getJobPrefix(job.getId());
+        PrefUtils.put(prefix + STATE_FILE_PATH, job.photoFile.getAbsolutePath());
+        saveRequest(prefix, job.picassoRequest);
+        saveOutputSpec(prefix, job.outputSpec);
+
+        int count = job.hasRenditions() ? job.renditions.size() : 0;
+        PrefUtils.put(prefix + STATE_RENDITION_COUNT, count);
+        for (int i = 0; i < count; i++) {
+            Rendition rendition = job.renditions.get(i);
+            String renditionPrefix = prefix + STATE_RENDITION_PREFIX + i + "_";
+            PrefUtils.put(renditionPrefix + STATE_RENDITION_NAME, rendition.name);
+            saveRequest(renditionPrefix, rendition.request);
+            saveOutputSpec(renditionPrefix, rendition.spec);
         }
     }
 
-    private void restorePicassoRequestIfExists() {
-        boolean hasPicassoRequest = PrefUtils.getBool(STATE_HAS_PICASSO_REQUEST, false);
-        if (hasPicassoRequest) {
-            Request.Builder builder = new Request.Builder(42);
+    private void restoreJob(PhotoJob job) {
+        String prefix = getJobPrefix(job.getId());
+        String path = PrefUtils.getString(prefix + STATE_FILE_PATH, null);
+        job.photoFile = path != null ? new File(path) : null;
+        job.picassoRequest = restoreRequest(prefix);
+        job.outputSpec = restoreOutputSpec(prefix);
 
-            boolean hasSize = PrefUtils.getBool(STATE_HAS_SIZE, false);
-            if (hasSize) {
-                int targetWidth = PrefUtils.getInt(STATE_TARGET_WIDTH, 0);
-                int targetHeight = PrefUtils.getInt(STATE_TARGET_HEIGHT, 0);
-                builder.resize(targetWidth, targetHeight);
-            }
+        int count = PrefUtils.getInt(prefix + STATE_RENDITION_COUNT, 0);
+        if (count == 0) {
+            return;
+        }
 
-            boolean centerCrop = PrefUtils.getBool(STATE_CENTER_CROP, false);
-            if (centerCrop) {
-                builder.centerCrop();
-            }
+        List<Rendition> restored = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String renditionPrefix = prefix + STATE_RENDITION_PREFIX + i + "_";
+            restored.add(new Rendition(PrefUtils.getString(renditionPrefix + STATE_RENDITION_NAME, String.valueOf(i)),
+                    restoreRequest(renditionPrefix), restoreOutputSpec(renditionPrefix)));
+        }
 
-            boolean centerInside = PrefUtils.getBool(STATE_CENTER_INSIDE, false);
-            if (centerInside) {
-                builder.centerInside();
-            }
+        job.renditions = restored;
+    }
 
-            boolean onlyScaleDown = PrefUtils.getBool(STATE_ONLY_SCALE_DOWN, false);
-            if (onlyScaleDown) {
-                builder.onlyScaleDown();
-            }
+    // the prefix of a job for the request of the photo, renditions add their own prefixes to it.
+    private static void saveRequest(String prefix, @Nullable Request request) {
+        PrefUtils.put(prefix + STATE_HAS_PICASSO_REQUEST, request != null);
+        if (request != null) {
+            PrefUtils.put(prefix + STATE_HAS_SIZE, request.hasSize());
+            PrefUtils.put(prefix + STATE_TARGET_WIDTH, request.targetWidth);
+            PrefUtils.put(prefix + STATE_TARGET_HEIGHT, request.targetHeight);
+            PrefUtils.put(prefix + STATE_CENTER_CROP, request.centerCrop);
+            PrefUtils.put(prefix + STATE_CENTER_INSIDE, request.centerInside);
+            PrefUtils.put(prefix + STATE_ONLY_SCALE_DOWN, request.onlyScaleDown);
+            PrefUtils.put(prefix + STATE_ROTATION_DEGREES, request.rotationDegrees);
+            PrefUtils.put(prefix + STATE_HAS_ROTATION_PIVOT, request.hasRotationPivot);
+            PrefUtils.put(prefix + STATE_ROTATION_PIVOT_X, request.rotationPivotX);
+            PrefUtils.put(prefix + STATE_ROTATION_PIVOT_Y, request.rotationPivotY);
+        }
+    }
 
-            float rotationDegrees = PrefUtils.getFloat(STATE_ROTATION_DEGREES, 0);
-            if (rotationDegrees != 0) {
-                boolean hasRotationPivot = PrefUtils.getBool(STATE_HAS_ROTATION_PIVOT, false);
-                if (hasRotationPivot) {
-                    float rotationPivotX = PrefUtils.getFloat(STATE_ROTATION_PIVOT_X, 0);
-                    float rotationPivotY = PrefUtils.getFloat(STATE_ROTATION_PIVOT_Y, 0);
-                    builder.rotate(rotationDegrees, rotationPivotX, rotationPivotY);
-                } else {
-                    builder.rotate(rotationDegrees);
-                }
-            }
+    private static void saveOutputSpec(String prefix, @Nullable OutputSpec spec) {
+        PrefUtils.put(prefix + STATE_HAS_OUTPUT_SPEC, spec != null);
+        if (spec != null) {
+            PrefUtils.put(prefix + STATE_OUTPUT_FORMAT, spec.format.name());
+            PrefUtils.put(prefix + STATE_OUTPUT_QUALITY, spec.quality);
+            PrefUtils.put(prefix + STATE_OUTPUT_MAX_BYTES, spec.maxBytes);
+        }
+    }
+
+    private static OutputSpec restoreOutputSpec(String prefix) {
+        boolean hasOutputSpec = PrefUtils.getBool(prefix + STATE_HAS_OUTPUT_SPEC, false);
+        if (!hasOutputSpec) {
+            return null;
+        }
+
+        OutputSpec.Builder builder = new OutputSpec.Builder()
+                .format(Bitmap.CompressFormat.valueOf(PrefUtils.getString(prefix + STATE_OUTPUT_FORMAT,
+                        Bitmap.CompressFormat.JPEG.name())))
+                .quality(PrefUtils.getInt(prefix + STATE_OUTPUT_QUALITY, OutputSpec.DEFAULT_QUALITY));
+
+        long maxBytes = PrefUtils.getLong(prefix + STATE_OUTPUT_MAX_BYTES, 0);
+        if (maxBytes > 0) {
+            builder.maxBytes(maxBytes);
+        }
+
+        return builder.build();
+    }
+
+    private static Request restoreRequest(String prefix) {
+        boolean hasPicassoRequest = PrefUtils.getBool(prefix + STATE_HAS_PICASSO_REQUEST, false);
+        if (!hasPicassoRequest) {
+            return null;
+        }
+
+        Request.Builder builder = new Request.Builder(42);
+
+        boolean hasSize = PrefUtils.getBool(prefix + STATE_HAS_SIZE, false);
+        if (hasSize) {
+            int targetWidth = PrefUtils.getInt(prefix + STATE_TARGET_WIDTH, 0);
+            int targetHeight = PrefUtils.getInt(prefix + STATE_TARGET_HEIGHT, 0);
+            builder.resize(targetWidth, targetHeight);
+        }
+
+        boolean centerCrop = PrefUtils.getBool(prefix + STATE_CENTER_CROP, false);
+        if (centerCrop) {
+            builder.centerCrop();
+        }
+
+        boolean centerInside = PrefUtils.getBool(prefix + STATE_CENTER_INSIDE, false);
+        if (centerInside) {
+            builder.centerInside();
+        }
+
+        boolean onlyScaleDown = PrefUtils.getBool(prefix + STATE_ONLY_SCALE_DOWN, false);
+        if (onlyScaleDown) {
+            builder.onlyScaleDown();
+        }
 
-            picassoRequest = builder.build();
+        float rotationDegrees = PrefUtils.getFloat(prefix + STATE_ROTATION_DEGREES, 0);
+        if (rotationDegrees != 0) {
+            boolean hasRotationPivot = PrefUtils.getBool(prefix + STATE_HAS_ROTATION_PIVOT, false);
+            if (hasRotationPivot) {
+                float rotationPivotX = PrefUtils.getFloat(prefix + STATE_ROTATION_PIVOT_X, 0);
+                float rotationPivotY = PrefUtils.getFloat(prefix + STATE_ROTATION_PIVOT_Y, 0);
+                builder.rotate(rotationDegrees, rotationPivotX, rotationPivotY);
+            } else {
+                builder.rotate(rotationDegrees);
+            }
         }
+
+        return builder.build();
     }
 
     // Custom dialog with chooser
@@ -693,10 +2368,16 @@ public class TakePhoto {
         private static final int TAKE_PHOTO_POSITION = 0;
         private static final int CHOOSE_FROM_GALLERY_POSITION = 1;
 
-        static ChooseDialog newInstance(Fragment fragment) {
+        private static final String ARG_JOB_ID = "job_id";
+
+        static ChooseDialog newInstance(Fragment fragment, PhotoJob job) {
             ChooseDialog dialog = new ChooseDialog();
             dialog.setTargetFragment(fragment, 0);
 
+            Bundle args = new Bundle();
+            args.putInt(ARG_JOB_ID, job.getId());
+            dialog.setArguments(args);
+
             return dialog;
         }
 
@@ -708,12 +2389,14 @@ public class TakePhoto {
                     .setItems(R.array.photo_choose_dialog, new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialog, int which) {
+                            TakePhoto takePhoto = TakePhoto.getInstance();
+                            PhotoJob job = takePhoto.getDialogJob(getArguments().getInt(ARG_JOB_ID));
                             switch (which) {
                                 case TAKE_PHOTO_POSITION:
-                                    TakePhoto.getInstance().takePhoto(getTargetFragment());
+                                    takePhoto.takePhoto(getTargetFragment(), job);
                                     break;
                                 case CHOOSE_FROM_GALLERY_POSITION:
-                                    TakePhoto.getInstance().launchGallery(getTargetFragment());
+                                    takePhoto.launchGallery(getTargetFragment(), job, false);
                                     break;
                                 default:
                                     throw new IllegalStateException("case for " + which + " is not defined");
@@ -722,40 +2405,171 @@ public class TakePhoto {
                     })
                     .create();
         }
+
+        @Override
+        public void onCancel(DialogInterface dialog) {
+            super.onCancel(dialog);
+            // neither the camera nor the gallery will be launched for the job.
+            TakePhoto takePhoto = TakePhoto.getInstance();
+            takePhoto.discardJob(takePhoto.getDialogJob(getArguments().getInt(ARG_JOB_ID)));
+        }
     }
 
-    private class TargetImpl implements Target {
+    private interface PhotoCallback {
+        void onSuccess(File file);
 
-        private final File file;
+        void onError();
+    }
+
+    // Delivers the photo of a job which is not a batch.
+    private class SinglePhotoCallback implements PhotoCallback {
 
-        public TargetImpl(File file) {
-            this.file = file;
+        private final PhotoJob job;
+
+        SinglePhotoCallback(PhotoJob job) {
+            this.job = job;
         }
 
         @Override
-        public void onBitmapLoaded(final Bitmap bitmap, Picasso.LoadedFrom from) {
-            new Thread(new Runnable() {
+        public void onSuccess(File file) {
+            fireSuccess(job, file);
+        }
+
+        @Override
+        public void onError() {
+            fireError(job);
+        }
+    }
+
+    // Puts successfully processed photos into the result cache after they have been delivered.
+    private class CachingCallback implements PhotoCallback {
+
+        private final ResultCache cache;
+        private final String key;
+        private final PhotoCallback callback;
+
+        CachingCallback(ResultCache cache, String key, PhotoCallback callback) {
+            this.cache = cache;
+            this.key = key;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSuccess(final File file) {
+            callback.onSuccess(file);
+            try {
+                getProcessingExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        cache.put(key, file);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                L.w("No thread to cache " + file.getName());
+            }
+        }
+
+        @Override
+        public void onError() {
+            callback.onError();
+        }
+    }
+
+    // Copies and processes several picked photos, at most batchParallelism of them at the same time.
+    private class Batch {
+
+        private final PhotoJob job;
+        private final List<Uri> uris;
+        private final File firstFile;
+        private final File[] results;
+        private final AtomicInteger nextPosition = new AtomicInteger();
+        private final AtomicInteger remainingCount;
+
+        Batch(PhotoJob job, List<Uri> uris) {
+            this.job = job;
+            this.uris = uris;
+            firstFile = job.photoFile;
+            job.isBatch = true;
+            results = new File[uris.size()];
+            remainingCount = new AtomicInteger(uris.size());
+        }
+
+        void start() {
+            int lanes = Math.min(batchParallelism, uris.size());
+            for (int i = 0; i < lanes; i++) {
+                processNext();
+            }
+        }
+
+        private void processNext() {
+            final int position = nextPosition.getAndIncrement();
+            if (position >= uris.size()) {
+                return;
+            }
+
+            final File file = getBatchFile(firstFile, position);
+            final JobMetrics metrics = jobMetricsListener != null ? new JobMetrics(System.nanoTime()) : null;
+            final int traceId = PhotoTrace.newJobId();
+            final PhotoCallback callback = new PhotoCallback() {
+                @Override
+                public void onSuccess(File file) {
+                    synchronized (results) {
+                        results[position] = file;
+                    }
+                    fireBatchItemSuccess(job, position, file);
+                    onItemFinished();
+                }
+
+                @Override
+                public void onError() {
+                    fireBatchItemError(job, position, file);
+                    onItemFinished();
+                }
+            };
+
+            runInBackground(new Runnable() {
                 @Override
                 public void run() {
+                    JobMetrics.attach(metrics);
+                    PhotoTrace.attach(traceId);
+                    PhotoTrace.begin("batch item " + position);
                     try {
-                        saveRotatedBitmap(file, bitmap);
-                        fireSuccess(file);
-                    } catch (IOException e) {
+                        if (job.isCancelled()) {
+                            callback.onError();
+                            return;
+                        }
+
+                        copyAndProcess(job, uris.get(position), file, callback);
+                    } catch (CancelledException e) {
+                        L.d(job + " has been cancelled while copying photo " + position);
+                        callback.onError();
+                    } catch (Exception e) {
                         L.e(e);
-                        fireError();
+                        callback.onError();
+                    } finally {
+                        PhotoTrace.end();
+                        PhotoTrace.detach();
+                        JobMetrics.detach();
                     }
                 }
-            }).start();
+            }, callback);
         }
 
-        @Override
-        public void onBitmapFailed(Drawable errorDrawable) {
-            L.e("onBitmapFailed");
-            fireError();
-        }
+        private void onItemFinished() {
+            if (remainingCount.decrementAndGet() == 0) {
+                List<File> files = new ArrayList<>();
+                synchronized (results) {
+                    for (File result : results) {
+                        if (result != null) {
+                            files.add(result);
+                        }
+                    }
+                }
 
-        @Override
-        public void onPrepareLoad(Drawable placeHolderDrawable) {
+                fireBatchCompleted(job, files);
+            } else {
+                processNext();
+            }
         }
     }
 
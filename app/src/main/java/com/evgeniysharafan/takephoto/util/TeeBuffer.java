@@ -0,0 +1,137 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded ring buffer between the copy and a second reader of the same bytes (e.g. a decoder),
+ * so the reader works while the photo is still being copied.
+ * <p>The copy never waits for the reader: if the reader falls behind by more than the capacity, the tee
+ * is broken and the reader gets an IOException, the copy goes on. The reader closes the stream when it
+ * doesn't need more bytes, the next chunks are dropped.</p>
+ * <p>One writer and one reader. Pure Java, it doesn't depend on the Android SDK.</p>
+ */
+final class TeeBuffer extends InputStream {
+
+    private final byte[] ring;
+    // guarded by this
+    private int readPosition;
+    private int size;
+    private boolean isFinished;
+    private boolean isBroken;
+    private boolean isClosed;
+
+    TeeBuffer(int capacity) {
+        ring = new byte[capacity];
+    }
+
+    /**
+     * Copies the remaining bytes of the chunk, its position is not changed.
+     *
+     * @return False if the tee is broken or closed, the next chunks are not needed.
+     */
+    synchronized boolean offer(ByteBuffer chunk) {
+        if (isBroken || isClosed) {
+            return false;
+        }
+
+        int count = chunk.remaining();
+        if (count > ring.length - size) {
+            isBroken = true;
+            notifyAll();
+            return false;
+        }
+
+        ByteBuffer source = chunk.duplicate();
+        int writePosition = (readPosition + size) % ring.length;
+        int first = Math.min(count, ring.length - writePosition);
+        source.get(ring, writePosition, first);
+        source.get(ring, 0, count - first);
+        size += count;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Only the first call counts, so the owner can finish the tee once more in a finally block.
+     *
+     * @param isComplete False if the copy has failed or the tee can't get all bytes, the reader gets an IOException.
+     */
+    synchronized void finish(boolean isComplete) {
+        if (isFinished || isBroken) {
+            return;
+        }
+
+        if (isComplete) {
+            isFinished = true;
+        } else {
+            isBroken = true;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * @return True if bytes have been lost or the copy has failed, so what the reader has got is not the photo.
+     */
+    synchronized boolean isBroken() {
+        return isBroken;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+
+        while (size == 0 && !isFinished && !isBroken && !isClosed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (isClosed) {
+            throw new IOException("Closed");
+        }
+
+        // bytes have been lost, the rest of the stream would have a gap.
+        if (isBroken) {
+            throw new IOException("The reader has fallen behind or the copy has failed");
+        }
+
+        if (size == 0) {
+            return -1;
+        }
+
+        int total = Math.min(count, size);
+        int first = Math.min(total, ring.length - readPosition);
+        System.arraycopy(ring, readPosition, buffer, offset, first);
+        System.arraycopy(ring, 0, buffer, offset + first, total - first);
+        readPosition = (readPosition + total) % ring.length;
+        size -= total;
+        return total;
+    }
+
+    @Override
+    public synchronized int available() {
+        return size;
+    }
+
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+        notifyAll();
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.evgeniysharafan.takephoto.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link AlbumIndex} with files reserved for the camera which are never written, photos deleted
+ * outside the index, and photos protected from eviction.
+ */
+public class AlbumIndexTest {
+
+    private File dir;
+    private AlbumIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("album", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+
+        // the log is created from the empty directory, later files get the creation times they are put with.
+        index = new AlbumIndex(dir);
+        assertEquals(0, index.size());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void abandonedReservationsDontEvictPhotos() throws IOException {
+        File[] photos = new File[10];
+        for (int i = 0; i < photos.length; i++) {
+            photos[i] = writePhoto("photo_" + i, 1000 + i);
+        }
+
+        // the camera has been closed without a photo, the reservations are the newest.
+        for (int i = 0; i < 5; i++) {
+            index.reserve(new File(dir, "abandoned_" + i), 2000 + i);
+        }
+
+        assertEquals(10, index.size());
+        assertEquals(5, index.evictToCount(5, Integer.MAX_VALUE));
+        for (int i = 0; i < photos.length; i++) {
+            assertEquals(photos[i].getName(), i >= 5, photos[i].exists());
+        }
+
+        assertEquals(Arrays.asList(photos[9], photos[8], photos[7], photos[6], photos[5]), index.getLatest(10));
+    }
+
+    @Test
+    public void putKeepsTheReservedCreationTime() throws IOException {
+        File old = writePhoto("old", 1000);
+        File reserved = new File(dir, "reserved");
+        index.reserve(reserved, 500);
+        assertTrue(index.getCreatedBetween(0, 1000).isEmpty());
+
+        write(reserved);
+        index.put(reserved);
+        assertEquals(500, index.getCreationTime(reserved));
+        assertEquals(Arrays.asList(reserved, old), index.getCreatedBetween(0, 2000));
+    }
+
+    @Test
+    public void releasedReservationIsNotPut() throws IOException {
+        File file = new File(dir, "referenced");
+        index.reserve(file, 1000);
+        index.release(file);
+
+        // the app has asked for the file of a reference later.
+        write(file);
+        assertEquals(0, index.size());
+        assertEquals(0, new AlbumIndex(dir).size());
+    }
+
+    @Test
+    public void reservationsOfAKilledProcessAreResolvedOnLoad() throws IOException {
+        File written = new File(dir, "written");
+        File abandoned = new File(dir, "abandoned");
+        index.reserve(written, 1000);
+        index.reserve(abandoned, 2000);
+        write(written);
+
+        AlbumIndex restored = new AlbumIndex(dir);
+        assertEquals(1, restored.size());
+        assertEquals(1000, restored.getCreationTime(written));
+        assertEquals(Arrays.asList(written), restored.getLatest(10));
+
+        // the dropped reservation doesn't come back if the file is written after the load.
+        write(abandoned);
+        assertEquals(1, new AlbumIndex(dir).size());
+    }
+
+    @Test
+    public void photosDeletedOutsideTheIndexAreSkipped() throws IOException {
+        File first = writePhoto("first", 1000);
+        File second = writePhoto("second", 2000);
+        File third = writePhoto("third", 3000);
+        assertTrue(third.delete());
+
+        List<File> latest = index.getLatest(2);
+        assertEquals(Arrays.asList(second, first), latest);
+        assertEquals(Arrays.asList(first, second), index.getCreatedBetween(0, 4000));
+
+        // the missing photo doesn't take a place of the existing ones.
+        index.evictToCount(2, Integer.MAX_VALUE);
+        assertTrue(first.exists());
+        assertTrue(second.exists());
+        assertEquals(2, index.size());
+
+        index.evictToCount(1, Integer.MAX_VALUE);
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+    }
+
+    @Test
+    public void pinnedAndKeptPhotosAreNotEvicted() throws IOException {
+        File old = writePhoto("old", 1000);
+        File batchItem = writePhoto("batch_0", 2000);
+        File kept = writePhoto("kept", 3000);
+        index.pin(batchItem);
+
+        assertEquals(1, index.evictToBytes(0, Collections.singletonList(kept), Integer.MAX_VALUE));
+        assertFalse(old.exists());
+        assertEquals(1, index.evictToCount(0, Integer.MAX_VALUE));
+        assertFalse(kept.exists());
+        assertEquals(0, index.evictCreatedBefore(5000, Integer.MAX_VALUE));
+        assertTrue(batchItem.exists());
+
+        index.unpin(batchItem);
+        assertEquals(1, index.evictToBytes(0, null, Integer.MAX_VALUE));
+        assertFalse(batchItem.exists());
+    }
+
+    @Test
+    public void scanSkipsTemporaryFiles() throws IOException {
+        File photo = new File(dir, "photo.jpg");
+        write(photo);
+        write(new File(dir, "photo.jpg.tmp"));
+        write(new File(dir, AlbumIndex.FILE_NAME + ".tmp"));
+        assertTrue(new File(dir, AlbumIndex.FILE_NAME).delete());
+
+        AlbumIndex scanned = new AlbumIndex(dir);
+        assertEquals(1, scanned.size());
+        assertEquals(photo.length(), scanned.getTotalBytes());
+
+        scanned.put(new File(dir, "photo.jpg.tmp"));
+        assertEquals(1, scanned.size());
+    }
+
+    private File writePhoto(String name, long creationTime) throws IOException {
+        File file = new File(dir, name);
+        write(file);
+        index.put(file, creationTime);
+        return file;
+    }
+
+    private static void write(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[100]);
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.evgeniysharafan.takephoto.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link ExifSegment} on a camera-like layout: IFD0 with a value stored outside the entry, the Exif IFD,
+ * then IFD1 and the JPEG thumbnail at the end of the segment.
+ */
+public class ExifSegmentTest {
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    // offsets in the TIFF structure
+    private static final int IFD0 = 8;
+    private static final int EXIF_IFD = 62;
+    private static final int MAKE = 92;
+    private static final int IFD1 = 100;
+    private static final int THUMBNAIL = 130;
+    // the end of the data referenced by IFD0 and the Exif IFD, "Camera" and its terminator.
+    private static final int USED_END = MAKE + 7;
+
+    private static final int THUMBNAIL_LENGTH = 20;
+
+    @Test
+    public void readsOrientationAndThumbnail() {
+        byte[] payload = createPayload(THUMBNAIL_LENGTH, MAKE);
+        ExifSegment exif = ExifSegment.parse(payload, 0, payload.length);
+        assertNotNull(exif);
+        assertEquals(6, exif.getOrientation());
+        assertEquals(6 + THUMBNAIL, exif.getThumbnailOffset());
+        assertEquals(THUMBNAIL_LENGTH, exif.getThumbnailLength());
+    }
+
+    @Test
+    public void thumbnailLengthOutsideTheSegmentIsIgnored() {
+        // offset + length overflows an int.
+        for (long length : new long[]{0x7FFFFFF0L, 0xFFFFFFF0L, THUMBNAIL_LENGTH + 1}) {
+            byte[] payload = createPayload(length, MAKE);
+            ExifSegment exif = ExifSegment.parse(payload, 0, payload.length);
+            assertNotNull(exif);
+            assertEquals("length " + length, -1, exif.getThumbnailOffset());
+        }
+    }
+
+    @Test
+    public void normalizedSegmentHasNoThumbnail() {
+        byte[] payload = createPayload(THUMBNAIL_LENGTH, MAKE);
+        byte[] segment = ExifSegment.createNormalizedSegment(payload, 300, 200);
+        assertNotNull(segment);
+
+        // the marker, the length, "Exif\0\0" and the TIFF structure up to the end of "Camera".
+        assertEquals(4 + 6 + USED_END, segment.length);
+        assertEquals(0xFF, segment[0] & 0xFF);
+        assertEquals(Jpeg.MARKER_APP1, segment[1] & 0xFF);
+        assertEquals(segment.length - 2, ((segment[2] & 0xFF) << 8) | (segment[3] & 0xFF));
+
+        ExifSegment exif = ExifSegment.parse(segment, 4, segment.length - 4);
+        assertNotNull(exif);
+        assertEquals(ExifSegment.ORIENTATION_NORMAL, exif.getOrientation());
+        assertEquals(-1, exif.getThumbnailOffset());
+        assertEquals(0, exif.getThumbnailLength());
+
+        // the values outside the entries are kept.
+        String make = new String(Arrays.copyOfRange(segment, 4 + 6 + MAKE, 4 + 6 + MAKE + 6));
+        assertEquals("Camera", make);
+
+        // the source is not changed.
+        assertEquals(6, ExifSegment.parse(payload, 0, payload.length).getOrientation());
+    }
+
+    @Test
+    public void unknownLayoutKeepsTheLengthButUnlinksTheThumbnail() {
+        // the value of Make points outside the segment.
+        byte[] payload = createPayload(THUMBNAIL_LENGTH, 0x7FFF);
+        byte[] segment = ExifSegment.createNormalizedSegment(payload, 300, 200);
+        assertNotNull(segment);
+        assertEquals(payload.length + 4, segment.length);
+
+        ExifSegment exif = ExifSegment.parse(segment, 4, segment.length - 4);
+        assertEquals(ExifSegment.ORIENTATION_NORMAL, exif.getOrientation());
+        assertEquals(-1, exif.getThumbnailOffset());
+    }
+
+    @Test
+    public void notExif() {
+        byte[] xmp = "http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>".getBytes();
+        assertNull(ExifSegment.parse(xmp, 0, xmp.length));
+        assertNull(ExifSegment.createNormalizedSegment(xmp, 300, 200));
+    }
+
+    /**
+     * @param thumbnailLength JPEGInterchangeFormatLength of IFD1, the thumbnail has 20 bytes.
+     * @param makeOffset      Offset of the Make value.
+     */
+    static byte[] createPayload(long thumbnailLength, int makeOffset) {
+        ByteBuffer tiff = ByteBuffer.allocate(THUMBNAIL + 20);
+        tiff.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(IFD0);
+
+        tiff.position(IFD0);
+        tiff.putShort((short) 4);
+        putEntry(tiff, 0x0100, TYPE_LONG, 1, 4000);
+        putEntry(tiff, 0x010F, TYPE_ASCII, 7, makeOffset);
+        putShortEntry(tiff, 0x0112, 6);
+        putEntry(tiff, 0x8769, TYPE_LONG, 1, EXIF_IFD);
+        tiff.putInt(IFD1);
+
+        tiff.position(EXIF_IFD);
+        tiff.putShort((short) 2);
+        putEntry(tiff, 0xA002, TYPE_LONG, 1, 4000);
+        putEntry(tiff, 0xA003, TYPE_LONG, 1, 3000);
+        tiff.putInt(0);
+
+        tiff.position(MAKE);
+        tiff.put("Camera\0".getBytes());
+
+        tiff.position(IFD1);
+        tiff.putShort((short) 2);
+        putEntry(tiff, 0x0201, TYPE_LONG, 1, THUMBNAIL);
+        putEntry(tiff, 0x0202, TYPE_LONG, 1, (int) thumbnailLength);
+        tiff.putInt(0);
+
+        tiff.position(THUMBNAIL);
+        tiff.put((byte) 0xFF).put((byte) Jpeg.MARKER_SOI);
+        tiff.position(tiff.capacity() - 2);
+        tiff.put((byte) 0xFF).put((byte) Jpeg.MARKER_EOI);
+
+        byte[] payload = new byte[6 + tiff.capacity()];
+        System.arraycopy(new byte[]{'E', 'x', 'i', 'f', 0, 0}, 0, payload, 0, 6);
+        System.arraycopy(tiff.array(), 0, payload, 6, tiff.capacity());
+        return payload;
+    }
+
+    private static void putEntry(ByteBuffer tiff, int tag, int type, int count, int value) {
+        tiff.putShort((short) tag).putShort((short) type).putInt(count).putInt(value);
+    }
+
+    private static void putShortEntry(ByteBuffer tiff, int tag, int value) {
+        tiff.putShort((short) tag).putShort((short) TYPE_SHORT).putInt(1).putShort((short) value).putShort((short) 0);
+    }
+
+}
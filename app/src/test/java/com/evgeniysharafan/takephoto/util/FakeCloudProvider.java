@@ -0,0 +1,151 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for a cloud gallery provider: photos are served only as streams (like pipes, there is no file
+ * descriptor to seek in), the first byte comes after a latency and every read returns at most one chunk.
+ * <p>Every {@link #add(File)} gives a new Uri, so the same photo can be picked many times without hitting
+ * the result cache of TakePhoto.</p>
+ */
+final class FakeCloudProvider extends ContentProvider {
+
+    static final String AUTHORITY = "com.evgeniysharafan.takephoto.fake.cloud";
+
+    private final Map<Uri, File> photos = new ConcurrentHashMap<>();
+    private final long latencyMillis;
+    private final int chunkSize;
+    private final long chunkDelayMillis;
+    private int nextId;
+
+    /**
+     * @param latencyMillis    Time to the first byte, e.g. a request to the server.
+     * @param chunkSize        Maximum bytes returned by one read().
+     * @param chunkDelayMillis Time to get every chunk, it limits the bandwidth.
+     */
+    FakeCloudProvider(long latencyMillis, int chunkSize, long chunkDelayMillis) {
+        this.latencyMillis = latencyMillis;
+        this.chunkSize = chunkSize;
+        this.chunkDelayMillis = chunkDelayMillis;
+    }
+
+    synchronized Uri add(File photo) {
+        Uri uri = new Uri.Builder().scheme("content").authority(AUTHORITY)
+                .appendPath("photos").appendPath(String.valueOf(nextId++)).build();
+        photos.put(uri, photo);
+        return uri;
+    }
+
+    /**
+     * @throws FileNotFoundException if the Uri is not added.
+     */
+    InputStream openStream(Uri uri) throws FileNotFoundException {
+        File photo = photos.get(uri);
+        if (photo == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+
+        return new ThrottledInputStream(new FileInputStream(photo));
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        File photo = photos.get(uri);
+        if (photo == null) {
+            return null;
+        }
+
+        // cloud providers usually don't report the modification time.
+        MatrixCursor cursor = new MatrixCursor(new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE});
+        cursor.addRow(new Object[]{photo.getName(), photo.length()});
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return photos.containsKey(uri) ? "image/jpeg" : null;
+    }
+
+    // no descriptor, the same as a provider which is still downloading the photo.
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        throw new FileNotFoundException("Only streams are supported: " + uri);
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    private class ThrottledInputStream extends InputStream {
+
+        private final InputStream in;
+        private boolean isStarted;
+
+        ThrottledInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            sleep(isStarted ? chunkDelayMillis : latencyMillis + chunkDelayMillis);
+            isStarted = true;
+            return in.read(buffer, offset, Math.min(count, chunkSize));
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void sleep(long millis) throws IOException {
+            if (millis <= 0) {
+                return;
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+}
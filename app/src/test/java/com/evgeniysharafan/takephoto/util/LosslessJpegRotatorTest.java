@@ -0,0 +1,308 @@
+package com.evgeniysharafan.takephoto.util;
+
+import org.junit.Test;
+import org.w3c.dom.Node;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trip of {@link LosslessJpegRotator} through ImageIO: the rotated file must decode to the pixels of
+ * the source turned by the same angle, trimmed like jpegtran -trim does.
+ * <p>The DCT blocks are moved, not re-encoded, so only the rounding of the decoder and the chroma
+ * upsampling along the trimmed edge can differ.</p>
+ */
+public class LosslessJpegRotatorTest {
+
+    private static final int QUALITY = 90;
+
+    // the IDCT rounds the transposed blocks a little differently.
+    private static final int MAX_CHANNEL_ERROR = 4;
+    private static final double MAX_MEAN_CHANNEL_ERROR = 1.0;
+
+    @Test
+    public void rotatesColor() throws IOException {
+        // 4:2:0, the MCU is 16x16, both sides have a partial MCU.
+        File source = writeImageIo(createImage(203, 141, BufferedImage.TYPE_INT_RGB), 0, false);
+        for (int degrees : new int[]{90, 180, 270}) {
+            assertRotated(source, degrees, 16);
+        }
+    }
+
+    @Test
+    public void rotatesGray() throws IOException {
+        // one component, the MCU is one 8x8 block.
+        File source = writeImageIo(createImage(77, 53, BufferedImage.TYPE_BYTE_GRAY), 0, false);
+        for (int degrees : new int[]{90, 180, 270}) {
+            assertRotated(source, degrees, 8);
+        }
+    }
+
+    @Test
+    public void rotatesWholeMcus() throws IOException {
+        File source = writeImageIo(createImage(160, 96, BufferedImage.TYPE_INT_RGB), 0, false);
+        for (int degrees : new int[]{90, 180, 270}) {
+            assertRotated(source, degrees, 16);
+        }
+    }
+
+    @Test
+    public void rotatesWithRestartIntervals() throws IOException {
+        // the interval doesn't divide the MCU row, so restarts happen in the middle of rows.
+        File source = writeImageIo(createImage(250, 130, BufferedImage.TYPE_INT_RGB), 5, false);
+        for (int degrees : new int[]{90, 180, 270}) {
+            assertRotated(source, degrees, 16);
+        }
+
+        File gray = writeImageIo(createImage(91, 45, BufferedImage.TYPE_BYTE_GRAY), 3, false);
+        for (int degrees : new int[]{90, 180, 270}) {
+            assertRotated(gray, degrees, 8);
+        }
+    }
+
+    @Test
+    public void rotatesStreamingEncoderOutputAndResetsOrientation() throws IOException {
+        File source = File.createTempFile("streaming", ".jpg");
+        source.deleteOnExit();
+        BufferedImage image = createImage(120, 72, BufferedImage.TYPE_INT_RGB);
+        OutputStream out = new FileOutputStream(source);
+        try {
+            StreamingJpegEncoder encoder = new StreamingJpegEncoder(out, image.getWidth(), image.getHeight(),
+                    QUALITY);
+            encoder.start(Collections.singletonList(SyntheticJpeg.createExifSegment(6)));
+            encoder.writeRows(image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()),
+                    0, image.getWidth(), image.getHeight());
+            encoder.finish();
+        } finally {
+            out.close();
+        }
+
+        assertEquals(6, JpegHeader.read(source).orientation);
+        File rotated = assertRotated(source, 90, 16);
+        JpegHeader header = JpegHeader.read(rotated);
+        assertNotNull(header);
+        assertEquals(ExifSegment.ORIENTATION_NORMAL, header.orientation);
+    }
+
+    @Test
+    public void returnsFalseWhenNothingIsLeftAfterTrim() throws IOException {
+        // smaller than one 16x16 MCU: the mirrored side would be trimmed to zero.
+        File source = writeImageIo(createImage(40, 12, BufferedImage.TYPE_INT_RGB), 0, false);
+        assertNotRotated(source, 90);
+        assertNotRotated(source, 180);
+
+        // 270 degrees trims only the width, which has whole MCUs.
+        assertRotated(source, 270, 16);
+    }
+
+    @Test
+    public void returnsFalseForProgressive() throws IOException {
+        File source = writeImageIo(createImage(64, 48, BufferedImage.TYPE_INT_RGB), 0, true);
+        assertNotRotated(source, 90);
+    }
+
+    @Test
+    public void returnsFalseForNotJpegOrWrongAngle() throws IOException {
+        File source = writeImageIo(createImage(64, 48, BufferedImage.TYPE_INT_RGB), 0, false);
+        assertNotRotated(source, 45);
+        assertNotRotated(source, 0);
+
+        File text = File.createTempFile("not_jpeg", ".jpg");
+        text.deleteOnExit();
+        OutputStream out = new FileOutputStream(text);
+        try {
+            out.write("not a jpeg".getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        assertNotRotated(text, 90);
+    }
+
+    @Test
+    public void stopsWhenCancelled() throws IOException {
+        File source = writeImageIo(createImage(160, 96, BufferedImage.TYPE_INT_RGB), 0, false);
+        // the decode has 6 MCU rows, the encode passes have 10 each: cancelled in the decode and in the encode.
+        for (final int checks : new int[]{3, 12}) {
+            File destination = createDestination();
+            assertTrue(destination.delete());
+            CancellationToken token = new CancellationToken() {
+                private int count;
+
+                @Override
+                public boolean isCancelled() {
+                    return ++count > checks;
+                }
+
+                @Override
+                public void setCancelAction(Runnable action) {
+                }
+            };
+
+            try {
+                LosslessJpegRotator.rotate(source, destination, 90, token);
+                fail("Not cancelled after " + checks + " checks");
+            } catch (CancelledException e) {
+                assertFalse("the destination is kept", destination.exists());
+            }
+        }
+    }
+
+    private static File assertRotated(File source, int degrees, int mcuSize) throws IOException {
+        File destination = createDestination();
+        assertTrue(degrees + " degrees", LosslessJpegRotator.rotate(source, destination, degrees));
+
+        BufferedImage expected = ImageIO.read(source);
+        BufferedImage actual = ImageIO.read(destination);
+        assertNotNull(actual);
+
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        int trimmedWidth = degrees != 90 ? width / mcuSize * mcuSize : width;
+        int trimmedHeight = degrees != 270 ? height / mcuSize * mcuSize : height;
+        boolean transpose = degrees != 180;
+        assertEquals(degrees + " degrees width", transpose ? trimmedHeight : trimmedWidth, actual.getWidth());
+        assertEquals(degrees + " degrees height", transpose ? trimmedWidth : trimmedHeight, actual.getHeight());
+
+        // the source pixels next to the trimmed MCUs had their chroma upsampled from those MCUs,
+        // the same pixels are on the edge of the rotated image: its left column and/or its top row.
+        int firstX = degrees != 270 && trimmedHeight != height ? 1 : 0;
+        int firstY = degrees != 90 && trimmedWidth != width ? 1 : 0;
+        if (degrees == 180) {
+            firstX = trimmedWidth != width ? 1 : 0;
+            firstY = trimmedHeight != height ? 1 : 0;
+        }
+
+        int bands = actual.getRaster().getNumBands();
+        assertEquals(expected.getRaster().getNumBands(), bands);
+        int maxError = 0;
+        long totalError = 0;
+        for (int y = firstY; y < actual.getHeight(); y++) {
+            for (int x = firstX; x < actual.getWidth(); x++) {
+                int sourceX;
+                int sourceY;
+                switch (degrees) {
+                    case 90:
+                        sourceX = y;
+                        sourceY = trimmedHeight - 1 - x;
+                        break;
+                    case 180:
+                        sourceX = trimmedWidth - 1 - x;
+                        sourceY = trimmedHeight - 1 - y;
+                        break;
+                    default:
+                        sourceX = trimmedWidth - 1 - y;
+                        sourceY = x;
+                        break;
+                }
+
+                // samples, not getRGB(): it converts linear gray to sRGB, which magnifies the rounding.
+                for (int band = 0; band < bands; band++) {
+                    int error = Math.abs(expected.getRaster().getSample(sourceX, sourceY, band)
+                            - actual.getRaster().getSample(x, y, band));
+                    maxError = Math.max(maxError, error);
+                    totalError += error;
+                }
+            }
+        }
+
+        double meanError = (double) totalError / (actual.getWidth() * actual.getHeight() * bands);
+        assertTrue(degrees + " degrees, max error " + maxError, maxError <= MAX_CHANNEL_ERROR);
+        assertTrue(degrees + " degrees, mean error " + meanError, meanError <= MAX_MEAN_CHANNEL_ERROR);
+        return destination;
+    }
+
+    private static void assertNotRotated(File source, int degrees) throws IOException {
+        File destination = createDestination();
+        assertTrue(destination.delete());
+        assertFalse(degrees + " degrees", LosslessJpegRotator.rotate(source, destination, degrees));
+        assertFalse("the destination is created", destination.exists());
+    }
+
+    private static File createDestination() throws IOException {
+        File file = File.createTempFile("rotated", ".jpg");
+        file.deleteOnExit();
+        return file;
+    }
+
+    // a gradient with a little noise and a few sharp edges, so a misplaced block is visible.
+    private static BufferedImage createImage(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(width * 31 + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(8);
+                int red = x * 255 / width;
+                int green = y * 255 / height;
+                int blue = ((x / 24 + y / 24) & 1) != 0 ? 200 : 40;
+                image.setRGB(x, y, 0xFF000000 | (red + noise) << 16 | (green + noise) << 8 | blue);
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * @param restartInterval MCUs between restart markers or 0.
+     */
+    private static File writeImageIo(BufferedImage image, int restartInterval, boolean progressive)
+            throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            fail("No JPEG writer");
+        }
+
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(QUALITY / 100f);
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        if (restartInterval > 0) {
+            String format = "javax_imageio_jpeg_image_1.0";
+            Node root = metadata.getAsTree(format);
+            Node markers = ((IIOMetadataNode) root).getElementsByTagName("markerSequence").item(0);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", String.valueOf(restartInterval));
+            markers.insertBefore(dri, markers.getFirstChild());
+            metadata.setFromTree(format, root);
+        }
+
+        File file = File.createTempFile("source", ".jpg");
+        file.deleteOnExit();
+        ImageOutputStream out = ImageIO.createImageOutputStream(file);
+        try {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            out.close();
+            writer.dispose();
+        }
+
+        return file;
+    }
+
+}
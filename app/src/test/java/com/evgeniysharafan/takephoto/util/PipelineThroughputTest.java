@@ -0,0 +1,308 @@
+package com.evgeniysharafan.takephoto.util;
+
+import android.app.Activity;
+import android.content.ClipData;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Environment;
+import android.support.v4.app.Fragment;
+
+import com.evgeniysharafan.takephoto.BuildConfig;
+import com.squareup.picasso.Request;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowActivity;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.support.v4.SupportFragmentTestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * End-to-end load test of onActivityResult() -> getPhoto() -> processIfNeeded() -> delivery with photos
+ * picked from {@link FakeCloudProvider}. It prints jobs per second, latency percentiles and the peak heap
+ * of serial jobs and of a concurrent batch.
+ * <p>Robolectric's bitmap codecs are shadows which don't decode anything, so the workloads are the ones
+ * which run real code on the JVM: the copy and the lossless rotation. Classes are instrumented
+ * by Robolectric, so compare the numbers between changes, not with a device.</p>
+ * <p>It takes minutes, so it's skipped unless the build is run with -Dtakephoto.loadTest=true.</p>
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class PipelineThroughputTest {
+
+    private static final String LOAD_TEST_PROPERTY = "takephoto.loadTest";
+
+    private static final int[] MEGAPIXELS = {1, 5, 12};
+    // normal, 180, 90 and 270 degrees.
+    private static final int[] ORIENTATIONS = {1, 3, 6, 8};
+
+    private static final long PROVIDER_LATENCY_MILLIS = 150;
+    private static final int PROVIDER_CHUNK_SIZE = 64 * 1024;
+    private static final long PROVIDER_CHUNK_DELAY_MILLIS = 1;
+
+    private static final int SERIAL_JOBS = 24;
+    private static final int CONCURRENT_JOBS = 48;
+    private static final int PARALLELISM = 4;
+    private static final long TIMEOUT_SECONDS = 300;
+
+    // only the copy, the photo is delivered with its Exif orientation.
+    private static final Request DO_NOT_PROCESS =
+            new Request.Builder(42).stableKey(TakePhoto.DO_NOT_PROCESS_KEY).build();
+
+    // the corpus is the same for all tests, it takes a few seconds to encode.
+    private static List<File> corpus;
+
+    private FakeCloudProvider provider;
+    private Fragment host;
+    private HistogramMetrics histogram;
+
+    @BeforeClass
+    public static void assumeLoadTestRequested() {
+        assumeTrue(Boolean.getBoolean(LOAD_TEST_PROPERTY));
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        if (corpus == null) {
+            List<File> photos = new ArrayList<>();
+            for (int megapixels : MEGAPIXELS) {
+                for (int orientation : ORIENTATIONS) {
+                    photos.add(SyntheticJpeg.create(megapixels, orientation));
+                }
+            }
+
+            corpus = photos;
+        }
+
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+        provider = new FakeCloudProvider(PROVIDER_LATENCY_MILLIS, PROVIDER_CHUNK_SIZE, PROVIDER_CHUNK_DELAY_MILLIS);
+        ShadowContentResolver.registerProvider(FakeCloudProvider.AUTHORITY, provider);
+
+        host = new Fragment();
+        SupportFragmentTestUtil.startFragment(host);
+
+        histogram = new HistogramMetrics();
+        TakePhoto takePhoto = TakePhoto.getInstance();
+        // every job should copy and process its photo.
+        takePhoto.setResultCacheSize(0);
+        takePhoto.setOutputSpec(null);
+        takePhoto.setRenditions(null);
+        takePhoto.setBatchParallelism(PARALLELISM);
+    }
+
+    @After
+    public void tearDown() {
+        TakePhoto.getInstance().setJobMetricsListener(null);
+        TakePhoto.getInstance().clearAlbumDir();
+    }
+
+    @Test
+    public void serialCopy() throws Exception {
+        runSerial("serial copy", DO_NOT_PROCESS);
+    }
+
+    @Test
+    public void serialRotation() throws Exception {
+        runSerial("serial rotation", null);
+    }
+
+    @Test
+    public void concurrentCopy() throws Exception {
+        runConcurrent("concurrent copy", DO_NOT_PROCESS);
+    }
+
+    @Test
+    public void concurrentRotation() throws Exception {
+        runConcurrent("concurrent rotation", null);
+    }
+
+    private void runSerial(String name, Request request) throws Exception {
+        HeapSampler heap = new HeapSampler();
+        long start = System.nanoTime();
+        for (int i = 0; i < SERIAL_JOBS; i++) {
+            TakePhoto.getInstance().showGallery(host, request);
+            Intent data = new Intent().setData(pick(corpus.get(i % corpus.size())));
+
+            Listener listener = new Listener(1, false);
+            TakePhoto.getInstance().setJobMetricsListener(listener);
+            TakePhoto.getInstance().onActivityResult(getRequestCode(), Activity.RESULT_OK, data, listener);
+            listener.await();
+        }
+
+        report(name, SERIAL_JOBS, System.nanoTime() - start, heap.stop());
+    }
+
+    private void runConcurrent(String name, Request request) throws Exception {
+        HeapSampler heap = new HeapSampler();
+        long start = System.nanoTime();
+        TakePhoto.getInstance().showGalleryMultiple(host, request);
+        ClipData clipData = null;
+        for (int i = 0; i < CONCURRENT_JOBS; i++) {
+            ClipData.Item item = new ClipData.Item(pick(corpus.get(i % corpus.size())));
+            if (clipData == null) {
+                clipData = new ClipData("photos", new String[]{"image/jpeg"}, item);
+            } else {
+                clipData.addItem(item);
+            }
+        }
+
+        Intent data = new Intent();
+        data.setClipData(clipData);
+
+        Listener listener = new Listener(CONCURRENT_JOBS, true);
+        TakePhoto.getInstance().setJobMetricsListener(listener);
+        TakePhoto.getInstance().onActivityResult(getRequestCode(), Activity.RESULT_OK, data, listener);
+        listener.await();
+
+        report(name, CONCURRENT_JOBS, System.nanoTime() - start, heap.stop());
+    }
+
+    // Robolectric's ContentResolver doesn't open streams through providers, so the stream is registered for the Uri.
+    private Uri pick(File photo) throws IOException {
+        Uri uri = provider.add(photo);
+        shadowOf(RuntimeEnvironment.application.getContentResolver()).registerInputStream(uri,
+                provider.openStream(uri));
+        return uri;
+    }
+
+    private int getRequestCode() {
+        ShadowActivity.IntentForResult intent = shadowOf(host.getActivity()).getNextStartedActivityForResult();
+        // the support library puts the index of the fragment into the upper 16 bits.
+        int requestCode = intent.requestCode & 0xFFFF;
+        if (!TakePhoto.getInstance().isPhotoRequestOk(requestCode, Activity.RESULT_OK)) {
+            fail("Unexpected request code " + requestCode);
+        }
+
+        return requestCode;
+    }
+
+    private void report(String name, int jobs, long nanos, long peakHeapBytes) {
+        assertEquals(name + " jobs", jobs, histogram.getJobCount());
+        assertEquals(name + " failed jobs", 0, histogram.getFailedJobCount());
+
+        System.out.println(String.format(Locale.US,
+                "%s: %d jobs in %d ms, %.1f jobs/s, latency p50 %.0f ms, p95 %.0f ms, p99 %.0f ms, peak heap %d MB",
+                name, jobs, nanos / 1000000, jobs * 1e9 / nanos, histogram.getTotalPercentileMillis(50),
+                histogram.getTotalPercentileMillis(95), histogram.getTotalPercentileMillis(99),
+                peakHeapBytes / (1024 * 1024)));
+    }
+
+    /**
+     * Waits for the metrics of every job, they are reported after the delivery, when TakePhoto is ready
+     * for the next photo. A batch is finished by onBatchCompleted().
+     */
+    private class Listener implements TakePhoto.OnPhotosTakenListener, TakePhoto.OnJobMetricsListener {
+
+        private final CountDownLatch jobs;
+        private final CountDownLatch batch;
+        private final AtomicInteger errorCount = new AtomicInteger();
+
+        Listener(int jobCount, boolean isBatch) {
+            jobs = new CountDownLatch(jobCount);
+            batch = new CountDownLatch(isBatch ? 1 : 0);
+        }
+
+        @Override
+        public void onPhotoTaken(File photo) {
+        }
+
+        @Override
+        public void onPhotoError() {
+            errorCount.incrementAndGet();
+        }
+
+        @Override
+        public void onBatchPhotoTaken(int position, File photo) {
+        }
+
+        @Override
+        public void onBatchPhotoError(int position) {
+            errorCount.incrementAndGet();
+        }
+
+        @Override
+        public void onBatchCompleted(List<File> photos) {
+            batch.countDown();
+        }
+
+        @Override
+        public void onJobMetrics(JobMetrics metrics) {
+            histogram.onJobMetrics(metrics);
+            jobs.countDown();
+        }
+
+        // runs the main thread tasks while waiting, the delivery is posted there.
+        void await() throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (jobs.getCount() > 0 || batch.getCount() > 0) {
+                ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+                if (System.nanoTime() > deadline) {
+                    fail("Timed out, " + jobs.getCount() + " photos are not delivered");
+                }
+
+                jobs.await(10, TimeUnit.MILLISECONDS);
+            }
+
+            assertEquals("errors", 0, errorCount.get());
+        }
+    }
+
+    /**
+     * Samples the used heap every few milliseconds on its own thread, it starts right away.
+     */
+    private static class HeapSampler implements Runnable {
+
+        private static final long PERIOD_MILLIS = 2;
+
+        private final Thread thread = new Thread(this, "HeapSampler");
+        private volatile boolean isStopped;
+        private volatile long peakBytes;
+
+        HeapSampler() {
+            System.gc();
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (!isStopped) {
+                peakBytes = Math.max(peakBytes, runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(PERIOD_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long stop() throws InterruptedException {
+            isStopped = true;
+            thread.join();
+            return peakBytes;
+        }
+    }
+
+}
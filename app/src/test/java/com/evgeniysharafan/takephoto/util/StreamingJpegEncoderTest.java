@@ -0,0 +1,139 @@
+package com.evgeniysharafan.takephoto.util;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Output of {@link StreamingJpegEncoder} decoded by ImageIO, and {@link JpegHeader} reading it back.
+ */
+public class StreamingJpegEncoderTest {
+
+    private static final int QUALITY = 95;
+    private static final double MIN_PSNR = 35;
+
+    @Test
+    public void encodesOddSizesWrittenInStrips() throws IOException {
+        // partial MCUs on both sides, strips which don't match the MCU rows.
+        int[][] sizes = {{1, 1}, {17, 9}, {203, 141}, {64, 48}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            int[] pixels = createPixels(width, height);
+            byte[] jpeg = encode(pixels, width, height, 7, null);
+
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+            assertNotNull(width + "x" + height, decoded);
+            assertEquals(width, decoded.getWidth());
+            assertEquals(height, decoded.getHeight());
+
+            double psnr = getPsnr(pixels, decoded);
+            assertTrue(width + "x" + height + " PSNR " + psnr, psnr >= MIN_PSNR);
+        }
+    }
+
+    @Test
+    public void writesSegmentsReadByJpegHeader() throws IOException {
+        int[] pixels = createPixels(40, 30);
+        byte[] jpeg = encode(pixels, 40, 30, 16, SyntheticJpeg.createExifSegment(8));
+
+        File file = File.createTempFile("encoded", ".jpg");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(jpeg);
+        } finally {
+            out.close();
+        }
+
+        JpegHeader header = JpegHeader.read(file);
+        assertNotNull(header);
+        assertEquals(40, header.width);
+        assertEquals(30, header.height);
+        assertTrue(header.isBaseline);
+        assertEquals(8, header.orientation);
+        assertEquals(270, header.getRotationDegrees());
+        assertNotNull(header.exif);
+    }
+
+    @Test
+    public void parserGetsTheSameHeaderByteByByte() throws IOException {
+        byte[] jpeg = encode(createPixels(33, 21), 33, 21, 5, SyntheticJpeg.createExifSegment(3));
+
+        JpegHeader.Parser parser = new JpegHeader.Parser();
+        for (int i = 0; i < jpeg.length && !parser.isDone(); i++) {
+            parser.update(jpeg, i, 1);
+        }
+
+        JpegHeader header = parser.getHeader();
+        assertNotNull(header);
+        assertEquals(33, header.width);
+        assertEquals(21, header.height);
+        assertEquals(180, header.getRotationDegrees());
+    }
+
+    @Test
+    public void parserRejectsNotJpeg() {
+        JpegHeader.Parser parser = new JpegHeader.Parser();
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G'};
+        parser.update(png, 0, png.length);
+        assertTrue(parser.isDone());
+        assertNull(parser.getHeader());
+    }
+
+    private static byte[] encode(int[] pixels, int width, int height, int stripRows, byte[] segment)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingJpegEncoder encoder = new StreamingJpegEncoder(out, width, height, QUALITY);
+        encoder.start(segment != null ? Collections.singletonList(segment) : null);
+        for (int y = 0; y < height; y += stripRows) {
+            encoder.writeRows(pixels, y * width, width, Math.min(stripRows, height - y));
+        }
+        encoder.finish();
+        return out.toByteArray();
+    }
+
+    private static int[] createPixels(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = x * 255 / width;
+                int green = y * 255 / height;
+                int blue = (red + green) / 2;
+                pixels[y * width + x] = 0xFF000000 | red << 16 | green << 8 | blue;
+            }
+        }
+
+        return pixels;
+    }
+
+    private static double getPsnr(int[] pixels, BufferedImage decoded) {
+        int width = decoded.getWidth();
+        double squaredError = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            int actual = decoded.getRGB(i % width, i / width);
+            for (int shift = 0; shift < 24; shift += 8) {
+                int error = ((pixels[i] >> shift) & 0xFF) - ((actual >> shift) & 0xFF);
+                squaredError += error * error;
+            }
+        }
+
+        double mse = squaredError / (pixels.length * 3);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.evgeniysharafan.takephoto.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Camera-like JPEGs for the benchmark module and PipelineThroughputTest: 4:3, an Exif segment with
+ * the orientation, a gradient with noise so the entropy coded data has a realistic size.
+ * The same arguments always give the same bytes.
+ */
+final class SyntheticJpeg {
+
+    private static final int QUALITY = 90;
+    private static final long SEED = 42;
+    private static final int STRIP_ROWS = 16;
+
+    private SyntheticJpeg() {
+    }
+
+    /**
+     * @param megapixels 1-50.
+     * @param orientation Exif orientation, e.g. {@link ExifSegment#ORIENTATION_NORMAL} or 6 (90 degrees).
+     */
+    static File create(int megapixels, int orientation) throws IOException {
+        int width = (int) Math.sqrt(megapixels * 1000000.0 * 4 / 3);
+        int height = width * 3 / 4;
+
+        File file = File.createTempFile("synthetic_" + megapixels + "mp_", ".jpg");
+        file.deleteOnExit();
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            StreamingJpegEncoder encoder = new StreamingJpegEncoder(out, width, height, QUALITY);
+            encoder.start(Collections.singletonList(createExifSegment(orientation)));
+
+            Random random = new Random(SEED);
+            int[] strip = new int[width * STRIP_ROWS];
+            for (int y = 0; y < height; y += STRIP_ROWS) {
+                int rows = Math.min(STRIP_ROWS, height - y);
+                for (int r = 0; r < rows; r++) {
+                    for (int x = 0; x < width; x++) {
+                        int noise = random.nextInt(32);
+                        int red = (x * 255 / width + noise) & 0xFF;
+                        int green = ((y + r) * 255 / height + noise) & 0xFF;
+                        int blue = (red + green) / 2;
+                        strip[r * width + x] = 0xFF000000 | red << 16 | green << 8 | blue;
+                    }
+                }
+
+                encoder.writeRows(strip, 0, width, rows);
+            }
+
+            encoder.finish();
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    // APP1 with a big-endian TIFF header and one IFD with the orientation tag.
+    static byte[] createExifSegment(int orientation) {
+        return new byte[]{
+                (byte) 0xFF, (byte) 0xE1, 0, 34,
+                'E', 'x', 'i', 'f', 0, 0,
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                // one entry: tag 0x0112, SHORT, count 1, value
+                0, 1,
+                0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                // no next IFD
+                0, 0, 0, 0
+        };
+    }
+
+}
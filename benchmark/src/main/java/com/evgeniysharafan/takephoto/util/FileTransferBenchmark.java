@@ -0,0 +1,68 @@
+package com.evgeniysharafan.takephoto.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copy loop of a picked photo: transferTo() of a file descriptor and the buffered copy of a stream
+ * (a pipe from a content provider), both with the header parsing and, for streams, the SHA-1.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FileTransferBenchmark {
+
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    private File source;
+    private File destination;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = SyntheticJpeg.create(megapixels, 6);
+        destination = File.createTempFile("copy_", ".jpg");
+    }
+
+    @TearDown
+    public void tearDown() {
+        source.delete();
+        destination.delete();
+    }
+
+    @Benchmark
+    public FileTransfer.Stats copyFile() throws IOException {
+        return FileTransfer.copy(source, destination);
+    }
+
+    @Benchmark
+    public FileTransfer.Stats copyStream() throws IOException {
+        long start = System.nanoTime();
+        FileInputStream in = new FileInputStream(source);
+        try {
+            return FileTransfer.copy(Channels.newChannel(in), false, destination, start);
+        } finally {
+            in.close();
+        }
+    }
+
+}
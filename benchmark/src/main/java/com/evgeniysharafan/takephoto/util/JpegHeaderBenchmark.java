@@ -0,0 +1,87 @@
+package com.evgeniysharafan.takephoto.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JPEG marker and Exif parsing: the incremental parser on bytes in memory, the same parser reading a file
+ * and the orientation lookup in an Exif segment.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class JpegHeaderBenchmark {
+
+    // bigger than the headers of the synthetic photos, the parser stops at SOS anyway.
+    private static final int HEADER_BYTES = 64 * 1024;
+
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    private File file;
+    private byte[] header;
+    private byte[] exif;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = SyntheticJpeg.create(megapixels, 6);
+
+        header = new byte[(int) Math.min(HEADER_BYTES, file.length())];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < header.length) {
+                read += in.read(header, read, header.length - read);
+            }
+        } finally {
+            in.close();
+        }
+
+        // the payload without the marker and the length.
+        byte[] segment = SyntheticJpeg.createExifSegment(6);
+        exif = new byte[segment.length - 4];
+        System.arraycopy(segment, 4, exif, 0, exif.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public JpegHeader parseBytes() {
+        JpegHeader.Parser parser = new JpegHeader.Parser();
+        parser.update(ByteBuffer.wrap(header));
+        return parser.getHeader();
+    }
+
+    @Benchmark
+    public JpegHeader readFile() throws IOException {
+        return JpegHeader.read(file);
+    }
+
+    @Benchmark
+    public int parseExifOrientation() {
+        return ExifSegment.parse(exif, 0, exif.length).getOrientation();
+    }
+
+}
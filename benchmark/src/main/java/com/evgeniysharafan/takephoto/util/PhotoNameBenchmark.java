@@ -0,0 +1,75 @@
+package com.evgeniysharafan.takephoto.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File name generation and date parsing of taken photos, with SimpleDateFormat (used before PhotoName)
+ * as the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class PhotoNameBenchmark {
+
+    // a fixed time, so every run formats the same name.
+    private static final long TIME = 1476700000123L;
+
+    private Calendar calendar;
+    private SimpleDateFormat dateFormat;
+    private String name;
+    private String legacyName;
+
+    @Setup
+    public void setUp() {
+        calendar = Calendar.getInstance();
+        dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+        name = PhotoName.format(calendar, TIME) + "_1.jpg";
+        legacyName = PhotoName.PREFIX + dateFormat.format(new Date(TIME)) + ".jpg";
+    }
+
+    @Benchmark
+    public String format() {
+        return PhotoName.format(calendar, TIME);
+    }
+
+    @Benchmark
+    public long parse() {
+        return PhotoName.parse(name);
+    }
+
+    @Benchmark
+    public long parseLegacy() {
+        return PhotoName.parse(legacyName);
+    }
+
+    @Benchmark
+    public String formatSimpleDateFormat() {
+        return PhotoName.PREFIX + dateFormat.format(new Date(TIME));
+    }
+
+    @Benchmark
+    public long parseSimpleDateFormat() throws ParseException {
+        return dateFormat.parse(legacyName.substring(PhotoName.PREFIX.length(), PhotoName.PREFIX.length() + 15))
+                .getTime();
+    }
+
+}